@@ -21,12 +21,18 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -170,6 +176,345 @@ public class OdkBaseTableTest {
     }
   }
 
+  @Test
+  public void testLargeTableParcelation() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    int numRows = 2000;
+
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      String[] rowValues = new String[TABLE_WIDTH];
+      rowValues[0] = Integer.toString(i);
+      rowValues[1] = (i % 3 == 0) ? null : Double.toString(i * 0.25);
+      rowValues[2] = "text value " + i;
+      rowValues[3] = null;
+      // not the canonical form of a number, so it must come back unchanged
+      rowValues[4] = (i == numRows / 2) ? "007" : Integer.toString(i % 2);
+      table.addRow(new Row(rowValues, table));
+    }
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, 0);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    Assert.assertTrue(t.isColumnar());
+    assertEquals(numRows, t.getNumberOfRows());
+    assertEquals(numRows, t.getRows().size());
+    for (int i = 0; i < numRows; ++i) {
+      Row expected = table.getRowAtIndex(i);
+      Row actual = t.getRowAtIndex(i);
+      for (int j = 0; j < TABLE_WIDTH; j++) {
+        assertEquals(expected.getDataByIndex(j), actual.getDataByIndex(j));
+      }
+      assertEquals(expected.getDataByKey(COLUMN3), actual.getDataByKey(COLUMN3));
+    }
+
+    // rows can still be added
+    String[] extraRow = { "not a number", null, "", "value", "1" };
+    t.addRow(new Row(extraRow, t));
+    Assert.assertFalse(t.isColumnar());
+    assertEquals(numRows + 1, t.getNumberOfRows());
+    for (int j = 0; j < TABLE_WIDTH; j++) {
+      assertEquals(extraRow[j], t.getRowAtIndex(numRows).getDataByIndex(j));
+    }
+    assertEquals(table.getRowAtIndex(0).getDataByIndex(0), t.getRowAtIndex(0).getDataByIndex(0));
+  }
+
+  @Test
+  public void testColumnarRowsAfterConversion() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    int numRows = 600;
+
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      String[] rowValues = { Integer.toString(i), Double.toString(i * 0.5), "text " + i, null,
+          Integer.toString(i % 2) };
+      table.addRow(new Row(rowValues, table));
+    }
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, 0);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    Assert.assertTrue(t.isColumnar());
+    Row view = t.getRowAtIndex(10);
+    // integer and number columns are rebuilt from their primitive values
+    assertEquals("10", view.getDataByIndex(0));
+    assertEquals("5.0", view.getDataByIndex(1));
+    assertEquals(view.getDataByIndex(0), t.getRowAtIndex(10).getDataByIndex(0));
+    assertEquals(10L, view.getLong(0));
+    assertEquals(5.0, view.getDouble(1), 0.0);
+
+    // adding a row stops the table being stored by column
+    t.addRow(new Row(new String[] { "short" }, t));
+    Assert.assertFalse(t.isColumnar());
+    assertEquals(numRows + 1, t.getNumberOfRows());
+
+    // but the rows handed out before that still work
+    assertEquals("10", view.getDataByIndex(0));
+    assertEquals("text 10", view.getDataByKey(COLUMN3));
+    Assert.assertTrue(view.isNull(3));
+    Assert.assertFalse(view.getBoolean(4));
+    assertEquals("short", t.getRowAtIndex(numRows).getDataByIndex(0));
+  }
+
+  @Test
+  public void testDictionaryEncodedParcelation() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    int numRows = 50;
+
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      String[] rowValues = new String[TABLE_WIDTH];
+      rowValues[0] = Integer.toString(i);
+      rowValues[1] = (i % 2 == 0) ? "synced" : "changed";
+      rowValues[2] = "text value " + i;
+      rowValues[3] = (i % 5 == 0) ? null : "en";
+      rowValues[4] = null;
+      table.addRow(new Row(rowValues, table));
+    }
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, BaseTable.PARCELABLE_WRITE_DICTIONARY_ENCODED);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    assertEquals(numRows, t.getNumberOfRows());
+    for (int i = 0; i < numRows; ++i) {
+      for (int j = 0; j < TABLE_WIDTH; j++) {
+        assertEquals(table.getRowAtIndex(i).getDataByIndex(j),
+            t.getRowAtIndex(i).getDataByIndex(j));
+      }
+    }
+
+    // repeated values share a single String
+    Assert.assertSame(t.getRowAtIndex(0).getDataByIndex(1), t.getRowAtIndex(2).getDataByIndex(1));
+  }
+
+  @Test
+  public void testTypedAccessors() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, NUM_ROWS);
+    Row row1 = new Row(new String[] { "42", "2.5", "0", "[\"a\",1]", null }, table);
+    table.addRow(row1);
+    Row row2 = new Row(new String[] { "-7", "1e3", "1", "[]", "text" }, table);
+    table.addRow(row2);
+
+    assertEquals(42L, row1.getLong(0));
+    assertEquals(-7L, row2.getLong(0));
+    assertEquals(2.5, row1.getDouble(1), 0.0);
+    assertEquals(1000.0, row2.getDouble(1), 0.0);
+    Assert.assertFalse(row1.getBoolean(2));
+    Assert.assertTrue(row2.getBoolean(2));
+    Assert.assertTrue(row1.isNull(4));
+    Assert.assertFalse(row2.isNull(4));
+    Assert.assertFalse(row1.getBoolean(4));
+    assertEquals(0L, row1.getLong(4));
+
+    // JSON values are memoized, but each caller gets its own copy
+    ArrayList<Object> list = row1.getDataType(3, ArrayList.class);
+    list.add("changed");
+    assertEquals(2, row1.getDataType(3, ArrayList.class).size());
+
+    // or the memoized value itself, which cannot be changed
+    List<Object> view = row1.getJsonArray(3);
+    Assert.assertSame(view, row1.getJsonArray(3));
+    assertEquals(2, view.size());
+    assertEquals("a", view.get(0));
+    try {
+      view.add("changed");
+      Assert.fail("the memoized value must not be modifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    Assert.assertTrue(row2.getJsonArray(3).isEmpty());
+    assertNull(row1.getJsonArray(4));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testJsonObjectViews() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2 };
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, NUM_ROWS);
+    Row row = new Row(new String[] { "{\"a\":{\"b\":[1,2]}}", null }, table);
+    table.addRow(row);
+
+    Map<String, Object> object = row.getJsonObject(0);
+    Assert.assertSame(object, row.getJsonObject(0));
+    Map<?, ?> inner = (Map<?, ?>) object.get("a");
+    try {
+      ((List<?>) inner.get("b")).clear();
+      Assert.fail("nested values must not be modifiable either");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    // copies handed out by getDataType() may be changed all the way down
+    HashMap<String, Object> copy = row.getDataType(0, HashMap.class);
+    ((List<Object>) ((Map<String, Object>) copy.get("a")).get("b")).clear();
+    assertEquals(2, ((List<?>) inner.get("b")).size());
+    assertNull(row.getJsonObject(1));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void testTypedAccessorConversionFailure() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, NUM_ROWS);
+    Row row = new Row(new String[] { "not a number", null, null, null, null }, table);
+    table.addRow(row);
+
+    row.getLong(0);
+  }
+
+  @Test
+  public void testIndexedRowsParcelation() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    int numRows = 100;
+
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      String[] rowValues = new String[TABLE_WIDTH];
+      rowValues[0] = Integer.toString(i);
+      rowValues[1] = "\u00e9t\u00e9 " + i;
+      rowValues[2] = "";
+      rowValues[3] = "\u4e2d\u0000";
+      rowValues[4] = null;
+      table.addRow(new Row(rowValues, table));
+    }
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, BaseTable.PARCELABLE_WRITE_INDEXED_ROWS);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    Assert.assertTrue(t.isDecodedOnDemand());
+    assertEquals(numRows, t.getNumberOfRows());
+    for (int i = 0; i < numRows; ++i) {
+      for (int j = 0; j < TABLE_WIDTH; j++) {
+        assertEquals(table.getRowAtIndex(i).getDataByIndex(j),
+            t.getRowAtIndex(i).getDataByIndex(j));
+      }
+    }
+    Assert.assertSame(t.getRowAtIndex(10), t.getRowAtIndex(10));
+
+    // evicted rows are decoded again
+    t.setMaxDecodedRows(2);
+    Row row = t.getRowAtIndex(10);
+    t.getRowAtIndex(20);
+    t.getRowAtIndex(30);
+    Assert.assertNotSame(row, t.getRowAtIndex(10));
+    assertEquals("\u00e9t\u00e9 10", t.getRowAtIndex(10).getDataByIndex(1));
+
+    t.addRow(new Row(new String[] { "new", null, null, null, null }, t));
+    Assert.assertFalse(t.isDecodedOnDemand());
+    assertEquals(numRows + 1, t.getNumberOfRows());
+  }
+
+  @Test
+  public void testSharedRowsStayEncoded() throws IOException {
+    String[] elementKeyForIndex = { COLUMN1, COLUMN2, COLUMN3, COLUMN4, COLUMN5 };
+    int numRows = 100;
+
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      table.addRow(new Row(new String[] { Integer.toString(i), "b" + i, null, "d", "e" },
+          table));
+    }
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, BaseTable.PARCELABLE_WRITE_INDEXED_ROWS);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    BaseTable shared = BaseTable.shareRows(t);
+    Assert.assertTrue(shared.isDecodedOnDemand());
+    Assert.assertNull(shared.getQuery());
+    assertEquals(numRows, shared.getNumberOfRows());
+    assertEquals("b42", shared.getRowAtIndex(42).getDataByIndex(1));
+
+    // adding a row to the shared table does not change the original
+    shared.addRow(new Row(new String[] { "new", null, null, null, null }, shared));
+    Assert.assertFalse(shared.isDecodedOnDemand());
+    Assert.assertTrue(t.isDecodedOnDemand());
+    assertEquals(numRows + 1, shared.getNumberOfRows());
+    assertEquals(numRows, t.getNumberOfRows());
+
+    // nor does adding one to a table of decoded rows
+    BaseTable copy = BaseTable.shareRows(table);
+    copy.addRow(new Row(new String[] { "new", null, null, null, null }, copy));
+    assertEquals(numRows, table.getNumberOfRows());
+    Assert.assertSame(table.getRowAtIndex(5), copy.getRowAtIndex(5));
+  }
+
+  @Test
+  public void testHealthSummaryParcelation() throws IOException {
+    String[] elementKeyForIndex = { DataTableColumns.ID, DataTableColumns.SAVEPOINT_TYPE,
+        DataTableColumns.CONFLICT_TYPE, DataTableColumns.SYNC_STATE };
+    BaseTable table = new BaseTable(PRIMARY_KEY, elementKeyForIndex, null, NUM_ROWS);
+    table.addRow(new Row(new String[] { "1", "COMPLETE", null, "synced" }, table));
+    table.addRow(new Row(new String[] { "2", "COMPLETE", null, "synced" }, table));
+    assertEquals(0, table.getHealthSummary());
+
+    table.addRow(new Row(new String[] { "3", null, "1", "in_conflict" }, table));
+    assertEquals(BaseTable.HEALTH_HAS_CHECKPOINT_ROWS | BaseTable.HEALTH_HAS_CONFLICT_ROWS,
+        table.getHealthSummary());
+
+    Parcel p = Parcel.obtain();
+    table.writeToParcel(p, BaseTable.PARCELABLE_WRITE_HEALTH_SUMMARY);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    BaseTable t = BaseTable.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    assertEquals(3, t.getNumberOfRows());
+    assertEquals(table.getHealthSummary(), t.getHealthSummary());
+    assertEquals(2, t.getSyncStateCount(SyncState.synced));
+    assertEquals(BaseTable.ROW_FLAG_CHECKPOINT | BaseTable.ROW_FLAG_CONFLICT, t.getRowFlags(2));
+    assertEquals(SyncState.in_conflict, t.getRowSyncState(2));
+    assertEquals("2", t.getRowAtIndex(1).getDataByIndex(0));
+  }
+
   @Test (expected = IllegalArgumentException.class)
   public void testOdkTableCreationValidationTable() throws IOException {
 
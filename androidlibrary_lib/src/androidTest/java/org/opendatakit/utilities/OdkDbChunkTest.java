@@ -24,6 +24,7 @@ import org.junit.runner.RunWith;
 import org.opendatakit.database.service.DbChunk;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.database.utilities.DbChunkInputStream;
 import org.opendatakit.database.utilities.DbChunkUtil;
 
 import java.io.IOException;
@@ -337,4 +338,117 @@ public class OdkDbChunkTest {
     }
   }
 
+  @Test
+  public void testChunksAreViewsOfPayload() {
+    Bundle parcelableTestData = new Bundle();
+    parcelableTestData.putStringArray("testData", testData);
+
+    List<DbChunk> chunks = DbChunkUtil.convertToChunks(parcelableTestData, smallChunkSize);
+
+    assertTrue("Unexpected number of chunks", chunks.size() > 1);
+
+    // Every chunk should reference the same serialized payload rather than a copy of it
+    byte[] payload = chunks.get(0).getDataBuffer();
+    int expectedOffset = 0;
+    for (DbChunk chunk : chunks) {
+      assertSame("Chunk data was copied", payload, chunk.getDataBuffer());
+      assertEquals("Chunk regions must be contiguous", expectedOffset, chunk.getDataOffset());
+      expectedOffset += chunk.getDataLength();
+    }
+    assertEquals("Chunks must cover the payload", payload.length, expectedOffset);
+
+    // And the chunk stream must reproduce the payload exactly
+    DbChunkInputStream in = new DbChunkInputStream(chunks);
+    for (int i = 0; i < payload.length; i++) {
+      assertEquals("Stream data mismatch", payload[i] & 0xff, in.read());
+    }
+    assertEquals("Stream should be exhausted", -1, in.read());
+  }
+
+  @Test
+  public void testDeflatedChunksParcelation() throws IOException {
+    // Repetitive enough to be compressed, and large enough to be worth compressing
+    String[] repetitiveData = new String[5000];
+    for (int i = 0; i < repetitiveData.length; i++) {
+      repetitiveData[i] = "new_row" + (i % 10);
+    }
+    Bundle parcelableTestData = new Bundle();
+    parcelableTestData.putStringArray("testData", repetitiveData);
+
+    List<DbChunk> plainChunks = DbChunkUtil.convertToChunks(parcelableTestData, 1024);
+    List<DbChunk> chunks = DbChunkUtil.convertToChunks(parcelableTestData, 1024,
+        DbChunk.FEATURE_DEFLATE, Integer.MAX_VALUE, null);
+
+    assertTrue("Chunks should be flagged as deflated", chunks.get(0).isDeflated());
+    assertTrue("Compression should reduce the number of chunks",
+        chunks.size() < plainChunks.size());
+
+    // The flag must survive the trip through a parcel
+    List<DbChunk> resultChunks = new ArrayList<DbChunk>();
+    for (DbChunk chunk : chunks) {
+      Parcel p = Parcel.obtain();
+      chunk.writeToParcel(p, 0);
+      p.setDataPosition(0);
+      resultChunks.add(DbChunk.CREATOR.createFromParcel(p));
+      p.recycle();
+    }
+
+    Bundle result = DbChunkUtil.rebuildFromChunks(resultChunks, Bundle.CREATOR);
+    assertArrayEquals("Data unpack mismatch", repetitiveData, result.getStringArray("testData"));
+  }
+
+  @Test
+  public void testCompactFrameParcelation() throws IOException {
+    Bundle parcelableTestData = new Bundle();
+    parcelableTestData.putStringArray("testData", testData);
+
+    List<DbChunk> chunks = DbChunkUtil.convertToChunks(parcelableTestData, smallChunkSize,
+        DbChunk.FEATURE_COMPACT_FRAME, Integer.MAX_VALUE, null);
+
+    assertTrue("Unexpected number of chunks", chunks.size() > 1);
+
+    List<DbChunk> resultChunks = new ArrayList<DbChunk>();
+    int payloadLength = 0;
+    for (DbChunk chunk : chunks) {
+      Parcel p = Parcel.obtain();
+      chunk.writeToParcel(p, 0);
+      p.setDataPosition(0);
+      DbChunk result = DbChunk.CREATOR.createFromParcel(p);
+      p.recycle();
+
+      assertEquals("Chunk id mismatch", chunk.getThisID(), result.getThisID());
+      assertEquals("Next chunk id mismatch", chunk.getNextID(), result.getNextID());
+      payloadLength += result.getDataLength();
+      resultChunks.add(result);
+    }
+    assertEquals("Payload length hint mismatch", payloadLength,
+        resultChunks.get(0).getPayloadLengthHint());
+
+    Bundle result = DbChunkUtil.rebuildFromChunks(resultChunks, Bundle.CREATOR);
+    assertArrayEquals("Data unpack mismatch", testData, result.getStringArray("testData"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompactFrameChecksum() throws IOException {
+    Bundle parcelableTestData = new Bundle();
+    parcelableTestData.putStringArray("testData", testData);
+
+    DbChunk chunk = DbChunkUtil.convertToChunks(parcelableTestData, largeChunkSize,
+        DbChunk.FEATURE_COMPACT_FRAME, Integer.MAX_VALUE, null).get(0);
+
+    Parcel p = Parcel.obtain();
+    chunk.writeToParcel(p, 0);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    // corrupt the first byte of the chunk data, which ends the parcel padded to 4 bytes
+    int paddedLength = (chunk.getDataLength() + 3) & ~3;
+    bytes[bytes.length - paddedLength] ^= 0x1;
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+    DbChunk.CREATOR.createFromParcel(p);
+  }
+
 }
@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import android.content.ContentValues;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TableDefinitionEntry;
+import org.opendatakit.database.data.TableInfo;
+import org.opendatakit.database.data.TableInfoList;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.service.AidlDbInterface;
+import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.InternalUserDbInterfaceAidlWrapperImpl;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.DbChunkUtil;
+import org.opendatakit.exception.ActionNotAuthorizedException;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
+import org.sqlite.database.sqlite.SQLiteConstraintException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises InternalUserDbInterfaceAidlWrapperImpl against a stand-in for the service that
+ * answers the calls a test is interested in and records every call that is made.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OdkDbInterfaceWrapperTest {
+
+  private static final String APP_NAME = "default";
+  private static final DbHandle DB_HANDLE = new DbHandle("handle");
+  private static final String[] COLUMNS = { "_id", "_sync_state", "name" };
+
+  /**
+   * The chunks the stand-in service has handed out, by id
+   */
+  private final Map<UUID, DbChunk> chunks = new HashMap<>();
+  /**
+   * The names of the methods called on the stand-in service, in order
+   */
+  private final List<String> calls = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  /**
+   * Answers the calls made on the stand-in service
+   */
+  private interface Service {
+    /**
+     * @param method the name of the method called
+     * @param args   its arguments
+     * @return the reply of the service
+     * @throws Exception thrown to the caller
+     */
+    Object call(String method, Object[] args) throws Exception;
+  }
+
+  /**
+   * Thrown by a Service to make the call return null rather than the default reply
+   */
+  private static final class NullReply extends Exception {
+  }
+
+  /**
+   * @param service answers the calls; getChunk() and getChunks() are answered from the chunks
+   *                of earlier replies unless the service answers them itself
+   * @return a wrapper that talks to the stand-in service
+   */
+  private InternalUserDbInterfaceAidlWrapperImpl wrap(final Service service) {
+    AidlDbInterface dbInterface = (AidlDbInterface) Proxy.newProxyInstance(
+        AidlDbInterface.class.getClassLoader(), new Class<?>[] { AidlDbInterface.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("asBinder")) {
+              return null;
+            }
+            calls.add(name);
+            Object reply;
+            try {
+              reply = service.call(name, args);
+            } catch (NullReply e) {
+              return null;
+            }
+            if (reply != null) {
+              return reply;
+            }
+            if (name.equals("getChunk")) {
+              return chunks.get(((ParcelUuid) args[0]).getUuid());
+            }
+            if (name.equals("getChunks")) {
+              List<DbChunk> batch = new ArrayList<>();
+              DbChunk chunk = chunks.get(((ParcelUuid) args[0]).getUuid());
+              batch.add(chunk);
+              while (chunk.hasNextID() && batch.size() < (Integer) args[1]) {
+                chunk = chunks.get(chunk.getNextID());
+                batch.add(chunk);
+              }
+              return batch;
+            }
+            if (method.getReturnType() == int.class) {
+              return 0;
+            }
+            if (method.getReturnType() == boolean.class) {
+              return false;
+            }
+            return null;
+          }
+        });
+    return new InternalUserDbInterfaceAidlWrapperImpl(dbInterface, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param result   the result to return
+   * @param features the DbChunk.FEATURE_... values agreed upon with the client
+   * @return the first chunk of the result, as the service would return it
+   */
+  private DbChunk toChunks(Parcelable result, int features) throws Exception {
+    List<DbChunk> list = DbChunkUtil.convertToChunks(result, 256, features, Integer.MAX_VALUE,
+        null);
+    for (DbChunk chunk : list) {
+      chunks.put(chunk.getThisID(), chunk);
+    }
+    return list.get(0);
+  }
+
+  /**
+   * @param statuses the status of each row
+   * @return the first chunk of the statuses, as the service would return them
+   */
+  private DbChunk toChunks(int[] statuses) throws Exception {
+    List<DbChunk> list = DbChunkUtil.convertToChunks(statuses, 256);
+    for (DbChunk chunk : list) {
+      chunks.put(chunk.getThisID(), chunk);
+    }
+    return list.get(0);
+  }
+
+  /**
+   * @param exceptionClass the exception the service caught
+   * @return the failure the service reports for it
+   */
+  private static IllegalStateException serviceFailure(Class<?> exceptionClass) {
+    return new IllegalStateException(
+        "org.opendatakit|" + exceptionClass.getName() + ": failed by the test");
+  }
+
+  private static int payloadSize(Parcelable result, int features) throws Exception {
+    int size = 0;
+    for (DbChunk chunk : DbChunkUtil.convertToChunks(result, 256, features, Integer.MAX_VALUE,
+        null)) {
+      size += chunk.getData().length;
+    }
+    return size;
+  }
+
+  private int count(String method) {
+    int count = 0;
+    for (String call : calls) {
+      if (call.equals(method)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static void assertSameRows(BaseTable expected, BaseTable actual) {
+    assertEquals(expected.getNumberOfRows(), actual.getNumberOfRows());
+    for (int i = 0; i < expected.getNumberOfRows(); ++i) {
+      for (int j = 0; j < expected.getWidth(); ++j) {
+        assertEquals(expected.getRowAtIndex(i).getDataByIndex(j),
+            actual.getRowAtIndex(i).getDataByIndex(j));
+      }
+    }
+  }
+
+  private static List<String> rowIds(String... rowIds) {
+    List<String> list = new ArrayList<>();
+    for (String rowId : rowIds) {
+      list.add(rowId);
+    }
+    return list;
+  }
+
+  private static List<ContentValues> values(int numRows, int valueLength) {
+    StringBuilder b = new StringBuilder(valueLength);
+    for (int i = 0; i < valueLength; ++i) {
+      b.append('x');
+    }
+    List<ContentValues> list = new ArrayList<>();
+    for (int i = 0; i < numRows; ++i) {
+      ContentValues cv = new ContentValues();
+      cv.put("name", b.toString());
+      list.add(cv);
+    }
+    return list;
+  }
+
+  /**
+   * @param rowId         the row id, or null for no row
+   * @param savepointType the _savepoint_type of the row, null for a checkpoint
+   * @param conflictType  the _conflict_type of the row, null if it is not in conflict
+   * @return the rows with that id, as getRowsWithId() returns them
+   */
+  private static BaseTable rowsWithId(String rowId, String savepointType, String conflictType) {
+    BaseTable table = new BaseTable(null, new String[] { DataTableColumns.ID,
+        DataTableColumns.SAVEPOINT_TYPE, DataTableColumns.CONFLICT_TYPE }, null, 1);
+    if (rowId != null) {
+      table.addRow(new Row(new String[] { rowId, savepointType, conflictType }, table));
+    }
+    return table;
+  }
+
+  private static TableMetaDataEntries createMetadata(String tableId) {
+    TableMetaDataEntries metadata = new TableMetaDataEntries(tableId, "rev");
+    for (int i = 0; i < 20; ++i) {
+      KeyValueStoreEntry entry = new KeyValueStoreEntry();
+      entry.tableId = tableId;
+      entry.partition = "Column";
+      entry.aspect = "col" + (i / 4);
+      entry.key = "key" + i;
+      entry.type = "string";
+      entry.value = "value " + i;
+      metadata.addEntry(entry);
+    }
+    return metadata;
+  }
+
+  private static void assertSameMetadata(TableMetaDataEntries expected,
+      TableMetaDataEntries actual) {
+    assertEquals(expected.getTableId(), actual.getTableId());
+    assertEquals(expected.getRevId(), actual.getRevId());
+    assertEquals(expected.getEntries().size(), actual.getEntries().size());
+    for (int i = 0; i < expected.getEntries().size(); ++i) {
+      assertEquals(expected.getEntries().get(i), actual.getEntries().get(i));
+      assertEquals(expected.getEntries().get(i).value, actual.getEntries().get(i).value);
+    }
+  }
+
+  private static TableInfo createTableInfo(String tableId) {
+    TableDefinitionEntry definition = new TableDefinitionEntry(tableId);
+    definition.setRevId("rev");
+    return new TableInfo(definition, new OrderedColumns(APP_NAME, tableId,
+        new ArrayList<Column>()), createMetadata(tableId));
+  }
+
+  /**
+   * @param tableInfos the table infos returned
+   * @return the ids of their tables, in order
+   */
+  private static List<String> tableIdsOf(List<TableInfo> tableInfos) {
+    List<String> tableIds = new ArrayList<>();
+    for (TableInfo tableInfo : tableInfos) {
+      tableIds.add(tableInfo.getTableId());
+    }
+    return tableIds;
+  }
+
+  private static BaseTable createTable(int numRows) {
+    BaseTable table = new BaseTable(null, COLUMNS, null, numRows);
+    for (int i = 0; i < numRows; ++i) {
+      String syncState = (i % 3 == 0) ? "synced" : (i % 3 == 1) ? "changed" : null;
+      table.addRow(new Row(new String[] { "uuid:" + i, syncState, "name " + i }, table));
+    }
+    return table;
+  }
+
+  @Test
+  public void testNegotiatedQueryIsDictionaryEncoded() throws Exception {
+    final BaseTable table = createTable(200);
+    final int[] negotiated = new int[1];
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("negotiateChunkFeatures")) {
+          negotiated[0] = (Integer) args[0];
+          return negotiated[0];
+        }
+        if (method.equals("simpleQuery")) {
+          return toChunks(table, negotiated[0]);
+        }
+        return null;
+      }
+    });
+
+    int features = wrapper.getChunkFeatures();
+    assertTrue((features & DbChunk.FEATURE_DICTIONARY_ENCODING) != 0);
+    assertTrue((features & DbChunk.FEATURE_INDEXED_ROWS) != 0);
+
+    BaseTable result = wrapper.simpleQuery(APP_NAME, DB_HANDLE, "SELECT", null, null, null);
+    assertTrue(result.isDecodedOnDemand());
+    assertSameRows(table, result);
+
+    // the low-cardinality column is dictionary encoded, so its values are shared Strings
+    assertSame(result.getRowAtIndex(0).getDataByIndex(1),
+        result.getRowAtIndex(3).getDataByIndex(1));
+    assertNotNull(result.getRowAtIndex(4).getDataByIndex(1));
+
+    // and the negotiated payload is smaller than the indexed rows alone
+    assertTrue(payloadSize(table, features)
+        < payloadSize(table, features & ~DbChunk.FEATURE_DICTIONARY_ENCODING));
+  }
+
+  @Test
+  public void testChunksAreFetchedInBatches() throws Exception {
+    final BaseTable table = createTable(200);
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("simpleQuery")) {
+          return toChunks(table, 0);
+        }
+        return null;
+      }
+    });
+
+    assertSameRows(table, wrapper.simpleQuery(APP_NAME, DB_HANDLE, "SELECT", null, null, null));
+    assertTrue(chunks.size() > 2);
+    assertEquals(1, count("getChunks"));
+    assertEquals(0, count("getChunk"));
+  }
+
+  @Test
+  public void testChunksFallBackToOneAtATime() throws Exception {
+    final BaseTable table = createTable(200);
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("simpleQuery")) {
+          chunks.clear();
+          return toChunks(table, 0);
+        }
+        if (method.equals("getChunks")) {
+          // an older service returns an empty reply
+          throw new NullReply();
+        }
+        return null;
+      }
+    });
+
+    assertSameRows(table, wrapper.simpleQuery(APP_NAME, DB_HANDLE, "SELECT", null, null, null));
+    assertEquals(1, count("getChunks"));
+    assertEquals(chunks.size() - 1, count("getChunk"));
+
+    // the wrapper remembers that the service does not implement getChunks()
+    calls.clear();
+    assertSameRows(table, wrapper.simpleQuery(APP_NAME, DB_HANDLE, "SELECT", null, null, null));
+    assertEquals(0, count("getChunks"));
+    assertEquals(chunks.size() - 1, count("getChunk"));
+  }
+
+  @Test
+  public void testRowBatchesAreSplitByRowsAndBytes() throws Exception {
+    final List<Integer> batchSizes = new ArrayList<>();
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("insertRowsWithIds")) {
+          int size = ((List<?>) args[4]).size();
+          batchSizes.add(size);
+          return toChunks(new int[size]);
+        }
+        return null;
+      }
+    });
+
+    // small rows are sent 1000 at a time
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 2500; ++i) {
+      ids.add("uuid:" + i);
+    }
+    int[] statuses = wrapper.insertRowsWithIds(APP_NAME, DB_HANDLE, "t", values(2500, 1), ids);
+    assertEquals(2500, statuses.length);
+    assertEquals(Arrays.asList(1000, 1000, 500), batchSizes);
+
+    // rows of about 100KB each are sent two at a time, to stay under 256KB
+    batchSizes.clear();
+    wrapper.insertRowsWithIds(APP_NAME, DB_HANDLE, "t", values(5, 50 * 1024),
+        rowIds("a", "b", "c", "d", "e"));
+    assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+
+    // and a row over the whole budget is still sent, on its own
+    batchSizes.clear();
+    wrapper.insertRowsWithIds(APP_NAME, DB_HANDLE, "t", values(2, 200 * 1024),
+        rowIds("a", "b"));
+    assertEquals(Arrays.asList(1, 1), batchSizes);
+  }
+
+  @Test
+  public void testRowBatchFallsBackToSingleRows() throws Exception {
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("insertRowsWithIds")) {
+          // an older service returns an empty reply
+          throw new NullReply();
+        }
+        if (method.equals("insertRowWithId")) {
+          String rowId = (String) args[4];
+          if (rowId.equals("present")) {
+            throw serviceFailure(SQLiteConstraintException.class);
+          }
+          if (rowId.equals("denied")) {
+            throw serviceFailure(ActionNotAuthorizedException.class);
+          }
+          if (rowId.equals("invalid")) {
+            throw serviceFailure(IllegalArgumentException.class);
+          }
+          if (rowId.equals("unavailable")) {
+            throw new RemoteException("the service went away");
+          }
+          return toChunks(createTable(1), 0);
+        }
+        return null;
+      }
+    });
+
+    int[] statuses = wrapper.insertRowsWithIds(APP_NAME, DB_HANDLE, "t", values(5, 1),
+        rowIds("new", "present", "denied", "invalid", "other"));
+    assertArrayEquals(new int[] { UserDbInterface.ROW_STATUS_OK,
+        UserDbInterface.ROW_STATUS_ALREADY_EXISTS, UserDbInterface.ROW_STATUS_NOT_AUTHORIZED,
+        UserDbInterface.ROW_STATUS_INVALID, UserDbInterface.ROW_STATUS_OK }, statuses);
+    assertEquals(1, count("insertRowsWithIds"));
+    assertEquals(5, count("insertRowWithId"));
+
+    // the wrapper remembers that the service does not implement the batch call, and a
+    // failure that is not about the row is thrown, leaving the earlier rows inserted
+    calls.clear();
+    try {
+      wrapper.insertRowsWithIds(APP_NAME, DB_HANDLE, "t", values(3, 1),
+          rowIds("new", "unavailable", "other"));
+      fail("expected the failure to be thrown");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+    assertEquals(0, count("insertRowsWithIds"));
+    assertEquals(2, count("insertRowWithId"));
+  }
+
+  @Test
+  public void testRowChangeFallbackReportsMissingAndConflictingRows() throws Exception {
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("updateRowsWithIds")) {
+          throw new NullReply();
+        }
+        if (method.equals("updateRowWithId")) {
+          String rowId = (String) args[4];
+          if (!rowId.equals("changed")) {
+            throw serviceFailure(IllegalArgumentException.class);
+          }
+          return toChunks(createTable(1), 0);
+        }
+        if (method.equals("getRowsWithId")) {
+          String rowId = (String) args[3];
+          if (rowId.equals("missing")) {
+            return toChunks(rowsWithId(null, null, null), 0);
+          }
+          if (rowId.equals("conflict")) {
+            return toChunks(rowsWithId(rowId, "COMPLETE", "1"), 0);
+          }
+          if (rowId.equals("checkpoint")) {
+            return toChunks(rowsWithId(rowId, null, null), 0);
+          }
+          return toChunks(rowsWithId(rowId, "COMPLETE", null), 0);
+        }
+        return null;
+      }
+    });
+
+    int[] statuses = wrapper.updateRowsWithIds(APP_NAME, DB_HANDLE, "t", values(5, 1),
+        rowIds("changed", "missing", "conflict", "checkpoint", "invalid"), true);
+    assertArrayEquals(new int[] { UserDbInterface.ROW_STATUS_OK,
+        UserDbInterface.ROW_STATUS_NOT_FOUND, UserDbInterface.ROW_STATUS_CONFLICT,
+        UserDbInterface.ROW_STATUS_CONFLICT, UserDbInterface.ROW_STATUS_INVALID }, statuses);
+    // a row is only looked up if changing it failed
+    assertEquals(4, count("getRowsWithId"));
+
+    // the statuses need not be returned, but the rows are still changed
+    calls.clear();
+    assertNull(wrapper.updateRowsWithIds(APP_NAME, DB_HANDLE, "t", values(2, 1),
+        rowIds("changed", "missing"), false));
+    assertEquals(2, count("updateRowWithId"));
+  }
+
+  @Test
+  public void testMetadataIsWrittenFieldWiseOnlyOnceAgreed() throws Exception {
+    final TableMetaDataEntries metadata = createMetadata("t");
+    final int[] negotiated = new int[1];
+    final boolean[] olderService = { false };
+    Service service = new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("negotiateChunkFeatures")) {
+          if (olderService[0]) {
+            throw new NullReply();
+          }
+          negotiated[0] = (Integer) args[0];
+          return negotiated[0];
+        }
+        if (method.equals("getTableMetadata")) {
+          return toChunks(metadata, negotiated[0]);
+        }
+        return null;
+      }
+    };
+
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(service);
+    assertTrue((wrapper.getChunkFeatures() & DbChunk.FEATURE_FIELD_WISE_METADATA) != 0);
+    assertSameMetadata(metadata,
+        wrapper.getTableMetadata(APP_NAME, DB_HANDLE, "t", null, null, null));
+    assertTrue(payloadSize(metadata, negotiated[0])
+        < payloadSize(metadata, negotiated[0] & ~DbChunk.FEATURE_FIELD_WISE_METADATA));
+
+    // an older service agrees to no features, and serializes the entries
+    olderService[0] = true;
+    negotiated[0] = 0;
+    wrapper = wrap(service);
+    assertEquals(0, wrapper.getChunkFeatures());
+    assertSameMetadata(metadata,
+        wrapper.getTableMetadata(APP_NAME, DB_HANDLE, "t", null, null, null));
+  }
+
+  @Test
+  public void testTableInfosInOneCall() throws Exception {
+    final int[] negotiated = new int[1];
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        if (method.equals("negotiateChunkFeatures")) {
+          negotiated[0] = (Integer) args[0];
+          return negotiated[0];
+        }
+        if (method.equals("getTableInfos")) {
+          List<TableInfo> tableInfos = new ArrayList<>();
+          tableInfos.add(createTableInfo("a"));
+          tableInfos.add(createTableInfo("b"));
+          return toChunks(new TableInfoList(tableInfos), negotiated[0]);
+        }
+        return null;
+      }
+    });
+
+    calls.clear();
+    List<TableInfo> tableInfos = wrapper.getTableInfos(APP_NAME, DB_HANDLE, null);
+    assertEquals(Arrays.asList("a", "b"), tableIdsOf(tableInfos));
+    assertEquals("rev", tableInfos.get(1).getDefinitionEntry().getRevId());
+    assertSameMetadata(createMetadata("b"), tableInfos.get(1).getMetadata());
+    assertEquals(1, count("getTableInfos"));
+    assertEquals(0, count("getTableDefinitionEntry"));
+    assertEquals(0, count("getUserDefinedColumns"));
+    assertEquals(0, count("getTableMetadata"));
+  }
+
+  @Test
+  public void testTableInfosFallBackToOneTableAtATime() throws Exception {
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = wrap(new Service() {
+      @Override
+      public Object call(String method, Object[] args) throws Exception {
+        // an older service agrees to no features and has no getTableInfos()
+        if (method.equals("negotiateChunkFeatures") || method.equals("getTableInfos")) {
+          throw new NullReply();
+        }
+        if (method.equals("getAllTableIds")) {
+          ArrayList<String> tableIds = new ArrayList<>(Arrays.asList("a", "b", "c"));
+          return DbChunkUtil.convertToChunks(tableIds, 256).get(0);
+        }
+        if (method.equals("getTableDefinitionEntry")) {
+          return toChunks(createTableInfo((String) args[2]).getDefinitionEntry(), 0);
+        }
+        if (method.equals("getUserDefinedColumns")) {
+          return toChunks(createTableInfo((String) args[2]).getColumns(), 0);
+        }
+        if (method.equals("getTableMetadata")) {
+          // serialized, as an older service writes it
+          return toChunks(createMetadata((String) args[2]), 0);
+        }
+        return null;
+      }
+    });
+
+    calls.clear();
+    List<TableInfo> tableInfos = wrapper.getTableInfos(APP_NAME, DB_HANDLE,
+        Arrays.asList("c", "missing", "a"));
+    assertEquals(Arrays.asList("c", "a"), tableIdsOf(tableInfos));
+    assertEquals("rev", tableInfos.get(0).getDefinitionEntry().getRevId());
+    assertEquals("a", tableInfos.get(1).getColumns().getTableId());
+    assertSameMetadata(createMetadata("a"), tableInfos.get(1).getMetadata());
+    // the tables that exist are found with one call rather than one per table
+    assertEquals(1, count("getTableInfos"));
+    assertEquals(1, count("getAllTableIds"));
+    assertEquals(0, count("hasTableId"));
+    assertEquals(2, count("getTableDefinitionEntry"));
+    assertEquals(2, count("getUserDefinedColumns"));
+    assertEquals(2, count("getTableMetadata"));
+
+    // the wrapper remembers that the service does not implement getTableInfos()
+    calls.clear();
+    assertEquals(Arrays.asList("a", "b", "c"),
+        tableIdsOf(wrapper.getTableInfos(APP_NAME, DB_HANDLE, null)));
+    assertEquals(0, count("getTableInfos"));
+    assertEquals(1, count("getAllTableIds"));
+    assertEquals(3, count("getTableDefinitionEntry"));
+    assertEquals(3, count("getUserDefinedColumns"));
+    assertEquals(3, count("getTableMetadata"));
+  }
+}
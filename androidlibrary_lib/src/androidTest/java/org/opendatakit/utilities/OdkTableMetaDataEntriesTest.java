@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class OdkTableMetaDataEntriesTest {
+
+  private static final String TABLE_ID = "tableId";
+  private static final String REV_ID = "revId";
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  private static KeyValueStoreEntry entry(String tableId, String partition, String aspect,
+      String key, String value) {
+    KeyValueStoreEntry e = new KeyValueStoreEntry();
+    e.tableId = tableId;
+    e.partition = partition;
+    e.aspect = aspect;
+    e.key = key;
+    e.type = "string";
+    e.value = value;
+    return e;
+  }
+
+  private static TableMetaDataEntries testEntries() {
+    TableMetaDataEntries entries = new TableMetaDataEntries(TABLE_ID, REV_ID);
+    entries.addEntry(entry(TABLE_ID, "Table", "default", "displayName", "\"Name\""));
+    entries.addEntry(entry(TABLE_ID, "Table", "default", "defaultViewType", "SPREADSHEET"));
+    entries.addEntry(entry(TABLE_ID, "Column", "col1", "displayName", "\"Col 1\""));
+    entries.addEntry(entry(TABLE_ID, "Column", "col1", "displayVisible", "true"));
+    entries.addEntry(entry(TABLE_ID, "Column", "col2", "displayName", null));
+    entries.addEntry(entry("otherTable", "Table", "default", "displayName", "\u00e9\u4e2d"));
+    return entries;
+  }
+
+  private static TableMetaDataEntries parcelAndRead(TableMetaDataEntries entries, int flags) {
+    Parcel p = Parcel.obtain();
+    entries.writeToParcel(p, flags);
+    byte[] bytes = p.marshall();
+    p.recycle();
+
+    p = Parcel.obtain();
+    p.unmarshall(bytes, 0, bytes.length);
+    p.setDataPosition(0);
+
+    TableMetaDataEntries t = TableMetaDataEntries.CREATOR.createFromParcel(p);
+    p.recycle();
+    return t;
+  }
+
+  private static int parcelSize(TableMetaDataEntries entries, int flags) {
+    Parcel p = Parcel.obtain();
+    entries.writeToParcel(p, flags);
+    int size = p.marshall().length;
+    p.recycle();
+    return size;
+  }
+
+  @Test
+  public void testParcelation() {
+    TableMetaDataEntries entries = testEntries();
+
+    // serialized, as an older reader expects, and field by field once agreed upon
+    for (int flags : new int[] { 0, TableMetaDataEntries.PARCELABLE_WRITE_FIELD_WISE }) {
+      TableMetaDataEntries t = parcelAndRead(entries, flags);
+
+      assertEquals(TABLE_ID, t.getTableId());
+      assertEquals(REV_ID, t.getRevId());
+      assertEquals(entries.getEntries().size(), t.getEntries().size());
+      for (int i = 0; i < entries.getEntries().size(); ++i) {
+        KeyValueStoreEntry expected = entries.getEntries().get(i);
+        KeyValueStoreEntry actual = t.getEntries().get(i);
+        assertEquals(expected, actual);
+        assertEquals(expected.tableId, actual.tableId);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.value, actual.value);
+      }
+    }
+
+    assertTrue(parcelSize(entries, TableMetaDataEntries.PARCELABLE_WRITE_FIELD_WISE)
+        < parcelSize(entries, 0));
+  }
+
+  @Test
+  public void testEmptyParcelation() {
+    TableMetaDataEntries entries = new TableMetaDataEntries(null, null);
+
+    Parcel p = Parcel.obtain();
+    entries.writeToParcel(p, 0);
+    p.setDataPosition(0);
+    TableMetaDataEntries t = TableMetaDataEntries.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    assertNull(t.getTableId());
+    assertNull(t.getRevId());
+    assertEquals(0, t.getEntries().size());
+  }
+
+  @Test
+  public void testFilter() {
+    TableMetaDataEntries entries = testEntries();
+
+    assertEquals(6, entries.filter(null, null, null).getEntries().size());
+    assertEquals(3, entries.filter("Table", null, null).getEntries().size());
+    assertEquals(2, entries.filter("Column", "col1", null).getEntries().size());
+    assertEquals(0, entries.filter("Column", "col3", null).getEntries().size());
+    assertEquals(2, entries.filter("Table", null, "displayName").getEntries().size());
+    assertEquals(4, entries.filter(null, null, "displayName").getEntries().size());
+
+    TableMetaDataEntries filtered = entries.filter("Column", "col1", "displayVisible");
+    assertEquals(REV_ID, filtered.getRevId());
+    assertEquals(1, filtered.getEntries().size());
+    assertEquals("true", filtered.getEntries().get(0).value);
+
+    // in the order they were added
+    List<KeyValueStoreEntry> columns = entries.getEntries("Column", null, null);
+    assertEquals("col1", columns.get(0).aspect);
+    assertEquals("displayVisible", columns.get(1).key);
+    assertEquals("col2", columns.get(2).aspect);
+
+    // changes are seen by later lookups
+    entries.addEntry(entry(TABLE_ID, "Column", "col1", "width", "100"));
+    assertEquals(3, entries.getEntries("Column", "col1", null).size());
+  }
+}
@@ -36,11 +36,13 @@ import org.opendatakit.provider.DataTableColumns;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeMap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -920,6 +922,9 @@ public class UserTableTest {
     assertEquals(0, t.getRowNumFromId(INSTANCE_ID_1));
     assertEquals(1, table.getRowNumFromId(INSTANCE_ID_2));
     assertEquals(1, t.getRowNumFromId(INSTANCE_ID_2));
+    assertEquals(-1, t.getRowNumFromId("not a row id"));
+    assertArrayEquals(new int[] { 1, 0, -1 },
+        t.getRowIndicesForIds(Arrays.asList(INSTANCE_ID_2, INSTANCE_ID_1, "not a row id")));
     Row rat1 = table.getRowAtIndex(0);
     Row rat2 = table.getRowAtIndex(1);
     Row rbt1 = t.getRowAtIndex(0);
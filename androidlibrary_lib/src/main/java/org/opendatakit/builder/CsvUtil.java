@@ -26,13 +26,17 @@ import org.opendatakit.aggregate.odktables.rest.RFC4180CsvWriter;
 import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.SimpleQuery;
 import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.RowStream;
+import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.listener.ExportListener;
@@ -68,6 +72,16 @@ public class CsvUtil {
 
   private static final String TAG = CsvUtil.class.getSimpleName();
 
+  /**
+   * The number of new rows importSeparable() collects before inserting them
+   */
+  private static final int IMPORT_BATCH_SIZE = 500;
+
+  /**
+   * The number of rows exportSeparable() fetches from the database at a time
+   */
+  private static final int EXPORT_PAGE_SIZE = 500;
+
   private final String appName;
 
   private final CsvUtilSupervisor supervisor;
@@ -96,9 +110,12 @@ public class CsvUtil {
    * <li>tableid.properties.csv - key-value store of this table</li>
    * </ul>
    * <p>
+   * The rows are fetched and written a page at a time, so a table of any size can be
+   * exported without holding all of it in memory.
+   * <p>
    * Used in ExportTask
    *
-   * @param exportListener We send it progress updates
+   * @param exportListener We send it progress updates, as the number of rows written
    * @param db             the database handle
    * @param tableId        the id of the table to export
    * @param orderedDefns   a list of the columns in the table
@@ -155,6 +172,7 @@ public class CsvUtil {
     }
 
     OutputStreamWriter output = null;
+    RowStream stream = null;
     File outputCsv = null;
     try {
       // both files go under the output/csv directory...
@@ -180,11 +198,25 @@ public class CsvUtil {
               .toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES) + ")";
 
       BindArgs emptyArgs = new BindArgs(new Object[0]);
-      String[] emptyArray = new String[0];
 
-      UserTable table = supervisor.getDatabase()
-          .simpleQuery(appName, db, tableId, orderedDefns, whereString, emptyArgs, emptyArray, null,
-              null, null, null, null);
+      // only used to report progress; rows are streamed so the table is never held at once
+      BaseTable countTable = supervisor.getDatabase()
+          .arbitrarySqlQuery(appName, db, tableId,
+              "SELECT COUNT(*) FROM " + tableId + " WHERE " + whereString, emptyArgs, null,
+              null);
+      int total = Integer.parseInt(countTable.getRowAtIndex(0).getDataByIndex(0));
+
+      // page by the row id rather than by offset, so that each page continues after the
+      // last row written even if other rows are inserted or deleted meanwhile, and so that
+      // fetching a page does not cost more the further into the table it is. The
+      // whereString leaves out checkpoints and the server copy of conflicts, so the _id is
+      // unique here already, but the savepoint timestamp keeps the keys unique regardless.
+      SimpleQuery query = new SimpleQuery(tableId, emptyArgs, whereString, null, null,
+          new String[] { DataTableColumns.ID, DataTableColumns.SAVEPOINT_TIMESTAMP },
+          new String[] { "ASC", "ASC" }, null, null);
+      query.setKeysetPaging(true);
+      stream = supervisor.getDatabase()
+          .streamQuery(appName, db, query, EXPORT_PAGE_SIZE, null);
 
       // emit data table...
       File file = new File(outputCsv,
@@ -196,20 +228,21 @@ public class CsvUtil {
       // don't have to worry about quotes in elementKeys...
       cw.writeNext(columns.toArray(new String[columns.size()]));
       String[] row = new String[columns.size()];
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        exportListener.updateProgressDetail(i, table.getNumberOfRows());
-        Row dataRow = table.getRowAtIndex(i);
+      int rowsWritten = 0;
+      for (Row dataRow : stream) {
         for (int j = 0; j < columns.size(); ++j) {
           row[j] = dataRow.getDataByKey(columns.get(j));
         }
         cw.writeNext(row);
+        ++rowsWritten;
+        exportListener.updateProgressDetail(rowsWritten, Math.max(rowsWritten, total));
         /*
          * Copy all attachment files into the output directory tree.
          * Don't worry about whether they are referenced in the current
          * row. This is a simplification (and biases toward preserving
          * data).
          */
-        String instanceId = table.getRowId(i);
+        String instanceId = dataRow.getDataByKey(DataTableColumns.ID);
         File tableInstanceFolder = new File(
             ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
         if (instancesWithData.contains(tableInstanceFolder)) {
@@ -228,18 +261,16 @@ public class CsvUtil {
 
       return true;
     } catch (IOException ignored) {
-      try {
-        File outputCsvFolder = new File(ODKFileUtils.getOutputCsvFolder(appName));
-        while (ODKFileUtils.directoryContains(outputCsvFolder, outputCsv)) {
-          ODKFileUtils.deleteDirectory(outputCsv);
-          outputCsv = outputCsv.getParentFile();
-        }
-      } catch (IOException e1) {
-        WebLogger.getLogger(appName).printStackTrace(e1);
-        return false;
-      }
+      deleteOutputCsv(outputCsv);
       return false;
+    } catch (RowStream.PageFetchException e) {
+      // don't leave a partial export behind
+      deleteOutputCsv(outputCsv);
+      throw e.getCause();
     } finally {
+      if (stream != null) {
+        stream.close();
+      }
       try {
         if (output != null) {
           output.close();
@@ -250,6 +281,23 @@ public class CsvUtil {
     }
   }
 
+  /**
+   * Remove what exportSeparable() wrote to the output csv directory after it failed
+   *
+   * @param outputCsv the directory the data table was being written to
+   */
+  private void deleteOutputCsv(File outputCsv) {
+    try {
+      File outputCsvFolder = new File(ODKFileUtils.getOutputCsvFolder(appName));
+      while (ODKFileUtils.directoryContains(outputCsvFolder, outputCsv)) {
+        ODKFileUtils.deleteDirectory(outputCsv);
+        outputCsv = outputCsv.getParentFile();
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+
   /**
    * Common routine to write the definition and properties files.
    * Writes the definition and properties files for the given tableId. This is
@@ -306,6 +354,48 @@ public class CsvUtil {
             propertiesCsv);
   }
 
+  /**
+   * Insert the rows collected by importSeparable() and clear the lists
+   *
+   * @param db        the database handle
+   * @param tableId   the table to insert the rows into
+   * @param cvValues  the values of each row
+   * @param rowIds    the rowId of each row
+   * @throws ServicesAvailabilityException if the database is down
+   * @throws IllegalArgumentException if any of the rows could not be inserted, as
+   *                                  privilegedInsertRowWithId() does for a single row. The
+   *                                  other rows of the batch are still inserted.
+   */
+  private void insertPendingRows(DbHandle db, String tableId, List<ContentValues> cvValues,
+      List<String> rowIds) throws ServicesAvailabilityException {
+    if (rowIds.isEmpty()) {
+      return;
+    }
+    // imports assume super-user level powers. Treat these as if they were
+    // directed by the server during a sync.
+    int[] statuses = supervisor.getDatabase()
+        .privilegedInsertRowsWithIds(appName, db, tableId, cvValues, rowIds, true);
+    String failedRowId = null;
+    int failedStatus = UserDbInterface.ROW_STATUS_OK;
+    for (int i = 0; i < statuses.length; ++i) {
+      if (statuses[i] != UserDbInterface.ROW_STATUS_OK) {
+        WebLogger.getLogger(appName).e(TAG,
+            "importSeparable: tableId: " + tableId + " rowId: " + rowIds.get(i) +
+                " could not be inserted (status " + statuses[i] + ")");
+        if (failedRowId == null) {
+          failedRowId = rowIds.get(i);
+          failedStatus = statuses[i];
+        }
+      }
+    }
+    cvValues.clear();
+    rowIds.clear();
+    if (failedRowId != null) {
+      throw new IllegalArgumentException("importSeparable: tableId: " + tableId + " rowId: " +
+          failedRowId + " could not be inserted (status " + failedStatus + ")");
+    }
+  }
+
   /**
    * Returns the index of the last non-null element in the row. So [1, 2, 3, null, null] would
    * return 3, but so would [null, null, 3, null, null] and [1, 2, 3] and [null, null, 3]
@@ -487,6 +577,11 @@ public class CsvUtil {
 
         HashMap<String, String> valueMap = new HashMap<>();
 
+        // new rows are inserted in batches rather than one at a time
+        List<ContentValues> pendingValues = new ArrayList<>();
+        List<String> pendingRowIds = new ArrayList<>();
+        HashSet<String> pendingRowIdSet = new HashSet<>();
+
         int rowCount = 0;
         String[] row;
         while (true) {
@@ -604,6 +699,12 @@ public class CsvUtil {
             }
           }
 
+          // a row that appears again must see the earlier one in the database
+          if (pendingRowIdSet.contains(v_id)) {
+            insertPendingRows(db, tableId, pendingValues, pendingRowIds);
+            pendingRowIdSet.clear();
+          }
+
           // if there are any conflicts or checkpoints on this row, we do not import
           // this row change. Instead, silently ignore them.
           UserTable table = supervisor.getDatabase()
@@ -708,8 +809,13 @@ public class CsvUtil {
 
             // imports assume super-user level powers. Treat these as if they were
             // directed by the server during a sync.
-            supervisor.getDatabase()
-                .privilegedInsertRowWithId(appName, db, tableId, orderedDefns, cv, v_id, true);
+            pendingValues.add(cv);
+            pendingRowIds.add(v_id);
+            pendingRowIdSet.add(v_id);
+            if (pendingRowIds.size() >= IMPORT_BATCH_SIZE) {
+              insertPendingRows(db, tableId, pendingValues, pendingRowIds);
+              pendingRowIdSet.clear();
+            }
           }
 
           /*
@@ -731,6 +837,7 @@ public class CsvUtil {
 
         }
         cr.close();
+        insertPendingRows(db, tableId, pendingValues, pendingRowIds);
         return true;
       } catch (IOException ignored) {
         return false;
@@ -17,17 +17,28 @@ package org.opendatakit.database.data;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.queries.BindArgs;
-import org.opendatakit.database.queries.QueryBounds;
 import org.opendatakit.database.queries.ResumableQuery;
 import org.opendatakit.database.utilities.MarshallUtil;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 /**
  * This is the generic parent table used inside the service. All other table objects should
  * inherit from this one
+ * <p>
+ * The rows of a table may be read from several threads at once. The state that is built
+ * lazily as rows are read (decoded rows, parsed values, the row id index and the row
+ * health summary) is guarded by the table's lock. Adding rows while other threads read the
+ * table is not supported, as the rows are held in an unsynchronized list.
  */
 public class BaseTable implements Parcelable {
 
@@ -40,12 +51,97 @@ public class BaseTable implements Parcelable {
       return new BaseTable[size];
     }
   };
+  /**
+   * writeToParcel() flag: write the rows column by column, with dictionary encoding of the
+   * columns that have few distinct values. Only pass this if the reader is known to
+   * understand it (see DbChunk.FEATURE_DICTIONARY_ENCODING).
+   */
+  public static final int PARCELABLE_WRITE_DICTIONARY_ENCODED = 0x10000;
+  /**
+   * writeToParcel() flag: include the row health summary, so that the reader need not
+   * compute it. Only pass this if the reader is known to understand it (see
+   * DbChunk.FEATURE_HEALTH_SUMMARY).
+   */
+  public static final int PARCELABLE_WRITE_HEALTH_SUMMARY = 0x20000;
+  /**
+   * writeToParcel() flag: write the rows as a single encoded buffer with the offset of each
+   * row, so that the reader can decode rows as they are asked for. Combined with
+   * PARCELABLE_WRITE_DICTIONARY_ENCODED, the columns that have few distinct values are
+   * dictionary encoded within that buffer. Only pass this if the reader is known to
+   * understand it (see DbChunk.FEATURE_INDEXED_ROWS).
+   */
+  public static final int PARCELABLE_WRITE_INDEXED_ROWS = 0x40000;
+  /**
+   * getHealthSummary() bits
+   */
+  public static final int HEALTH_HAS_CHECKPOINT_ROWS = 0x1;
+  public static final int HEALTH_HAS_CONFLICT_ROWS = 0x2;
+  /**
+   * getRowFlags() bits: the row is a checkpoint (its _savepoint_type is null or empty), and
+   * the row is in conflict (its _conflict_type is not null or empty)
+   */
+  public static final byte ROW_FLAG_CHECKPOINT = 0x1;
+  public static final byte ROW_FLAG_CONFLICT = 0x2;
   private static final String TAG = BaseTable.class.getSimpleName();
+  /**
+   * Written in place of the row count to mark rows that are written column by column
+   */
+  private static final int COLUMN_MAJOR_ROWS = -1;
+  /**
+   * Written in place of the row count to mark that the row health summary comes first
+   */
+  private static final int HEALTH_SUMMARY = -2;
+  /**
+   * Written in place of the row count to mark that the rows are in the indexed format
+   */
+  private static final int INDEXED_ROWS = -3;
+  /**
+   * Written in place of the row count to mark that the rows are in the indexed format, with
+   * dictionary encoding
+   */
+  private static final int DICTIONARY_INDEXED_ROWS = -4;
+  /**
+   * How each column of column major rows is encoded
+   */
+  private static final byte COLUMN_PLAIN = 0;
+  private static final byte COLUMN_DICTIONARY = 1;
+  /**
+   * Tables that are unmarshalled with at least this many rows are stored by column
+   */
+  private static final int COLUMNAR_ROW_THRESHOLD = 500;
   /**
    * These eight properties all have getters and setters, so I'm making them private - 06/23/17
-   * The table data
+   * The table data. Null if the table is stored by column or its rows are still encoded.
+   */
+  private ArrayList<Row> mRows;
+  /**
+   * The table data, one vector per column, if the table is stored by column. The Row
+   * objects are then views that are created each time they are asked for. The vectors are
+   * not changed once the table has been read; adding a row converts the table to rows.
+   */
+  private ColumnVector[] mColumns = null;
+  /**
+   * The table data, if it was received in the indexed format and no rows have been added.
+   * Rows are decoded when they are asked for.
+   */
+  private EncodedRows mEncodedRows = null;
+  /**
+   * The parsed values of the cells, one cache per column, created as the typed accessors
+   * of Row ask for them. Guarded by this table's lock, as is everything the caches hold.
    */
-  private final ArrayList<Row> mRows;
+  private ParsedColumnCache[] mParsedColumns = null;
+  /**
+   * Map row ids to the index of the (first) row with that id. Built the first time a row
+   * is looked up by id, then kept up to date as rows are added. Guarded by this table's
+   * lock.
+   */
+  private Map<String, Integer> mRowIdToIndex = null;
+  /**
+   * The checkpoint, conflict and sync state of the rows. Computed the first time it is
+   * asked for (unless it was unmarshalled), then kept up to date as rows are added.
+   * Guarded by this table's lock.
+   */
+  private RowHealthSummary mHealthSummary = null;
   /**
    * The fields that make up the primary key
    */
@@ -135,6 +231,88 @@ public class BaseTable implements Parcelable {
     mWrapper = null; // Set this with register
   }
 
+  /**
+   * Construct an independent copy of a table. The copy has its own query, so resuming it
+   * does not move the original, and its own rows, so the two may be used on different
+   * threads. The wrapper table is not copied.
+   *
+   * @param table the table to copy
+   */
+  public BaseTable(BaseTable table) {
+    int rowCount = table.getNumberOfRows();
+    mRows = new ArrayList<>(rowCount);
+    for (int i = 0; i < rowCount; ++i) {
+      Row r = table.getRowAtIndex(i);
+      String[] rowData = new String[r.getDataCount()];
+      for (int j = 0; j < rowData.length; ++j) {
+        rowData[j] = r.getDataByIndex(j);
+      }
+      //noinspection ThisEscapedInObjectConstruction
+      appendRow(new Row(rowData, this));
+    }
+
+    mEffectiveAccessCreateRow = table.mEffectiveAccessCreateRow;
+    mQuery = copyQuery(table.mQuery);
+    mPrimaryKey = table.mPrimaryKey;
+    mElementKeyForIndex = table.mElementKeyForIndex;
+    mElementKeyToIndex = table.mElementKeyToIndex;
+    mWrapper = null; // Set this with register
+  }
+
+  private BaseTable(BaseTable table, ArrayList<Row> rows, EncodedRows encodedRows,
+      ColumnVector[] columns) {
+    mRows = rows;
+    mEncodedRows = encodedRows;
+    mColumns = columns;
+
+    mEffectiveAccessCreateRow = table.mEffectiveAccessCreateRow;
+    mQuery = null;
+    mPrimaryKey = table.mPrimaryKey;
+    mElementKeyForIndex = table.mElementKeyForIndex;
+    mElementKeyToIndex = table.mElementKeyToIndex;
+    mWrapper = null; // Set this with register
+  }
+
+  /**
+   * Return a table with the same rows as another that shares them rather than copying them,
+   * so that rows that are still encoded are not decoded and a table stored by column stays
+   * so. Adding a row to either table does not change the other. The query and the wrapper
+   * table are not shared. Used by the query result cache.
+   *
+   * @param table the table whose rows to share
+   * @return a new table sharing the rows
+   */
+  public static BaseTable shareRows(BaseTable table) {
+    synchronized (table) {
+      ArrayList<Row> rows = null;
+      if (table.mEncodedRows == null && table.mColumns == null) {
+        rows = new ArrayList<>(table.mRows);
+      }
+      return new BaseTable(table, rows, table.mEncodedRows, table.mColumns);
+    }
+  }
+
+  /**
+   * @param query the query to copy, or null
+   * @return a copy of the query, made through its serialized form
+   */
+  private static ResumableQuery copyQuery(ResumableQuery query) {
+    if (query == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(query);
+      out.close();
+      ObjectInputStream in = new ObjectInputStream(
+          new ByteArrayInputStream(bytes.toByteArray()));
+      return (ResumableQuery) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("unable to copy the query: " + e.toString());
+    }
+  }
+
   public BaseTable(Parcel in) {
     int dataCount;
 
@@ -150,12 +328,29 @@ public class BaseTable implements Parcelable {
       throw t;
     }
 
+    RowHealthSummary healthSummary = null;
     dataCount = in.readInt();
-    mRows = new ArrayList<>(dataCount);
-    for (; dataCount > 0; dataCount--) {
-      //noinspection ThisEscapedInObjectConstruction
-      Row r = new Row(in, this);
-      mRows.add(r);
+    if (dataCount == HEALTH_SUMMARY) {
+      healthSummary = RowHealthSummary.readFromParcel(in);
+      dataCount = in.readInt();
+    }
+    if (dataCount == INDEXED_ROWS || dataCount == DICTIONARY_INDEXED_ROWS) {
+      mEncodedRows = EncodedRows.readFromParcel(in, dataCount == DICTIONARY_INDEXED_ROWS);
+    } else if (dataCount == COLUMN_MAJOR_ROWS) {
+      readColumnMajorRows(in);
+    } else if (dataCount >= COLUMNAR_ROW_THRESHOLD && mElementKeyForIndex.length > 0) {
+      readColumnarRows(in, dataCount);
+    } else {
+      mRows = new ArrayList<>(dataCount);
+      for (; dataCount > 0; dataCount--) {
+        //noinspection ThisEscapedInObjectConstruction
+        Row r = new Row(in, this);
+        appendRow(r);
+      }
+    }
+
+    if (healthSummary != null && healthSummary.size() == getNumberOfRows()) {
+      mHealthSummary = healthSummary;
     }
 
     // The parent and the query are not parceled
@@ -163,6 +358,445 @@ public class BaseTable implements Parcelable {
     mQuery = null;
   }
 
+  /**
+   * Read the marshalled rows straight into column vectors, without creating a Row or a
+   * String[] for each of them.
+   *
+   * @param in       the marshalled rows, in the format written by Row.writeToParcel()
+   * @param rowCount the number of rows
+   */
+  private void readColumnarRows(Parcel in, int rowCount) {
+    int width = mElementKeyForIndex.length;
+    mColumns = new ColumnVector[width];
+    for (int i = 0; i < width; ++i) {
+      mColumns[i] = new ColumnVector(rowCount);
+    }
+
+    String[] rowData = new String[width];
+    for (int remaining = rowCount; remaining > 0; remaining--) {
+      int dataCount = in.readInt();
+      if (mColumns != null && dataCount != width) {
+        // a row that does not match the columns of the table cannot be stored by column
+        convertToRows(rowCount);
+      }
+      if (mColumns == null) {
+        String[] data = new String[dataCount];
+        in.readStringArray(data);
+        appendRow(new Row(data, this));
+      } else {
+        in.readStringArray(rowData);
+        for (int i = 0; i < width; ++i) {
+          mColumns[i].add(rowData[i]);
+        }
+      }
+    }
+
+    if (mColumns != null) {
+      for (ColumnVector column : mColumns) {
+        column.compact();
+      }
+    }
+  }
+
+  /**
+   * Read rows written by writeColumnMajorRows(). Each distinct value of a dictionary
+   * encoded column is a single shared String.
+   *
+   * @param in the marshalled rows
+   */
+  private void readColumnMajorRows(Parcel in) {
+    int rowCount = in.readInt();
+    int width = mElementKeyForIndex.length;
+
+    String[][] rowData = null;
+    if (rowCount >= COLUMNAR_ROW_THRESHOLD && width > 0) {
+      mColumns = new ColumnVector[width];
+    } else {
+      rowData = new String[rowCount][width];
+    }
+
+    for (int i = 0; i < width; ++i) {
+      String[] dictionary = null;
+      if (in.readByte() == COLUMN_DICTIONARY) {
+        dictionary = new String[in.readInt()];
+        for (int j = 0; j < dictionary.length; ++j) {
+          dictionary[j] = in.readString();
+        }
+      }
+
+      ColumnVector column = null;
+      if (mColumns != null) {
+        column = new ColumnVector(rowCount);
+        mColumns[i] = column;
+      }
+
+      for (int row = 0; row < rowCount; ++row) {
+        String value;
+        if (dictionary == null) {
+          value = in.readString();
+        } else {
+          int code = in.readInt();
+          if (code < -1 || code >= dictionary.length) {
+            throw new IllegalArgumentException("invalid dictionary code");
+          }
+          value = (code == -1) ? null : dictionary[code];
+        }
+
+        if (column != null) {
+          column.add(value);
+        } else {
+          rowData[row][i] = value;
+        }
+      }
+
+      if (column != null) {
+        column.compact();
+      }
+    }
+
+    if (mColumns == null) {
+      mRows = new ArrayList<>(rowCount);
+      for (int row = 0; row < rowCount; ++row) {
+        appendRow(new Row(rowData[row], this));
+      }
+    }
+  }
+
+  /**
+   * Write the rows column by column. A column with at most one distinct value for every
+   * two rows is written as a dictionary of its distinct values followed by the index of
+   * each row's value in that dictionary (-1 for null).
+   *
+   * @param out the parcel to write to
+   */
+  private void writeColumnMajorRows(Parcel out) {
+    int rowCount = getNumberOfRows();
+    out.writeInt(rowCount);
+
+    for (int i = 0; i < mElementKeyForIndex.length; ++i) {
+      Map<String, Integer> dictionary = buildDictionary(i, rowCount);
+      if (dictionary == null) {
+        out.writeByte(COLUMN_PLAIN);
+        for (int row = 0; row < rowCount; ++row) {
+          out.writeString(getCell(row, i));
+        }
+      } else {
+        out.writeByte(COLUMN_DICTIONARY);
+        out.writeInt(dictionary.size());
+        for (String value : dictionary.keySet()) {
+          out.writeString(value);
+        }
+        for (int row = 0; row < rowCount; ++row) {
+          String value = getCell(row, i);
+          out.writeInt((value == null) ? -1 : dictionary.get(value));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param cellIndex the column
+   * @param rowCount  the number of rows
+   * @return the distinct values of the column, in order of first appearance, mapped to
+   * their position in that order; null if there are too many to be worth encoding
+   */
+  private Map<String, Integer> buildDictionary(int cellIndex, int rowCount) {
+    int maxSize = rowCount / 2;
+    Map<String, Integer> dictionary = new LinkedHashMap<>();
+    for (int row = 0; row < rowCount; ++row) {
+      String value = getCell(row, cellIndex);
+      if (value != null && !dictionary.containsKey(value)) {
+        if (dictionary.size() == maxSize) {
+          return null;
+        }
+        dictionary.put(value, dictionary.size());
+      }
+    }
+    return dictionary;
+  }
+
+  /**
+   * @return true if every row has a value for each column of the table, as the column
+   * major format requires
+   */
+  private boolean hasUniformRows() {
+    if (mColumns != null) {
+      return true;
+    }
+    if (mEncodedRows != null) {
+      for (int i = 0; i < mEncodedRows.size(); ++i) {
+        if (mEncodedRows.getWidth(i) != mElementKeyForIndex.length) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (Row row : mRows) {
+      if (row.getDataCount() != mElementKeyForIndex.length) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param rowIndex   the row
+   * @param elementKey the column
+   * @return the value of that cell, or null if there is no such column in the row
+   */
+  private String getCellByKey(int rowIndex, String elementKey) {
+    Integer cellIndex = mElementKeyToIndex.get(elementKey);
+    if (cellIndex == null) {
+      return null;
+    }
+    ColumnVector[] columns = mColumns;
+    if (columns != null) {
+      return columns[cellIndex].getValue(rowIndex);
+    }
+    Row row = getRowAtIndex(rowIndex);
+    return (cellIndex < row.getDataCount()) ? row.getDataByIndex(cellIndex) : null;
+  }
+
+  private String getCell(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns != null) {
+      return columns[cellIndex].getValue(rowIndex);
+    }
+    return getRowAtIndex(rowIndex).getDataByIndex(cellIndex);
+  }
+
+  /**
+   * Decode all of the rows that are still encoded, so that rows can be added
+   */
+  private void decodeRows() {
+    int rowCount = mEncodedRows.size();
+    ArrayList<Row> rows = new ArrayList<>(rowCount + 1);
+    for (int i = 0; i < rowCount; ++i) {
+      rows.add(mEncodedRows.getRow(i, this));
+    }
+    mEncodedRows = null;
+    mRows = rows;
+  }
+
+  /**
+   * Tables received in the indexed format keep their rows encoded and decode each row the
+   * first time it is asked for, so that showing the first rows of a large result does not
+   * wait on decoding all of it. Adding a row decodes the remaining rows.
+   *
+   * @return true if the rows of the table are decoded as they are asked for
+   */
+  public boolean isDecodedOnDemand() {
+    return mEncodedRows != null;
+  }
+
+  /**
+   * Limit the number of decoded rows a table that isDecodedOnDemand() keeps, to bound its
+   * memory use when a large table is scrolled through. Rows that are dropped are decoded
+   * again (as a new Row) the next time they are asked for. Has no effect on other tables.
+   *
+   * @param maxDecodedRows the number of most recently used rows to keep; 0 to keep all
+   */
+  public void setMaxDecodedRows(int maxDecodedRows) {
+    if (mEncodedRows != null) {
+      mEncodedRows.setMaxDecodedRows(maxDecodedRows);
+    }
+  }
+
+  /**
+   * Stop storing the table by column, creating a Row for each row read so far. Views that
+   * were already handed out keep working: they then read from these rows.
+   *
+   * @param capacity the expected number of rows
+   */
+  private synchronized void convertToRows(int capacity) {
+    int rowCount = getNumberOfRows();
+    ArrayList<Row> rows = new ArrayList<>(Math.max(capacity, rowCount));
+    for (int i = 0; i < rowCount; ++i) {
+      String[] data = new String[mColumns.length];
+      for (int j = 0; j < data.length; ++j) {
+        data[j] = mColumns[j].getValue(i);
+      }
+      Row row = new Row(data, this);
+      row.setRowIndex(i);
+      rows.add(row);
+    }
+    mRows = rows;
+    mColumns = null;
+  }
+
+  /**
+   * Large tables received from the service are stored by column, which needs far fewer
+   * objects than a Row and a String[] per row; integer and number columns are kept as
+   * primitive values without any Strings at all. Rows of such a table are views that are
+   * created each time they are asked for. Adding a row converts the table to rows.
+   *
+   * @return true if the table is stored by column
+   */
+  public boolean isColumnar() {
+    return mColumns != null;
+  }
+
+  /**
+   * Used by the Row views onto a table that is stored by column. If the table has since
+   * stopped being stored by column, the data is read from the row that replaced the view.
+   *
+   * @param rowIndex  the row
+   * @param cellIndex the column
+   * @return the value of that cell
+   */
+  String getViewData(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns == null) {
+      return mRows.get(rowIndex).getDataByIndex(cellIndex);
+    }
+    return columns[cellIndex].getValue(rowIndex);
+  }
+
+  boolean isViewDataNull(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns == null) {
+      return mRows.get(rowIndex).isNull(cellIndex);
+    }
+    return columns[cellIndex].isNull(rowIndex);
+  }
+
+  boolean getViewDataAsBoolean(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns == null) {
+      return mRows.get(rowIndex).getBoolean(cellIndex);
+    }
+    ColumnVector column = columns[cellIndex];
+    if (column.isNull(rowIndex)) {
+      return false;
+    }
+    if (column.isInteger()) {
+      return column.getLong(rowIndex) != 0L;
+    }
+    return !"0".equals(column.getValue(rowIndex));
+  }
+
+  /**
+   * Used by Row.getLong()
+   *
+   * @param rowIndex  the row
+   * @param cellIndex the column
+   * @return the value of that cell as a long, 0 if it is null
+   */
+  long getCellAsLong(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns != null && columns[cellIndex].isInteger()) {
+      return columns[cellIndex].getLong(rowIndex);
+    }
+    synchronized (this) {
+      ParsedColumnCache cache = getParsedColumnCache(cellIndex);
+      if (!cache.hasLong(rowIndex)) {
+        cache.putLong(rowIndex, parseLong(getCell(rowIndex, cellIndex)));
+      }
+      return cache.getLong(rowIndex);
+    }
+  }
+
+  /**
+   * Used by Row.getDouble()
+   *
+   * @param rowIndex  the row
+   * @param cellIndex the column
+   * @return the value of that cell as a double, 0 if it is null
+   */
+  double getCellAsDouble(int rowIndex, int cellIndex) {
+    ColumnVector[] columns = mColumns;
+    if (columns != null) {
+      ColumnVector column = columns[cellIndex];
+      if (column.isNumber()) {
+        return column.getDouble(rowIndex);
+      }
+      if (column.isInteger()) {
+        return (double) column.getLong(rowIndex);
+      }
+    }
+    synchronized (this) {
+      ParsedColumnCache cache = getParsedColumnCache(cellIndex);
+      if (!cache.hasDouble(rowIndex)) {
+        cache.putDouble(rowIndex, parseDouble(getCell(rowIndex, cellIndex)));
+      }
+      return cache.getDouble(rowIndex);
+    }
+  }
+
+  /**
+   * Used by Row.getDataType() for ArrayList, HashMap and TreeMap
+   *
+   * @param rowIndex  the row
+   * @param cellIndex the column
+   * @param clazz     the class to deserialize to
+   * @return a copy of the memoized deserialization of the cell, or null if it is null
+   */
+  <T> T getCellAsJson(int rowIndex, int cellIndex, Class<T> clazz) {
+    Object value = getCellAsJsonView(rowIndex, cellIndex, clazz);
+    return (value == null) ? null : ParsedColumnCache.copyJsonValue(value, clazz);
+  }
+
+  /**
+   * Used by Row.getJsonArray() and Row.getJsonObject()
+   *
+   * @param rowIndex  the row
+   * @param cellIndex the column
+   * @param clazz     the class to deserialize to
+   * @return the memoized, unmodifiable deserialization of the cell, or null if it is null
+   */
+  Object getCellAsJsonView(int rowIndex, int cellIndex, Class<?> clazz) {
+    String value = getCell(rowIndex, cellIndex);
+    if (value == null) {
+      return null;
+    }
+    try {
+      synchronized (this) {
+        return getParsedColumnCache(cellIndex).getJson(value, clazz);
+      }
+    } catch (IOException e) {
+      // JsonParseException and JsonMappingException extends IOException and will be caught here
+      WebLogger.getLogger(null).printStackTrace(e);
+      throw new IllegalStateException(
+          "Unexpected data type conversion failure " + e + " on SQLite table");
+    }
+  }
+
+  private ParsedColumnCache getParsedColumnCache(int cellIndex) {
+    if (mParsedColumns == null) {
+      mParsedColumns = new ParsedColumnCache[mElementKeyForIndex.length];
+    }
+    ParsedColumnCache cache = mParsedColumns[cellIndex];
+    if (cache == null) {
+      cache = new ParsedColumnCache();
+      mParsedColumns[cellIndex] = cache;
+    }
+    return cache;
+  }
+
+  static long parseLong(String value) {
+    if (value == null) {
+      return 0L;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(
+          "Unexpected data type conversion failure " + e + " on SQLite table");
+    }
+  }
+
+  static double parseDouble(String value) {
+    if (value == null) {
+      return 0.0;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(
+          "Unexpected data type conversion failure " + e + " on SQLite table");
+    }
+  }
+
   /**
    * Used in ExecutorProcessor and UserTable
    *
@@ -197,17 +831,12 @@ public class BaseTable implements Parcelable {
    * @return the start index for the table
    */
   public int getStartIndex() {
-    if (mQuery == null || mQuery.getSqlQueryBounds() == null) {
-      return 0;
-    }
-
-    QueryBounds bounds = mQuery.getSqlQueryBounds();
-
-    if (bounds.mOffset <= 0) {
+    if (mQuery == null) {
       return 0;
     }
 
-    return bounds.mOffset;
+    // Not the offset of the query bounds, which is 0 for a keyset continuation
+    return Math.max(mQuery.getSqlOffset(), 0);
   }
 
   /**
@@ -241,6 +870,7 @@ public class BaseTable implements Parcelable {
 
     mQuery.setSqlLimit(limit);
     mQuery.setSqlOffset(getEndIndex() + 1);
+    continueByKeyset(numCurrentRows - 1, true);
 
     return mQuery;
   }
@@ -277,15 +907,180 @@ public class BaseTable implements Parcelable {
 
     mQuery.setSqlLimit(limit);
     mQuery.setSqlOffset(startIndex - limit);
+    if (getNumberOfRows() != 0) {
+      continueByKeyset(0, false);
+    }
 
     return mQuery;
   }
 
-  public void addRow(Row row) {
+  /**
+   * If the query is continued by keyset, continue it from the given row. If that row does
+   * not have a value for each of the keys, the query is continued by offset instead.
+   *
+   * @param rowIndex the row to continue from
+   * @param forward  true to continue after the row, false to continue before it
+   */
+  private void continueByKeyset(int rowIndex, boolean forward) {
+    String[] keys = mQuery.getKeysetElementKeys();
+    if (keys == null) {
+      return;
+    }
+    String[] keyValues = new String[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      keyValues[i] = getCellByKey(rowIndex, keys[i]);
+      if (keyValues[i] == null) {
+        return;
+      }
+    }
+    mQuery.setKeysetContinuation(keyValues, forward);
+  }
+
+  public synchronized void addRow(Row row) {
+    if (mEncodedRows != null) {
+      decodeRows();
+    }
+    int rowIndex = getNumberOfRows();
+    if (mColumns != null) {
+      convertToRows(rowIndex + 1);
+    }
+    appendRow(row);
+
+    if (mRowIdToIndex != null) {
+      indexRowId(rowIndex);
+    }
+    if (mHealthSummary != null) {
+      summarizeRow(rowIndex);
+    }
+  }
+
+  /**
+   * Return whether any rows are checkpoints or in conflict. The states of the rows are
+   * found once and remembered, so this is cheap to call repeatedly.
+   *
+   * @return the HEALTH_... bits that apply to this table
+   */
+  public int getHealthSummary() {
+    return getRowHealthSummary().getSummary();
+  }
+
+  /**
+   * @param state a sync state
+   * @return the number of rows with that _sync_state
+   */
+  public int getSyncStateCount(SyncState state) {
+    return getRowHealthSummary().getSyncStateCount(state);
+  }
+
+  /**
+   * @param rowIndex the row
+   * @return the ROW_FLAG_... bits that apply to the row
+   */
+  public byte getRowFlags(int rowIndex) {
+    return getRowHealthSummary().getRowFlags(rowIndex);
+  }
+
+  /**
+   * @return a copy of the ROW_FLAG_... bits of every row, indexed by row
+   */
+  public byte[] getRowFlags() {
+    return getRowHealthSummary().getRowFlags();
+  }
+
+  /**
+   * @param rowIndex the row
+   * @return the _sync_state of the row, or null if it does not have a valid one
+   */
+  public SyncState getRowSyncState(int rowIndex) {
+    return getRowHealthSummary().getRowSyncState(rowIndex);
+  }
+
+  private synchronized RowHealthSummary getRowHealthSummary() {
+    if (mHealthSummary == null) {
+      int rowCount = getNumberOfRows();
+      mHealthSummary = new RowHealthSummary(rowCount);
+      for (int i = 0; i < rowCount; ++i) {
+        summarizeRow(i);
+      }
+    }
+    return mHealthSummary;
+  }
+
+  private void summarizeRow(int rowIndex) {
+    mHealthSummary.addRow(getCellByKey(rowIndex, DataTableColumns.SAVEPOINT_TYPE),
+        getCellByKey(rowIndex, DataTableColumns.CONFLICT_TYPE),
+        getCellByKey(rowIndex, DataTableColumns.SYNC_STATE));
+  }
+
+  /**
+   * Return the index of the row with the given row id. The first lookup indexes the row ids
+   * of the entire table; later lookups take constant time.
+   *
+   * @param rowId the row id
+   * @return the index of the first row with that id, or -1 if there is none
+   */
+  public synchronized int getRowIndexForId(String rowId) {
+    if (mRowIdToIndex == null) {
+      buildRowIdIndex();
+    }
+    Integer index = mRowIdToIndex.get(rowId);
+    return (index == null) ? -1 : index;
+  }
+
+  /**
+   * Return the indexes of the rows with the given row ids
+   *
+   * @param rowIds the row ids
+   * @return the index of each row id, in iteration order, or -1 where there is no such row
+   */
+  public int[] getRowIndicesForIds(Collection<String> rowIds) {
+    int[] indices = new int[rowIds.size()];
+    int i = 0;
+    for (String rowId : rowIds) {
+      indices[i++] = getRowIndexForId(rowId);
+    }
+    return indices;
+  }
+
+  private void buildRowIdIndex() {
+    int rowCount = getNumberOfRows();
+    mRowIdToIndex = new HashMap<>(Math.max(16, (int) (rowCount / 0.75f) + 1));
+    for (int i = 0; i < rowCount; ++i) {
+      indexRowId(i);
+    }
+  }
+
+  private void indexRowId(int rowIndex) {
+    String rowId = getCellByKey(rowIndex, DataTableColumns.ID);
+    if (rowId != null && !mRowIdToIndex.containsKey(rowId)) {
+      mRowIdToIndex.put(rowId, rowIndex);
+    }
+  }
+
+  /**
+   * Add a row to the row storage, recording its index if this table owns it
+   *
+   * @param row the row
+   */
+  private void appendRow(Row row) {
+    if (row.getOwnerTable() == this && row.getRowIndex() < 0) {
+      row.setRowIndex(mRows.size());
+    }
     mRows.add(row);
   }
 
   public Row getRowAtIndex(int index) {
+    if (mEncodedRows != null) {
+      return mEncodedRows.getRow(index, this);
+    }
+    ColumnVector[] columns = mColumns;
+    if (columns != null) {
+      int rowCount = (columns.length == 0) ? 0 : columns[0].size();
+      if (index < 0 || index >= rowCount) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rowCount);
+      }
+      return new Row(this, index);
+    }
     return mRows.get(index);
   }
 
@@ -295,6 +1090,19 @@ public class BaseTable implements Parcelable {
    * @return the rows in the table
    */
   public List<Row> getRows() {
+    if (mColumns != null || mEncodedRows != null) {
+      return new AbstractList<Row>() {
+        @Override
+        public Row get(int index) {
+          return getRowAtIndex(index);
+        }
+
+        @Override
+        public int size() {
+          return getNumberOfRows();
+        }
+      };
+    }
     // This may have broken something. If it did, just change it back to "return mRows;"
     return Collections.unmodifiableList(mRows);
   }
@@ -383,6 +1191,13 @@ public class BaseTable implements Parcelable {
   }
 
   public int getNumberOfRows() {
+    if (mEncodedRows != null) {
+      return mEncodedRows.size();
+    }
+    ColumnVector[] columns = mColumns;
+    if (columns != null) {
+      return (columns.length == 0) ? 0 : columns[0].size();
+    }
     return mRows.size();
   }
 
@@ -421,9 +1236,33 @@ public class BaseTable implements Parcelable {
       throw t;
     }
 
-    out.writeInt(mRows.size());
-    for (Row r : mRows) {
-      r.writeToParcel(out, flags);
+    if ((flags & PARCELABLE_WRITE_HEALTH_SUMMARY) != 0) {
+      out.writeInt(HEALTH_SUMMARY);
+      getRowHealthSummary().writeToParcel(out);
+    }
+
+    boolean dictionaryEncoded = (flags & PARCELABLE_WRITE_DICTIONARY_ENCODED) != 0;
+    if ((flags & PARCELABLE_WRITE_INDEXED_ROWS) != 0) {
+      out.writeInt(dictionaryEncoded ? DICTIONARY_INDEXED_ROWS : INDEXED_ROWS);
+      EncodedRows encodedRows = mEncodedRows;
+      if (encodedRows != null && encodedRows.isDictionaryEncoded() == dictionaryEncoded) {
+        encodedRows.writeToParcel(out);
+      } else {
+        EncodedRows.writeRows(out, this, dictionaryEncoded);
+      }
+      return;
+    }
+
+    if (dictionaryEncoded && hasUniformRows()) {
+      out.writeInt(COLUMN_MAJOR_ROWS);
+      writeColumnMajorRows(out);
+      return;
+    }
+
+    int rowCount = getNumberOfRows();
+    out.writeInt(rowCount);
+    for (int i = 0; i < rowCount; ++i) {
+      getRowAtIndex(i).writeToParcel(out, flags);
     }
   }
 
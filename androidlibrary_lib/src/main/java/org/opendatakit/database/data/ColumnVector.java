@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The values of one column of a BaseTable that is stored by column.
+ * <p>
+ * Values are added as Strings while the table is read. Once all the rows are present,
+ * compact() stores the column as a long[] or double[] (with a bitmap of the null values)
+ * instead if every value is the canonical String form of a long or double, and drops the
+ * Strings. Integer and boolean columns typically qualify. getValue() then rebuilds the
+ * String of a value each time it is asked for, and the typed accessors of Row need not
+ * parse anything.
+ * <p>
+ * A compacted column cannot be added to, so it may be read from several threads at once.
+ */
+final class ColumnVector {
+
+  private static final int KIND_TEXT = 0;
+  private static final int KIND_INTEGER = 1;
+  private static final int KIND_NUMBER = 2;
+
+  private int kind = KIND_TEXT;
+  private int size = 0;
+  private boolean compacted = false;
+
+  /**
+   * The values, if the column is stored as text; otherwise null
+   */
+  private String[] textValues;
+  private long[] integerValues = null;
+  private double[] numberValues = null;
+  private BitSet nullValues = null;
+
+  ColumnVector(int capacity) {
+    textValues = new String[Math.max(capacity, 1)];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Append a value to the column
+   *
+   * @param value the value, may be null
+   * @throws IllegalStateException if the column has been compacted
+   */
+  void add(String value) {
+    if (compacted) {
+      throw new IllegalStateException("a compacted column cannot be added to");
+    }
+    if (size == textValues.length) {
+      textValues = Arrays.copyOf(textValues, size + (size >> 1) + 1);
+    }
+    textValues[size++] = value;
+  }
+
+  /**
+   * @param index the row
+   * @return the value. For a column stored as primitive values this is a new String each
+   * time.
+   */
+  String getValue(int index) {
+    checkIndex(index);
+    if (kind == KIND_TEXT) {
+      return textValues[index];
+    }
+    if (nullValues.get(index)) {
+      return null;
+    }
+    if (kind == KIND_INTEGER) {
+      return Long.toString(integerValues[index]);
+    }
+    return Double.toString(numberValues[index]);
+  }
+
+  boolean isNull(int index) {
+    checkIndex(index);
+    if (kind == KIND_TEXT) {
+      return textValues[index] == null;
+    }
+    return nullValues.get(index);
+  }
+
+  /**
+   * @return true if the values are stored in a long[], so getLong() may be used
+   */
+  boolean isInteger() {
+    return kind == KIND_INTEGER;
+  }
+
+  /**
+   * @return true if the values are stored in a double[], so getDouble() may be used
+   */
+  boolean isNumber() {
+    return kind == KIND_NUMBER;
+  }
+
+  /**
+   * @param index the row
+   * @return the value, or 0 if it is null. Only valid if isInteger().
+   */
+  long getLong(int index) {
+    checkIndex(index);
+    return integerValues[index];
+  }
+
+  /**
+   * @param index the row
+   * @return the value, or 0 if it is null. Only valid if isNumber().
+   */
+  double getDouble(int index) {
+    checkIndex(index);
+    return numberValues[index];
+  }
+
+  /**
+   * Called once all the rows have been added. Release any unused capacity, and store the
+   * column as primitive values instead of Strings if they can be reproduced exactly.
+   */
+  void compact() {
+    if (compacted) {
+      return;
+    }
+    compacted = true;
+    if (allCanonical(KIND_INTEGER)) {
+      integerValues = new long[size];
+      nullValues = new BitSet(size);
+      for (int i = 0; i < size; ++i) {
+        if (textValues[i] == null) {
+          nullValues.set(i);
+        } else {
+          integerValues[i] = Long.parseLong(textValues[i]);
+        }
+      }
+      textValues = null;
+      kind = KIND_INTEGER;
+    } else if (allCanonical(KIND_NUMBER)) {
+      numberValues = new double[size];
+      nullValues = new BitSet(size);
+      for (int i = 0; i < size; ++i) {
+        if (textValues[i] == null) {
+          nullValues.set(i);
+        } else {
+          numberValues[i] = Double.parseDouble(textValues[i]);
+        }
+      }
+      textValues = null;
+      kind = KIND_NUMBER;
+    } else if (textValues.length > size) {
+      textValues = Arrays.copyOf(textValues, size);
+    }
+  }
+
+  private boolean allCanonical(int candidateKind) {
+    boolean anyValue = false;
+    for (int i = 0; i < size; ++i) {
+      String value = textValues[i];
+      if (value != null) {
+        if (!isCanonical(candidateKind, value)) {
+          return false;
+        }
+        anyValue = true;
+      }
+    }
+    // an all-null column gains nothing from a primitive array
+    return anyValue;
+  }
+
+  private static boolean isCanonical(int candidateKind, String value) {
+    try {
+      if (candidateKind == KIND_INTEGER) {
+        return Long.toString(Long.parseLong(value)).equals(value);
+      } else {
+        return Double.toString(Double.parseDouble(value)).equals(value);
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rows of a BaseTable kept in the encoded form they were received in, together with
+ * the offset of each row within that encoding. A Row is only decoded when it is asked for.
+ * <p>
+ * Each row is its number of cells followed by each cell, where a cell is 0 for null or
+ * the length of the value plus one followed by the value. Lengths are unsigned varints
+ * and values are in modified UTF-8, so any String round trips exactly.
+ * <p>
+ * If the rows are dictionary encoded, each column with few distinct values has a dictionary
+ * of those values, and its cells are 0 for null or the position of the value in the
+ * dictionary plus one. Decoded rows then share a single String for each distinct value.
+ * <p>
+ * Decoded rows are kept so that repeated access returns the same Row. If a limit is set,
+ * only that many of the most recently used rows are kept.
+ * <p>
+ * Reading a row updates which rows are kept, so getRow() and setMaxDecodedRows() are
+ * synchronized: a table may be read from several threads at once.
+ */
+final class EncodedRows {
+
+  private final byte[] data;
+  private final int[] rowOffsets;
+  /**
+   * The dictionary of each column, or null for a column that is not dictionary encoded.
+   * Null if the rows are not dictionary encoded at all.
+   */
+  private final String[][] dictionaries;
+
+  private int maxDecodedRows = 0;
+  private Row[] decodedRows = null;
+  private Map<Integer, Row> recentRows = null;
+
+  private EncodedRows(byte[] data, int[] rowOffsets, String[][] dictionaries) {
+    this.data = data;
+    this.rowOffsets = rowOffsets;
+    this.dictionaries = dictionaries;
+  }
+
+  int size() {
+    return rowOffsets.length;
+  }
+
+  /**
+   * @return true if the rows are dictionary encoded
+   */
+  boolean isDictionaryEncoded() {
+    return dictionaries != null;
+  }
+
+  /**
+   * @param rowIndex the row
+   * @return the number of cells in the row, without decoding it
+   */
+  int getWidth(int rowIndex) {
+    checkIndex(rowIndex);
+    return new Decoder(rowIndex).readLength();
+  }
+
+  /**
+   * @param maxDecodedRows the number of decoded rows to keep; 0 to keep all of them
+   */
+  synchronized void setMaxDecodedRows(int maxDecodedRows) {
+    if (maxDecodedRows < 0) {
+      throw new IllegalArgumentException("maxDecodedRows must not be negative");
+    }
+    this.maxDecodedRows = maxDecodedRows;
+    decodedRows = null;
+    recentRows = null;
+  }
+
+  /**
+   * @param rowIndex   the row
+   * @param ownerTable the table the rows belong to
+   * @return the row, decoding it if it is not already decoded
+   */
+  synchronized Row getRow(int rowIndex, BaseTable ownerTable) {
+    checkIndex(rowIndex);
+    if (maxDecodedRows == 0) {
+      if (decodedRows == null) {
+        decodedRows = new Row[rowOffsets.length];
+      }
+      Row row = decodedRows[rowIndex];
+      if (row == null) {
+        row = decodeRow(rowIndex, ownerTable);
+        decodedRows[rowIndex] = row;
+      }
+      return row;
+    }
+
+    if (recentRows == null) {
+      final int limit = maxDecodedRows;
+      recentRows = new LinkedHashMap<Integer, Row>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Row> eldest) {
+          return size() > limit;
+        }
+      };
+    }
+    Row row = recentRows.get(rowIndex);
+    if (row == null) {
+      row = decodeRow(rowIndex, ownerTable);
+      recentRows.put(rowIndex, row);
+    }
+    return row;
+  }
+
+  private Row decodeRow(int rowIndex, BaseTable ownerTable) {
+    Decoder decoder = new Decoder(rowIndex);
+    String[] rowData = new String[decoder.readLength()];
+    for (int i = 0; i < rowData.length; ++i) {
+      String[] dictionary = getDictionary(i);
+      rowData[i] = (dictionary == null) ? decoder.readString() : decoder.readCode(dictionary);
+    }
+    Row row = new Row(rowData, ownerTable);
+    row.setRowIndex(rowIndex);
+    return row;
+  }
+
+  private String[] getDictionary(int cellIndex) {
+    if (dictionaries == null || cellIndex >= dictionaries.length) {
+      return null;
+    }
+    return dictionaries[cellIndex];
+  }
+
+  private void checkIndex(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= rowOffsets.length) {
+      throw new IndexOutOfBoundsException("Index: " + rowIndex + ", Size: " + rowOffsets.length);
+    }
+  }
+
+  void writeToParcel(Parcel out) {
+    if (dictionaries != null) {
+      writeDictionaries(out, dictionaries);
+    }
+    out.writeIntArray(rowOffsets);
+    out.writeByteArray(data);
+  }
+
+  /**
+   * @param in                the parcel written by writeToParcel() or writeRows()
+   * @param dictionaryEncoded true if the rows were written dictionary encoded
+   * @return the rows
+   */
+  static EncodedRows readFromParcel(Parcel in, boolean dictionaryEncoded) {
+    String[][] dictionaries = null;
+    if (dictionaryEncoded) {
+      int width = in.readInt();
+      if (width < 0) {
+        throw new IllegalArgumentException("invalid encoded rows");
+      }
+      dictionaries = new String[width][];
+      for (int i = 0; i < width; ++i) {
+        int size = in.readInt();
+        if (size < -1) {
+          throw new IllegalArgumentException("invalid encoded rows");
+        }
+        if (size >= 0) {
+          String[] dictionary = new String[size];
+          for (int j = 0; j < size; ++j) {
+            dictionary[j] = in.readString();
+          }
+          dictionaries[i] = dictionary;
+        }
+      }
+    }
+    int[] rowOffsets = in.createIntArray();
+    byte[] data = in.createByteArray();
+    if (rowOffsets == null || data == null) {
+      throw new IllegalArgumentException("invalid encoded rows");
+    }
+    int previous = 0;
+    for (int offset : rowOffsets) {
+      if (offset < previous || offset >= data.length) {
+        throw new IllegalArgumentException("invalid encoded row offset");
+      }
+      previous = offset;
+    }
+    return new EncodedRows(data, rowOffsets, dictionaries);
+  }
+
+  /**
+   * Encode the rows of a table in the format read by readFromParcel(). If dictionary
+   * encoded, a column with at most one distinct value for every two rows is given a
+   * dictionary.
+   *
+   * @param out               the parcel to write to
+   * @param table             the table
+   * @param dictionaryEncoded true to dictionary encode the rows
+   */
+  static void writeRows(Parcel out, BaseTable table, boolean dictionaryEncoded) {
+    int rowCount = table.getNumberOfRows();
+    String[][] dictionaries = null;
+    List<Map<String, Integer>> codes = null;
+    if (dictionaryEncoded) {
+      int width = table.getWidth();
+      dictionaries = new String[width][];
+      codes = new ArrayList<>(width);
+      for (int i = 0; i < width; ++i) {
+        Map<String, Integer> dictionary = buildDictionary(table, i, rowCount);
+        if (dictionary != null) {
+          dictionaries[i] = dictionary.keySet().toArray(new String[dictionary.size()]);
+        }
+        codes.add(dictionary);
+      }
+      writeDictionaries(out, dictionaries);
+    }
+
+    int[] rowOffsets = new int[rowCount];
+    Encoder encoder = new Encoder(Math.max(rowCount * 16, 16));
+    for (int i = 0; i < rowCount; ++i) {
+      rowOffsets[i] = encoder.size;
+      Row row = table.getRowAtIndex(i);
+      int width = row.getDataCount();
+      encoder.writeLength(width);
+      for (int j = 0; j < width; ++j) {
+        Map<String, Integer> dictionary = (codes == null || j >= codes.size()) ? null :
+            codes.get(j);
+        String value = row.getDataByIndex(j);
+        if (dictionary == null) {
+          encoder.writeString(value);
+        } else {
+          encoder.writeLength((value == null) ? 0 : dictionary.get(value) + 1);
+        }
+      }
+    }
+    out.writeIntArray(rowOffsets);
+    out.writeByteArray(encoder.buffer, 0, encoder.size);
+  }
+
+  /**
+   * @param table     the table
+   * @param cellIndex the column
+   * @param rowCount  the number of rows
+   * @return the distinct values of the column, in order of first appearance, mapped to
+   * their position in that order; null if there are too many to be worth encoding
+   */
+  private static Map<String, Integer> buildDictionary(BaseTable table, int cellIndex,
+      int rowCount) {
+    int maxSize = rowCount / 2;
+    Map<String, Integer> dictionary = new LinkedHashMap<>();
+    for (int i = 0; i < rowCount; ++i) {
+      Row row = table.getRowAtIndex(i);
+      String value = (cellIndex < row.getDataCount()) ? row.getDataByIndex(cellIndex) : null;
+      if (value != null && !dictionary.containsKey(value)) {
+        if (dictionary.size() == maxSize) {
+          return null;
+        }
+        dictionary.put(value, dictionary.size());
+      }
+    }
+    return dictionary;
+  }
+
+  private static void writeDictionaries(Parcel out, String[][] dictionaries) {
+    out.writeInt(dictionaries.length);
+    for (String[] dictionary : dictionaries) {
+      if (dictionary == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(dictionary.length);
+        for (String value : dictionary) {
+          out.writeString(value);
+        }
+      }
+    }
+  }
+
+  private static final class Encoder {
+    private byte[] buffer;
+    private int size = 0;
+
+    Encoder(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    void writeLength(int length) {
+      ensureCapacity(5);
+      while ((length & ~0x7F) != 0) {
+        buffer[size++] = (byte) ((length & 0x7F) | 0x80);
+        length >>>= 7;
+      }
+      buffer[size++] = (byte) length;
+    }
+
+    void writeString(String value) {
+      if (value == null) {
+        writeLength(0);
+        return;
+      }
+      int length = value.length();
+      int encodedLength = 0;
+      for (int i = 0; i < length; ++i) {
+        char c = value.charAt(i);
+        encodedLength += (c != 0 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+      }
+      writeLength(encodedLength + 1);
+      ensureCapacity(encodedLength);
+      for (int i = 0; i < length; ++i) {
+        char c = value.charAt(i);
+        if (c != 0 && c < 0x80) {
+          buffer[size++] = (byte) c;
+        } else if (c < 0x800) {
+          buffer[size++] = (byte) (0xC0 | (c >> 6));
+          buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+          buffer[size++] = (byte) (0xE0 | (c >> 12));
+          buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    private void ensureCapacity(int extra) {
+      if (size + extra > buffer.length) {
+        int capacity = Math.max(size + extra, buffer.length + (buffer.length >> 1));
+        buffer = Arrays.copyOf(buffer, capacity);
+      }
+    }
+  }
+
+  private final class Decoder {
+    private int position;
+
+    Decoder(int rowIndex) {
+      position = rowOffsets[rowIndex];
+    }
+
+    int readLength() {
+      int length = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = readByte();
+        length |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          if (length < 0) {
+            break;
+          }
+          return length;
+        }
+      }
+      throw new IllegalArgumentException("invalid encoded row length");
+    }
+
+    String readCode(String[] dictionary) {
+      int code = readLength();
+      if (code == 0) {
+        return null;
+      }
+      if (code > dictionary.length) {
+        throw new IllegalArgumentException("invalid dictionary code");
+      }
+      return dictionary[code - 1];
+    }
+
+    String readString() {
+      int length = readLength();
+      if (length == 0) {
+        return null;
+      }
+      int end = position + length - 1;
+      if (end > data.length || end < position) {
+        throw new IllegalArgumentException("invalid encoded row value");
+      }
+      char[] chars = new char[end - position];
+      int count = 0;
+      while (position < end) {
+        int b = data[position++] & 0xFF;
+        if (b < 0x80) {
+          chars[count++] = (char) b;
+        } else if ((b & 0xE0) == 0xC0) {
+          chars[count++] = (char) (((b & 0x1F) << 6) | (readByte() & 0x3F));
+        } else {
+          int b2 = readByte() & 0x3F;
+          chars[count++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | (readByte() & 0x3F));
+        }
+      }
+      if (position != end) {
+        throw new IllegalArgumentException("invalid encoded row value");
+      }
+      return new String(chars, 0, count);
+    }
+
+    private byte readByte() {
+      if (position >= data.length) {
+        throw new IllegalArgumentException("invalid encoded row");
+      }
+      return data[position++];
+    }
+  }
+}
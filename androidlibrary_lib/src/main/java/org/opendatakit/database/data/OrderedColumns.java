@@ -21,7 +21,9 @@ import org.opendatakit.aggregate.odktables.rest.ElementType;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 public class OrderedColumns implements Parcelable {
@@ -35,6 +37,27 @@ public class OrderedColumns implements Parcelable {
       return new OrderedColumns[size];
     }
   };
+  /**
+   * The number of distinct sets of columns whose definitions are kept for reuse
+   */
+  private static final int MAX_INTERNED_COLUMN_SETS = 64;
+
+  /**
+   * The definitions built for recently seen sets of columns, so that every OrderedColumns
+   * with the same columns, whether of the same table or of different ones, shares them
+   * instead of validating, parsing and sorting them again. A ColumnDefinition does not
+   * refer to its table and is not changed once built.
+   * Access this ONLY while holding it.
+   */
+  private static final Map<List<Column>, ArrayList<ColumnDefinition>> internedDefns =
+      new LinkedHashMap<List<Column>, ArrayList<ColumnDefinition>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<Column>, ArrayList<ColumnDefinition>> eldest) {
+          return size() > MAX_INTERNED_COLUMN_SETS;
+        }
+      };
+
   private final String appName;
   private final String tableId;
 
@@ -44,14 +67,40 @@ public class OrderedColumns implements Parcelable {
   public OrderedColumns(String appName, String tableId, List<Column> columns) {
     this.appName = appName;
     this.tableId = tableId;
-    this.orderedDefns = ColumnDefinition.buildColumnDefinitions(appName, tableId, columns);
+    this.orderedDefns = internColumnDefinitions(appName, tableId, columns);
   }
 
   public OrderedColumns(Parcel in) {
     appName = in.readString();
     tableId = in.readString();
     ColumnList cl = new ColumnList(in);
-    this.orderedDefns = ColumnDefinition.buildColumnDefinitions(appName, tableId, cl.getColumns());
+    this.orderedDefns = internColumnDefinitions(appName, tableId, cl.getColumns());
+  }
+
+  /**
+   * @return the definitions of the columns, shared with any other OrderedColumns with the
+   * same columns
+   */
+  private static ArrayList<ColumnDefinition> internColumnDefinitions(String appName,
+      String tableId, List<Column> columns) {
+    if (appName == null || appName.isEmpty() || tableId == null || tableId.isEmpty()
+        || columns == null) {
+      // reports the problem
+      return ColumnDefinition.buildColumnDefinitions(appName, tableId, columns);
+    }
+    List<Column> key = new ArrayList<>(columns);
+    ArrayList<ColumnDefinition> defns;
+    synchronized (internedDefns) {
+      defns = internedDefns.get(key);
+    }
+    if (defns == null) {
+      defns = ColumnDefinition.buildColumnDefinitions(appName, tableId, key);
+      synchronized (internedDefns) {
+        internedDefns.put(key, defns);
+      }
+    }
+    // the list is the caller's own, but its elements are shared
+    return new ArrayList<>(defns);
   }
 
   public ColumnDefinition find(String elementKey) {
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parsed values of the cells of one column of a BaseTable, filled in as the typed
+ * accessors of Row ask for them, so that each cell is parsed at most once.
+ * <p>
+ * JSON values are memoized by their String form, so rows that hold the same JSON share a
+ * single parse. The memoized value is made unmodifiable all the way down, so it can be
+ * handed to every caller as is. Only the most recently used JSON values are kept, so a
+ * column of distinct values does not grow the memo without bound.
+ * <p>
+ * Not thread-safe; BaseTable guards it with its lock.
+ */
+final class ParsedColumnCache {
+
+  /**
+   * The most JSON values memoized for each class
+   */
+  static final int MAX_JSON_VALUES = 64;
+
+  private long[] longValues = new long[0];
+  private final BitSet longParsed = new BitSet();
+  private double[] doubleValues = new double[0];
+  private final BitSet doubleParsed = new BitSet();
+  private Map<Class<?>, Map<String, Object>> jsonValues = null;
+
+  boolean hasLong(int rowIndex) {
+    return longParsed.get(rowIndex);
+  }
+
+  long getLong(int rowIndex) {
+    return longValues[rowIndex];
+  }
+
+  void putLong(int rowIndex, long value) {
+    if (rowIndex >= longValues.length) {
+      longValues = Arrays.copyOf(longValues, newCapacity(longValues.length, rowIndex));
+    }
+    longValues[rowIndex] = value;
+    longParsed.set(rowIndex);
+  }
+
+  boolean hasDouble(int rowIndex) {
+    return doubleParsed.get(rowIndex);
+  }
+
+  double getDouble(int rowIndex) {
+    return doubleValues[rowIndex];
+  }
+
+  void putDouble(int rowIndex, double value) {
+    if (rowIndex >= doubleValues.length) {
+      doubleValues = Arrays.copyOf(doubleValues, newCapacity(doubleValues.length, rowIndex));
+    }
+    doubleValues[rowIndex] = value;
+    doubleParsed.set(rowIndex);
+  }
+
+  private static int newCapacity(int capacity, int rowIndex) {
+    return Math.max(rowIndex + 1, capacity + (capacity >> 1));
+  }
+
+  /**
+   * Return the JSON deserialization of a value as the given class.
+   *
+   * @param value the JSON
+   * @param clazz ArrayList, HashMap or TreeMap
+   * @return the memoized deserialization of value, an unmodifiable List or Map
+   * @throws IOException if the value is not valid JSON for the class
+   */
+  Object getJson(String value, Class<?> clazz) throws IOException {
+    if (jsonValues == null) {
+      jsonValues = new HashMap<>();
+    }
+    Map<String, Object> parsedValues = jsonValues.get(clazz);
+    if (parsedValues == null) {
+      parsedValues = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+          return size() > MAX_JSON_VALUES;
+        }
+      };
+      jsonValues.put(clazz, parsedValues);
+    }
+    Object parsed = parsedValues.get(value);
+    if (parsed == null) {
+      parsed = parseJson(value, clazz);
+      parsedValues.put(value, parsed);
+    }
+    return parsed;
+  }
+
+  /**
+   * @param value the JSON
+   * @param clazz ArrayList, HashMap or TreeMap
+   * @return the deserialization of value, made unmodifiable all the way down
+   * @throws IOException if the value is not valid JSON for the class
+   */
+  static Object parseJson(String value, Class<?> clazz) throws IOException {
+    return freezeJsonValue(ODKFileUtils.mapper.readValue(value, clazz));
+  }
+
+  /**
+   * Wrap the containers of a deserialized JSON value so that they cannot be changed. The
+   * leaves (Strings, Numbers and Booleans) are immutable already.
+   *
+   * @param value the deserialized value
+   * @return the unmodifiable value
+   */
+  @SuppressWarnings("unchecked")
+  private static Object freezeJsonValue(Object value) {
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      for (int i = 0; i < list.size(); ++i) {
+        list.set(i, freezeJsonValue(list.get(i)));
+      }
+      return Collections.unmodifiableList(list);
+    }
+    if (value instanceof Map) {
+      Map<Object, Object> map = (Map<Object, Object>) value;
+      for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        entry.setValue(freezeJsonValue(entry.getValue()));
+      }
+      return Collections.unmodifiableMap(map);
+    }
+    return value;
+  }
+
+  /**
+   * Copy a memoized JSON value into the modifiable classes the mapper would have created
+   * for it. Each caller of Row.getDataType() gets its own copy, as it may change it.
+   *
+   * @param value the memoized value
+   * @param clazz ArrayList, HashMap or TreeMap
+   * @return the copy
+   */
+  static <T> T copyJsonValue(Object value, Class<T> clazz) {
+    if (clazz == TreeMap.class) {
+      Map<Object, Object> copy = new TreeMap<>();
+      copyJsonEntries(value, copy);
+      return clazz.cast(copy);
+    }
+    if (clazz == HashMap.class) {
+      Map<Object, Object> copy = new HashMap<>();
+      copyJsonEntries(value, copy);
+      return clazz.cast(copy);
+    }
+    return clazz.cast(copyJsonValue(value));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void copyJsonEntries(Object value, Map<Object, Object> copy) {
+    for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+      copy.put(entry.getKey(), copyJsonValue(entry.getValue()));
+    }
+  }
+
+  /**
+   * @param value a memoized value within a JSON value
+   * @return a copy of it, with JSON objects as LinkedHashMaps and arrays as ArrayLists
+   */
+  @SuppressWarnings("unchecked")
+  private static Object copyJsonValue(Object value) {
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      List<Object> copy = new ArrayList<>(list.size());
+      for (Object element : list) {
+        copy.add(copyJsonValue(element));
+      }
+      return copy;
+    }
+    if (value instanceof Map) {
+      Map<Object, Object> copy = new LinkedHashMap<>();
+      copyJsonEntries(value, copy);
+      return copy;
+    }
+    return value;
+  }
+}
@@ -23,6 +23,8 @@ import org.opendatakit.utilities.ODKFileUtils;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
@@ -45,13 +47,19 @@ public final class Row implements Parcelable {
   @SuppressWarnings("unused")
   static final String TAG = Row.class.getSimpleName();
   /**
-   * The data held in the rows columns
+   * The data held in the rows columns. Null if the row is a view onto a table that is
+   * stored by column.
    */
   private final String[] mRowData;
   /**
    * The table that the row belongs to
    */
   private final BaseTable mOwnerTable;
+  /**
+   * The index of the row within its owner table, or -1 if it has not been added to it.
+   * Used to read the data of a view and to find the parsed values of the cells.
+   */
+  private int mRowIndex;
 
   /**
    * Construct the row.
@@ -65,6 +73,20 @@ public final class Row implements Parcelable {
     }
     this.mRowData = rowData;
     this.mOwnerTable = ownerTable;
+    this.mRowIndex = -1;
+  }
+
+  /**
+   * Construct a row that is a view onto the rowIndex'th row of a table that is stored
+   * by column. The data is read from the table when it is asked for.
+   *
+   * @param ownerTable the table that the row belongs to
+   * @param rowIndex   the index of the row within the table
+   */
+  Row(BaseTable ownerTable, int rowIndex) {
+    this.mRowData = null;
+    this.mOwnerTable = ownerTable;
+    this.mRowIndex = rowIndex;
   }
 
   /**
@@ -82,6 +104,7 @@ public final class Row implements Parcelable {
     int dataCount = in.readInt();
     this.mRowData = new String[dataCount];
     in.readStringArray(mRowData);
+    this.mRowIndex = -1;
   }
 
   /**
@@ -105,9 +128,136 @@ public final class Row implements Parcelable {
    * returned as null. Note that boolean values are reported as "1" or "0"
    */
   public String getDataByIndex(int cellIndex) {
+    if (mRowData == null) {
+      return mOwnerTable.getViewData(mRowIndex, cellIndex);
+    }
     return this.mRowData[cellIndex];
   }
 
+  /**
+   * @return the number of cells in this row
+   */
+  int getDataCount() {
+    return (mRowData == null) ? mOwnerTable.getWidth() : mRowData.length;
+  }
+
+  int getRowIndex() {
+    return mRowIndex;
+  }
+
+  /**
+   * Called by the owner table when the row is added to it
+   *
+   * @param rowIndex the index of the row within the owner table
+   */
+  void setRowIndex(int rowIndex) {
+    mRowIndex = rowIndex;
+  }
+
+  /**
+   * Return true if the cellIndex'th column is null
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return true if the value is null
+   */
+  public boolean isNull(int cellIndex) {
+    if (mRowData == null) {
+      return mOwnerTable.isViewDataNull(mRowIndex, cellIndex);
+    }
+    return mRowData[cellIndex] == null;
+  }
+
+  /**
+   * Return the contents of the cellIndex'th column as a long, without boxing it. The value
+   * is parsed once and remembered by the owner table.
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return the value, or 0 if it is null (use isNull() to tell these apart)
+   * @throws IllegalStateException if the value is not an integer
+   */
+  public long getLong(int cellIndex) throws IllegalStateException {
+    if (mRowIndex < 0) {
+      return BaseTable.parseLong(getDataByIndex(cellIndex));
+    }
+    return mOwnerTable.getCellAsLong(mRowIndex, cellIndex);
+  }
+
+  /**
+   * Return the contents of the cellIndex'th column as a double, without boxing it. The
+   * value is parsed once and remembered by the owner table.
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return the value, or 0 if it is null (use isNull() to tell these apart)
+   * @throws IllegalStateException if the value is not a number
+   */
+  public double getDouble(int cellIndex) throws IllegalStateException {
+    if (mRowIndex < 0) {
+      return BaseTable.parseDouble(getDataByIndex(cellIndex));
+    }
+    return mOwnerTable.getCellAsDouble(mRowIndex, cellIndex);
+  }
+
+  /**
+   * Return the contents of the cellIndex'th column as a boolean. Booleans are stored as
+   * integer 1 or 0 in user tables; as with getDataType(), anything other than "0" is true.
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return the value, or false if it is null (use isNull() to tell these apart)
+   */
+  public boolean getBoolean(int cellIndex) {
+    if (mRowData == null) {
+      return mOwnerTable.getViewDataAsBoolean(mRowIndex, cellIndex);
+    }
+    String value = mRowData[cellIndex];
+    return value != null && !"0".equals(value);
+  }
+
+  /**
+   * Return the JSON array in the cellIndex'th column. The value is parsed once and
+   * remembered by the owner table, and the same unmodifiable list is returned to every
+   * caller. Use getDataType(cellIndex, ArrayList.class) for a list that may be changed.
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return the array as an unmodifiable list, or null if the value is null
+   * @throws IllegalStateException if the value is not a JSON array
+   */
+  @SuppressWarnings("unchecked")
+  public List<Object> getJsonArray(int cellIndex) throws IllegalStateException {
+    return (List<Object>) getJsonView(cellIndex, ArrayList.class);
+  }
+
+  /**
+   * Return the JSON object in the cellIndex'th column. The value is parsed once and
+   * remembered by the owner table, and the same unmodifiable map is returned to every
+   * caller. Use getDataType(cellIndex, HashMap.class) for a map that may be changed.
+   *
+   * @param cellIndex cellIndex of data or metadata column (0..nCol-1)
+   * @return the object as an unmodifiable map, or null if the value is null
+   * @throws IllegalStateException if the value is not a JSON object
+   */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> getJsonObject(int cellIndex) throws IllegalStateException {
+    return (Map<String, Object>) getJsonView(cellIndex, HashMap.class);
+  }
+
+  private Object getJsonView(int cellIndex, Class<?> clazz) {
+    if (mRowIndex >= 0) {
+      return mOwnerTable.getCellAsJsonView(mRowIndex, cellIndex, clazz);
+    }
+    String value = getDataByIndex(cellIndex);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return ParsedColumnCache.parseJson(value, clazz);
+    } catch (IOException e) {
+      // JsonParseException and JsonMappingException extends IOException and will be caught here
+      WebLogger.getLogger(null).printStackTrace(e);
+      throw new IllegalStateException(
+          "Unexpected data type conversion failure " + e + " on SQLite table");
+    }
+  }
+
   /**
    * Return the String representing the contents of the cell in the "key" column.
    * <p>
@@ -176,6 +326,11 @@ public final class Row implements Parcelable {
   @SuppressWarnings("unchecked")
   public final <T> T getDataType(int cellIndex, Class<T> clazz) throws IllegalStateException {
     // If you add additional return types here be sure to modify the javadoc.
+    if ((clazz == ArrayList.class || clazz == HashMap.class || clazz == TreeMap.class)
+        && mRowIndex >= 0) {
+      // the owner table memoizes the deserialization; the caller gets its own copy of it
+      return mOwnerTable.getCellAsJson(mRowIndex, cellIndex, clazz);
+    }
     try {
       String value = getDataByIndex(cellIndex);
       if (value == null) {
@@ -230,14 +385,15 @@ public final class Row implements Parcelable {
 
   @Override
   public void writeToParcel(Parcel out, int flags) {
-    String[] emptyString = {};
-
-    if (mRowData == null) {
-      out.writeInt(0);
-      out.writeStringArray(emptyString);
-    } else {
-      out.writeInt(mRowData.length);
-      out.writeStringArray(mRowData);
+    String[] rowData = mRowData;
+    if (rowData == null) {
+      rowData = new String[getDataCount()];
+      for (int i = 0; i < rowData.length; ++i) {
+        rowData[i] = getDataByIndex(i);
+      }
     }
+
+    out.writeInt(rowData.length);
+    out.writeStringArray(rowData);
   }
 }
\ No newline at end of file
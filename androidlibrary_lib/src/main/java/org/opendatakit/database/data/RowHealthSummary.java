@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import android.os.Parcel;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+
+import java.util.Arrays;
+
+/**
+ * The checkpoint, conflict and sync state of each row of a BaseTable, together with the
+ * totals over all the rows, so that they need not be found by comparing Strings each time
+ * they are asked for.
+ */
+final class RowHealthSummary {
+
+  private static final SyncState[] SYNC_STATES = SyncState.values();
+
+  private byte[] rowFlags;
+  /**
+   * The ordinal of the SyncState of each row plus one; 0 if it is null or not a SyncState
+   */
+  private byte[] rowSyncStates;
+  private int size = 0;
+
+  private int checkpointRows = 0;
+  private int conflictRows = 0;
+  private final int[] syncStateCounts = new int[SYNC_STATES.length];
+
+  RowHealthSummary(int capacity) {
+    rowFlags = new byte[Math.max(capacity, 1)];
+    rowSyncStates = new byte[Math.max(capacity, 1)];
+  }
+
+  /**
+   * Record the state of the next row
+   *
+   * @param savepointType the _savepoint_type of the row
+   * @param conflictType  the _conflict_type of the row
+   * @param syncState     the _sync_state of the row
+   */
+  void addRow(String savepointType, String conflictType, String syncState) {
+    byte flags = 0;
+    if (savepointType == null || savepointType.isEmpty()) {
+      flags |= BaseTable.ROW_FLAG_CHECKPOINT;
+    }
+    if (conflictType != null && !conflictType.isEmpty()) {
+      flags |= BaseTable.ROW_FLAG_CONFLICT;
+    }
+    byte syncStateCode = 0;
+    if (syncState != null) {
+      for (SyncState state : SYNC_STATES) {
+        if (state.name().equals(syncState)) {
+          syncStateCode = (byte) (state.ordinal() + 1);
+          break;
+        }
+      }
+    }
+    add(flags, syncStateCode);
+  }
+
+  private void add(byte flags, byte syncStateCode) {
+    if (size == rowFlags.length) {
+      int capacity = size + (size >> 1) + 1;
+      rowFlags = Arrays.copyOf(rowFlags, capacity);
+      rowSyncStates = Arrays.copyOf(rowSyncStates, capacity);
+    }
+    rowFlags[size] = flags;
+    rowSyncStates[size] = syncStateCode;
+    ++size;
+
+    if ((flags & BaseTable.ROW_FLAG_CHECKPOINT) != 0) {
+      ++checkpointRows;
+    }
+    if ((flags & BaseTable.ROW_FLAG_CONFLICT) != 0) {
+      ++conflictRows;
+    }
+    if (syncStateCode > 0 && syncStateCode <= SYNC_STATES.length) {
+      ++syncStateCounts[syncStateCode - 1];
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  int getSummary() {
+    int summary = 0;
+    if (checkpointRows != 0) {
+      summary |= BaseTable.HEALTH_HAS_CHECKPOINT_ROWS;
+    }
+    if (conflictRows != 0) {
+      summary |= BaseTable.HEALTH_HAS_CONFLICT_ROWS;
+    }
+    return summary;
+  }
+
+  int getSyncStateCount(SyncState state) {
+    return syncStateCounts[state.ordinal()];
+  }
+
+  byte getRowFlags(int rowIndex) {
+    checkIndex(rowIndex);
+    return rowFlags[rowIndex];
+  }
+
+  SyncState getRowSyncState(int rowIndex) {
+    checkIndex(rowIndex);
+    int code = rowSyncStates[rowIndex];
+    return (code > 0 && code <= SYNC_STATES.length) ? SYNC_STATES[code - 1] : null;
+  }
+
+  byte[] getRowFlags() {
+    return Arrays.copyOf(rowFlags, size);
+  }
+
+  private void checkIndex(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= size) {
+      throw new IndexOutOfBoundsException("Index: " + rowIndex + ", Size: " + size);
+    }
+  }
+
+  void writeToParcel(Parcel out) {
+    out.writeByteArray(rowFlags, 0, size);
+    out.writeByteArray(rowSyncStates, 0, size);
+  }
+
+  /**
+   * @param in the parcel written by writeToParcel()
+   * @return the summary
+   */
+  static RowHealthSummary readFromParcel(Parcel in) {
+    byte[] flags = in.createByteArray();
+    byte[] syncStates = in.createByteArray();
+    if (flags == null || syncStates == null || flags.length != syncStates.length) {
+      throw new IllegalArgumentException("invalid row health summary");
+    }
+    RowHealthSummary summary = new RowHealthSummary(flags.length);
+    for (int i = 0; i < flags.length; ++i) {
+      summary.add(flags[i], syncStates[i]);
+    }
+    return summary;
+  }
+}
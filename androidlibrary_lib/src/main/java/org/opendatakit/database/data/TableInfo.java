@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The definition entry, user-defined columns and metadata of a table, as returned together
+ * for several tables by UserDbInterface.getTableInfos()
+ */
+public class TableInfo implements Parcelable {
+
+  public static final Parcelable.Creator<TableInfo> CREATOR = new Parcelable.Creator<TableInfo>() {
+    public TableInfo createFromParcel(Parcel in) {
+      return new TableInfo(in);
+    }
+
+    public TableInfo[] newArray(int size) {
+      return new TableInfo[size];
+    }
+  };
+
+  private final TableDefinitionEntry definitionEntry;
+  private final OrderedColumns columns;
+  private final TableMetaDataEntries metadata;
+
+  /**
+   * @param definitionEntry the table definition entry
+   * @param columns         the user-defined columns
+   * @param metadata        all the metadata of the table
+   */
+  public TableInfo(TableDefinitionEntry definitionEntry, OrderedColumns columns,
+      TableMetaDataEntries metadata) {
+    if (definitionEntry == null || columns == null || metadata == null) {
+      throw new IllegalArgumentException("table info must be complete");
+    }
+    this.definitionEntry = definitionEntry;
+    this.columns = columns;
+    this.metadata = metadata;
+  }
+
+  private TableInfo(Parcel in) {
+    definitionEntry = new TableDefinitionEntry(in);
+    columns = new OrderedColumns(in);
+    metadata = TableMetaDataEntries.CREATOR.createFromParcel(in);
+  }
+
+  public String getTableId() {
+    return definitionEntry.getTableId();
+  }
+
+  public TableDefinitionEntry getDefinitionEntry() {
+    return definitionEntry;
+  }
+
+  public OrderedColumns getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return all the metadata of the table
+   */
+  public TableMetaDataEntries getMetadata() {
+    return metadata;
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel out, int flags) {
+    definitionEntry.writeToParcel(out, flags);
+    columns.writeToParcel(out, flags);
+    metadata.writeToParcel(out, flags);
+  }
+}
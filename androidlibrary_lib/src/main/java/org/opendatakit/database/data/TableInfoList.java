@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wrapper class for a list of TableInfo so that it can
+ * be sent from an Android Service.
+ */
+public class TableInfoList implements Parcelable {
+
+  public static final Parcelable.Creator<TableInfoList> CREATOR
+      = new Parcelable.Creator<TableInfoList>() {
+    public TableInfoList createFromParcel(Parcel in) {
+      return new TableInfoList(in);
+    }
+
+    public TableInfoList[] newArray(int size) {
+      return new TableInfoList[size];
+    }
+  };
+
+  private final List<TableInfo> tableInfos;
+
+  public TableInfoList(List<TableInfo> tableInfos) {
+    if (tableInfos == null) {
+      throw new IllegalArgumentException("list of TableInfo cannot be null!");
+    }
+    this.tableInfos = tableInfos;
+  }
+
+  private TableInfoList(Parcel in) {
+    int count = in.readInt();
+    if (count < 0 || count > in.dataAvail()) {
+      throw new IllegalArgumentException("invalid table info count");
+    }
+    tableInfos = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      tableInfos.add(TableInfo.CREATOR.createFromParcel(in));
+    }
+  }
+
+  public List<TableInfo> getTableInfos() {
+    return tableInfos;
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel out, int flags) {
+    out.writeInt(tableInfos.size());
+    for (TableInfo tableInfo : tableInfos) {
+      tableInfo.writeToParcel(out, flags);
+    }
+  }
+}
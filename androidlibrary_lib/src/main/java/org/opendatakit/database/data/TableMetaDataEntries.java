@@ -19,19 +19,64 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A simple struct to hold the contents of a metadata call and its revision
- *
+ * <p>
+ * The entries are indexed by partition, (partition, aspect) and (partition, aspect, key)
+ * the first time they are filtered, so that later lookups only visit the matching entries.
  */
 public class TableMetaDataEntries implements Parcelable {
 
+  /**
+   * writeToParcel() flag: write the entries field by field instead of through Java
+   * serialization. Only pass this if the reader is known to understand it (see
+   * DbChunk.FEATURE_FIELD_WISE_METADATA).
+   */
+  public static final int PARCELABLE_WRITE_FIELD_WISE = 0x80000;
+
+  /**
+   * Written before the entries: there are none, they are serialized, or they are written
+   * field by field
+   */
+  private static final byte NO_ENTRIES = 0;
+  private static final byte SERIALIZED_ENTRIES = 1;
+  private static final byte FIELD_WISE_ENTRIES = 2;
+
+  /**
+   * Set in the flags of an encoded entry whose tableId is that of the TableMetaDataEntries
+   */
+  private static final int SAME_TABLE_ID = 0x1;
+  /**
+   * Set in the flags of an encoded entry whose partition is that of the previous entry
+   */
+  private static final int SAME_PARTITION = 0x2;
+  /**
+   * Set in the flags of an encoded entry whose aspect is that of the previous entry
+   */
+  private static final int SAME_ASPECT = 0x4;
+
   private String tableId;
 
   private String revId;
 
   private ArrayList<KeyValueStoreEntry> entries;
 
+  /**
+   * The entries by their partition, aspect and key prefixes. Access this ONLY through
+   * getIndex(). Multiple threads may be filtering the same entries.
+   */
+  private Map<List<String>, List<KeyValueStoreEntry>> index = null;
+  /**
+   * The number of entries when the index was built
+   */
+  private int indexedCount = -1;
+
   public TableMetaDataEntries(String tableId, String revId) {
     this.tableId = tableId;
     this.revId = revId;
@@ -62,6 +107,99 @@ public class TableMetaDataEntries implements Parcelable {
 
   public void addEntry(KeyValueStoreEntry e) {
     entries.add(e);
+    synchronized (this) {
+      index = null;
+    }
+  }
+
+  /**
+   * The entries matching all the non-null arguments, in their order in getEntries().
+   * The entries must not be changed through getEntries() while this is in use.
+   *
+   * @param partition part of the properties triplet, or null for any
+   * @param aspect    part of the properties triplet, or null for any
+   * @param key       the key and last part of the triplet, or null for any
+   * @return the matching entries
+   */
+  public List<KeyValueStoreEntry> getEntries(String partition, String aspect, String key) {
+    if (partition == null) {
+      // not indexed
+      List<KeyValueStoreEntry> matches = new ArrayList<>();
+      for (KeyValueStoreEntry entry : entries) {
+        if (matches(entry, null, aspect, key)) {
+          matches.add(entry);
+        }
+      }
+      return matches;
+    }
+
+    List<String> prefix;
+    if (aspect == null) {
+      prefix = Collections.singletonList(partition);
+    } else if (key == null) {
+      prefix = Arrays.asList(partition, aspect);
+    } else {
+      prefix = Arrays.asList(partition, aspect, key);
+    }
+    List<KeyValueStoreEntry> candidates = getIndex().get(prefix);
+    if (candidates == null) {
+      return new ArrayList<>();
+    }
+    if (aspect == null && key != null) {
+      List<KeyValueStoreEntry> matches = new ArrayList<>();
+      for (KeyValueStoreEntry entry : candidates) {
+        if (matches(entry, null, null, key)) {
+          matches.add(entry);
+        }
+      }
+      return matches;
+    }
+    return new ArrayList<>(candidates);
+  }
+
+  /**
+   * @param partition part of the properties triplet, or null for any
+   * @param aspect    part of the properties triplet, or null for any
+   * @param key       the key and last part of the triplet, or null for any
+   * @return a copy holding only the entries matching all the non-null arguments
+   */
+  public TableMetaDataEntries filter(String partition, String aspect, String key) {
+    if (partition == null && aspect == null && key == null) {
+      return new TableMetaDataEntries(this);
+    }
+    TableMetaDataEntries filtered = new TableMetaDataEntries(tableId, revId);
+    filtered.entries.addAll(getEntries(partition, aspect, key));
+    return filtered;
+  }
+
+  private static boolean matches(KeyValueStoreEntry entry, String partition, String aspect,
+      String key) {
+    return (partition == null || partition.equals(entry.partition)) && (aspect == null
+        || aspect.equals(entry.aspect)) && (key == null || key.equals(entry.key));
+  }
+
+  private synchronized Map<List<String>, List<KeyValueStoreEntry>> getIndex() {
+    if (index == null || indexedCount != entries.size()) {
+      Map<List<String>, List<KeyValueStoreEntry>> newIndex = new HashMap<>();
+      for (KeyValueStoreEntry entry : entries) {
+        addToIndex(newIndex, Collections.singletonList(entry.partition), entry);
+        addToIndex(newIndex, Arrays.asList(entry.partition, entry.aspect), entry);
+        addToIndex(newIndex, Arrays.asList(entry.partition, entry.aspect, entry.key), entry);
+      }
+      index = newIndex;
+      indexedCount = entries.size();
+    }
+    return index;
+  }
+
+  private static void addToIndex(Map<List<String>, List<KeyValueStoreEntry>> index,
+      List<String> prefix, KeyValueStoreEntry entry) {
+    List<KeyValueStoreEntry> list = index.get(prefix);
+    if (list == null) {
+      list = new ArrayList<>(1);
+      index.put(prefix, list);
+    }
+    list.add(entry);
   }
 
   @Override
@@ -77,8 +215,77 @@ public class TableMetaDataEntries implements Parcelable {
     out.writeByte((byte)(revId != null ? 1 : 0));
     out.writeString(revId);
 
-    out.writeByte((byte)(entries != null ? 1 : 0));
-    out.writeSerializable(entries);
+    if (entries == null) {
+      out.writeByte(NO_ENTRIES);
+    } else if ((flags & PARCELABLE_WRITE_FIELD_WISE) != 0) {
+      out.writeByte(FIELD_WISE_ENTRIES);
+      writeEntries(out);
+    } else {
+      out.writeByte(SERIALIZED_ENTRIES);
+      out.writeSerializable(entries);
+    }
+  }
+
+  /**
+   * Write each field of each entry, leaving out the tableId, partition and aspect when they
+   * repeat, as they mostly do
+   */
+  private void writeEntries(Parcel out) {
+    out.writeInt(entries.size());
+    KeyValueStoreEntry previous = null;
+    for (KeyValueStoreEntry entry : entries) {
+      int flags = 0;
+      if (entry.tableId != null && entry.tableId.equals(tableId)) {
+        flags |= SAME_TABLE_ID;
+      }
+      if (previous != null && entry.partition != null && entry.partition
+          .equals(previous.partition)) {
+        flags |= SAME_PARTITION;
+      }
+      if (previous != null && entry.aspect != null && entry.aspect.equals(previous.aspect)) {
+        flags |= SAME_ASPECT;
+      }
+      out.writeByte((byte) flags);
+      if ((flags & SAME_TABLE_ID) == 0) {
+        out.writeString(entry.tableId);
+      }
+      if ((flags & SAME_PARTITION) == 0) {
+        out.writeString(entry.partition);
+      }
+      if ((flags & SAME_ASPECT) == 0) {
+        out.writeString(entry.aspect);
+      }
+      out.writeString(entry.key);
+      out.writeString(entry.type);
+      out.writeString(entry.value);
+      previous = entry;
+    }
+  }
+
+  private ArrayList<KeyValueStoreEntry> readEntries(Parcel in) {
+    int count = in.readInt();
+    // each entry takes at least one byte
+    if (count < 0 || count > in.dataAvail()) {
+      throw new IllegalArgumentException("invalid metadata entry count");
+    }
+    ArrayList<KeyValueStoreEntry> list = new ArrayList<>(count);
+    KeyValueStoreEntry previous = null;
+    for (int i = 0; i < count; ++i) {
+      int flags = in.readByte();
+      if (previous == null && (flags & (SAME_PARTITION | SAME_ASPECT)) != 0) {
+        throw new IllegalArgumentException("invalid metadata entry");
+      }
+      KeyValueStoreEntry entry = new KeyValueStoreEntry();
+      entry.tableId = ((flags & SAME_TABLE_ID) != 0) ? tableId : in.readString();
+      entry.partition = ((flags & SAME_PARTITION) != 0) ? previous.partition : in.readString();
+      entry.aspect = ((flags & SAME_ASPECT) != 0) ? previous.aspect : in.readString();
+      entry.key = in.readString();
+      entry.type = in.readString();
+      entry.value = in.readString();
+      list.add(entry);
+      previous = entry;
+    }
+    return list;
   }
 
   @SuppressWarnings("unchecked")
@@ -89,9 +296,14 @@ public class TableMetaDataEntries implements Parcelable {
     notNull = in.readByte() == 1;
     revId = notNull ? in.readString() : null;
 
-    notNull = in.readByte() == 1;
-    entries = notNull ? (ArrayList<KeyValueStoreEntry>) in.readSerializable() :
-        new ArrayList<KeyValueStoreEntry>();
+    byte format = in.readByte();
+    if (format == FIELD_WISE_ENTRIES) {
+      entries = readEntries(in);
+    } else if (format == SERIALIZED_ENTRIES) {
+      entries = (ArrayList<KeyValueStoreEntry>) in.readSerializable();
+    } else {
+      entries = new ArrayList<>();
+    }
   }
 
   public static final Parcelable.Creator<TableMetaDataEntries> CREATOR
@@ -27,6 +27,7 @@ import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -70,6 +71,20 @@ public class UserTable implements Parcelable, WrapperTable {
     this.mAdminColumnOrder = table.mAdminColumnOrder;
   }
 
+  /**
+   * Construct an independent copy of a table, as BaseTable(BaseTable) does
+   *
+   * @param table the table to copy
+   */
+  public UserTable(UserTable table) {
+    this.mBaseTable = new BaseTable(table.mBaseTable);
+    //noinspection ThisEscapedInObjectConstruction
+    this.mBaseTable.registerWrapperTable(this);
+
+    this.mColumnDefns = table.mColumnDefns;
+    this.mAdminColumnOrder = table.mAdminColumnOrder;
+  }
+
   public UserTable(BaseTable baseTable, OrderedColumns columnDefns, String[] adminColumnOrder) {
     this.mBaseTable = baseTable;
     //noinspection ThisEscapedInObjectConstruction
@@ -229,31 +244,16 @@ public class UserTable implements Parcelable, WrapperTable {
   }
 
   public boolean hasCheckpointRows() {
-    List<Row> rows = mBaseTable.getRows();
-    for (Row row : rows) {
-      String type = row.getDataByKey(DataTableColumns.SAVEPOINT_TYPE);
-      if (type == null || type.isEmpty()) {
-        return true;
-      }
-    }
-    return false;
+    return (mBaseTable.getHealthSummary() & BaseTable.HEALTH_HAS_CHECKPOINT_ROWS) != 0;
   }
 
   public boolean hasConflictRows() {
-    List<Row> rows = mBaseTable.getRows();
-    for (Row row : rows) {
-      String conflictType = row.getDataByKey(DataTableColumns.CONFLICT_TYPE);
-      if (conflictType != null && !conflictType.isEmpty()) {
-        return true;
-      }
-    }
-    return false;
+    return (mBaseTable.getHealthSummary() & BaseTable.HEALTH_HAS_CONFLICT_ROWS) != 0;
   }
 
   /**
-   * Scan the rowIds to get the row number. As the rowIds are not sorted, this
-   * is a potentially expensive operation, scanning the entire array, as well as
-   * the cost of checking String equality. Should be used only when necessary.
+   * Look up the row number of a rowId. The first lookup indexes the rowIds of the
+   * entire table, after which each lookup is a hash map access.
    * <p>
    * Return -1 if the row Id is not found.
    *
@@ -261,12 +261,17 @@ public class UserTable implements Parcelable, WrapperTable {
    * @return the index of the row into the table
    */
   public int getRowNumFromId(String rowId) {
-    for (int i = 0; i < mBaseTable.getNumberOfRows(); i++) {
-      if (getRowId(i).equals(rowId)) {
-        return i;
-      }
-    }
-    return -1;
+    return mBaseTable.getRowIndexForId(rowId);
+  }
+
+  /**
+   * Get the row numbers of many rowIds at once. See getRowNumFromId().
+   *
+   * @param rowIds the row ids to get the row numbers from
+   * @return the index of each row id, in iteration order, or -1 where it is not found
+   */
+  public int[] getRowIndicesForIds(Collection<String> rowIds) {
+    return mBaseTable.getRowIndicesForIds(rowIds);
   }
 
   public WrapperTable getWrapperTable() {
@@ -126,6 +126,29 @@ public abstract class ResumableQuery implements Query, Parcelable, Serializable
       return mOffset;
    }
 
+   /**
+    * Return the element keys that identify the position of a row in the ordering of the
+    * results, if the query is continued by keyset rather than by offset
+    *
+    * @return the keys, or null if the query is continued by offset
+    */
+   public String[] getKeysetElementKeys() {
+      return null;
+   }
+
+   /**
+    * Continue the query from a row of the current results, by comparing the keyset element
+    * keys with those of the row rather than by skipping the rows before the offset. The
+    * offset should still be set to the index of the first row that will be returned.
+    * Setting the offset again reverts to continuing by offset.
+    *
+    * @param keyValues the value of each of getKeysetElementKeys() in the row
+    * @param forward   true to return the rows after the row, false for the rows before it
+    */
+   public void setKeysetContinuation(String[] keyValues, boolean forward) {
+      throw new UnsupportedOperationException("This query is not continued by keyset");
+   }
+
    @Override
    public int describeContents() {
       return 0;
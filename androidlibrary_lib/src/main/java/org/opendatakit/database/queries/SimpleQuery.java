@@ -19,6 +19,11 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This is a basic query with the typical building blocks.
@@ -50,6 +55,26 @@ public class SimpleQuery extends ResumableQuery {
     */
    protected final String[] mOrderByDirections;
 
+   /**
+    * The element keys of the columns to return, or null to return all of them
+    */
+   protected final String[] mProjection;
+
+   /**
+    * True if the query is continued by keyset (see setKeysetPaging())
+    */
+   protected boolean mKeysetPaging = false;
+
+   /**
+    * The values of the keyset element keys of the row to continue from, or null to continue
+    * from the offset
+    */
+   protected String[] mKeysetValues = null;
+
+   /**
+    * True to continue after the row with mKeysetValues, false to continue before it
+    */
+   protected boolean mKeysetForward = true;
 
 
    /**
@@ -69,6 +94,28 @@ public class SimpleQuery extends ResumableQuery {
        String[] groupByArgs, String havingClause, String[] orderByColNames,
        String[] orderByDirections, Integer limit, Integer offset) {
 
+      this(tableId, null, bindArgs, whereClause, groupByArgs, havingClause, orderByColNames,
+          orderByDirections, limit, offset);
+   }
+
+   /**
+    * Construct a query that returns only some of the columns of the table
+    *
+    * @param tableId The table to query
+    * @param projection The element keys of the columns to return, or null for all of them
+    * @param bindArgs The sql selection args
+    * @param whereClause The sql where clause
+    * @param groupByArgs The sql group by arguments
+    * @param havingClause The sql having clause
+    * @param orderByColNames The columns to order by
+    * @param orderByDirections The directions to order by
+    * @param limit The maximum number of rows to return
+    * @param offset The offset to start counting the limit from
+    */
+   public SimpleQuery(String tableId, String[] projection, BindArgs bindArgs,
+       String whereClause, String[] groupByArgs, String havingClause, String[] orderByColNames,
+       String[] orderByDirections, Integer limit, Integer offset) {
+
       super(tableId, bindArgs, limit, offset);
 
       if (tableId == null) {
@@ -81,6 +128,8 @@ public class SimpleQuery extends ResumableQuery {
 
       this.mOrderByColNames = orderByColNames;
       this.mOrderByDirections = orderByDirections;
+      this.mProjection = (projection != null && projection.length != 0)
+          ? projection.clone() : null;
    }
 
    public SimpleQuery(String tableId, BindArgs bindArgs, String whereClause,
@@ -100,12 +149,162 @@ public class SimpleQuery extends ResumableQuery {
       this.mHavingClause = readStringFromParcel(in);
       this.mOrderByColNames = readStringArrFromParcel(in);
       this.mOrderByDirections = readStringArrFromParcel(in);
+      this.mKeysetPaging = in.readByte() != 0;
+      this.mKeysetValues = readStringArrFromParcel(in);
+      this.mKeysetForward = in.readByte() != 0;
+      this.mProjection = readStringArrFromParcel(in);
    }
 
 
    public String getSqlCommand() {
-      return QueryUtil.buildSqlStatement(mTableId, mWhereClause, mGroupByArgs, mHavingClause,
-          mOrderByColNames, mOrderByDirections);
+      String[] keys = getKeysetElementKeys();
+      if (keys == null) {
+         return QueryUtil.buildSqlStatement(mTableId, mProjection, mWhereClause, mGroupByArgs,
+             mHavingClause, mOrderByColNames, mOrderByDirections);
+      }
+
+      // the keys of the last row of the results are needed to continue from it
+      String[] projection = null;
+      if (mProjection != null) {
+         List<String> columns = new ArrayList<>(Arrays.asList(mProjection));
+         for (String key : keys) {
+            if (!columns.contains(key)) {
+               columns.add(key);
+            }
+         }
+         projection = columns.toArray(new String[columns.size()]);
+      }
+
+      String[] directions = getKeysetDirections(keys.length);
+      if (mKeysetValues == null) {
+         return QueryUtil.buildSqlStatement(mTableId, projection, mWhereClause, null, null, keys,
+             directions);
+      }
+      return QueryUtil.buildSqlStatement(mTableId, projection, mWhereClause, keys, directions,
+          mKeysetForward, mLimit);
+   }
+
+   /**
+    * Return the element keys of the columns the query returns. A query that is continued by
+    * keyset also returns any of the keyset element keys that are not among them.
+    *
+    * @return the element keys, or null if all of the columns are returned
+    */
+   public String[] getProjection() {
+      return mProjection != null ? mProjection.clone() : null;
+   }
+
+   @Override
+   public BindArgs getSqlBindArgs() {
+      if (mKeysetValues == null || getKeysetElementKeys() == null) {
+         return super.getSqlBindArgs();
+      }
+
+      Object[] args = (mBindArgs.bindArgs != null) ? mBindArgs.bindArgs : new Object[0];
+      Object[] keyArgs = QueryUtil.buildKeysetBindArgs(mKeysetValues);
+      Object[] allArgs = new Object[args.length + keyArgs.length];
+      System.arraycopy(args, 0, allArgs, 0, args.length);
+      System.arraycopy(keyArgs, 0, allArgs, args.length, keyArgs.length);
+      return new BindArgs(allArgs);
+   }
+
+   @Override
+   public QueryBounds getSqlQueryBounds() {
+      if (mKeysetValues == null || getKeysetElementKeys() == null) {
+         return super.getSqlQueryBounds();
+      }
+
+      // the continuation starts at the row to continue from rather than at the offset, and
+      // a backward continuation has its limit in the statement
+      return mKeysetForward ? new QueryBounds(mLimit, 0) : null;
+   }
+
+   @Override
+   public void setSqlOffset(int offset) {
+      super.setSqlOffset(offset);
+      mKeysetValues = null;
+   }
+
+   /**
+    * Continue this query by keyset rather than by offset. Each continuation then finds its
+    * rows by comparing the ORDER BY columns with those of the last (or first) row of the
+    * previous results, so its cost does not grow with the number of rows before it.
+    * <p>
+    * The ORDER BY columns must not be null. _id and then _savepoint_timestamp are added to
+    * them if they are not among them, so that they identify each row: the checkpoints and
+    * the server copy of a conflict share the _id of the row they belong to, but each has
+    * its own savepoint timestamp. If a row of the results lacks any of them, the query is
+    * continued by offset instead. Queries with a GROUP BY are always continued by offset.
+    *
+    * @param keysetPaging true to continue by keyset, false to continue by offset
+    */
+   public void setKeysetPaging(boolean keysetPaging) {
+      mKeysetPaging = keysetPaging;
+      mKeysetValues = null;
+   }
+
+   public boolean isKeysetPaging() {
+      return mKeysetPaging;
+   }
+
+   @Override
+   public String[] getKeysetElementKeys() {
+      if (!mKeysetPaging || (mGroupByArgs != null && mGroupByArgs.length != 0)) {
+         return null;
+      }
+
+      List<String> keys = new ArrayList<>();
+      if (mOrderByColNames != null) {
+         for (String elementKey : mOrderByColNames) {
+            if (elementKey != null && !elementKey.isEmpty()) {
+               keys.add(elementKey);
+            }
+         }
+      }
+      if (!keys.contains(DataTableColumns.ID)) {
+         keys.add(DataTableColumns.ID);
+      }
+      if (!keys.contains(DataTableColumns.SAVEPOINT_TIMESTAMP)) {
+         keys.add(DataTableColumns.SAVEPOINT_TIMESTAMP);
+      }
+      return keys.toArray(new String[keys.size()]);
+   }
+
+   @Override
+   public void setKeysetContinuation(String[] keyValues, boolean forward) {
+      String[] keys = getKeysetElementKeys();
+      if (keys == null) {
+         throw new UnsupportedOperationException("This query is not continued by keyset");
+      }
+      if (keyValues == null || keyValues.length != keys.length) {
+         throw new IllegalArgumentException("A value is needed for each keyset element key");
+      }
+      mKeysetValues = keyValues.clone();
+      mKeysetForward = forward;
+   }
+
+   /**
+    * @param keyCount the number of keyset element keys
+    * @return the direction of each of the keyset element keys, matching the ORDER BY
+    */
+   private String[] getKeysetDirections(int keyCount) {
+      boolean directionSpecified = mOrderByDirections != null && mOrderByColNames != null
+          && mOrderByDirections.length == mOrderByColNames.length;
+      String[] directions = new String[keyCount];
+      int n = 0;
+      if (mOrderByColNames != null) {
+         for (int i = 0; i < mOrderByColNames.length; i++) {
+            if (mOrderByColNames[i] == null || mOrderByColNames[i].isEmpty()) {
+               continue;
+            }
+            directions[n++] = directionSpecified ? mOrderByDirections[i] : null;
+         }
+      }
+      // the _id and _savepoint_timestamp tie breakers, if they were added
+      for (; n < keyCount; n++) {
+         directions[n] = "ASC";
+      }
+      return directions;
    }
 
    /**
@@ -161,6 +360,10 @@ public class SimpleQuery extends ResumableQuery {
       writeStringToParcel(dest, mHavingClause);
       writeStringArrToParcel(dest, mOrderByColNames);
       writeStringArrToParcel(dest, mOrderByDirections);
+      dest.writeByte((byte) (mKeysetPaging ? 1 : 0));
+      writeStringArrToParcel(dest, mKeysetValues);
+      dest.writeByte((byte) (mKeysetForward ? 1 : 0));
+      writeStringArrToParcel(dest, mProjection);
    }
 
    public static final Parcelable.Creator<SimpleQuery> CREATOR =
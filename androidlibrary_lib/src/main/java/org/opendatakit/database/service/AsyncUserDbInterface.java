@@ -0,0 +1,674 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableDefinitionEntry;
+import org.opendatakit.database.data.TableInfo;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.exception.ActionNotAuthorizedException;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs UserDbInterface calls on an executor so that the calling (e.g., UI) thread does not
+ * block on the service, and so that independent reads proceed in parallel.
+ * <p>
+ * Each method returns a Future and, if a callback is given, reports the outcome to it as
+ * well. Callbacks are run on the callback executor given to the constructor, or on the
+ * thread that made the call to the database if there is none.
+ * <p>
+ * A query that is identical to one that is still in progress does not go to the database
+ * again; it receives an independent copy of the result of the one in progress. A query
+ * submitted after a write made through submitWrite() is never collapsed into one submitted
+ * before it.
+ * <p>
+ * Calls, writes included, run concurrently and in no particular order: a query submitted
+ * after a write may run before the write does. To read what a write has changed, submit
+ * the query from the write's callback or once its Future has completed.
+ */
+public class AsyncUserDbInterface {
+
+  private static final String TAG = AsyncUserDbInterface.class.getSimpleName();
+
+  /**
+   * A call, or several, to make on the database
+   *
+   * @param <T> the result
+   */
+  public interface DbCall<T> {
+    T call(UserDbInterface database)
+        throws ServicesAvailabilityException, ActionNotAuthorizedException;
+  }
+
+  /**
+   * Receives the outcome of an asynchronous call
+   *
+   * @param <T> the result
+   */
+  public interface DbCallback<T> {
+    void onSuccess(T result);
+
+    void onFailure(Exception e);
+  }
+
+  /**
+   * Makes an independent copy of a result that is shared by collapsed queries
+   */
+  private interface Copier<T> {
+    T copy(T result);
+  }
+
+  private static final Copier<BaseTable> BASE_TABLE_COPIER = new Copier<BaseTable>() {
+    @Override
+    public BaseTable copy(BaseTable result) {
+      return new BaseTable(result);
+    }
+  };
+
+  private static final Copier<UserTable> USER_TABLE_COPIER = new Copier<UserTable>() {
+    @Override
+    public UserTable copy(UserTable result) {
+      return new UserTable(result);
+    }
+  };
+
+  private final UserDbInterface database;
+  private final Executor executor;
+  private final Executor callbackExecutor;
+
+  /**
+   * The queries in progress, by their arguments. Access this only while holding it.
+   */
+  private final Map<List<Object>, SharedCall<?>> inFlightQueries = new HashMap<>();
+  private final AtomicInteger collapsedQueries = new AtomicInteger(0);
+
+  /**
+   * @param database         the interface to make the calls on
+   * @param executor         the executor to make the calls on, e.g. one from
+   *                         newBoundedExecutor()
+   * @param callbackExecutor the executor to run the callbacks on, or null to run them on
+   *                         the executor the call was made on
+   */
+  public AsyncUserDbInterface(UserDbInterface database, Executor executor,
+      Executor callbackExecutor) {
+    if (database == null) {
+      throw new IllegalArgumentException("Database Interface must not be null");
+    }
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    this.database = database;
+    this.executor = executor;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * An executor with at most maxThreads threads, which exit when they have been idle for
+   * a while. Calls beyond that wait in a queue.
+   *
+   * @param maxThreads the most calls that may be in progress at once
+   * @return the executor
+   */
+  public static ExecutorService newBoundedExecutor(int maxThreads) {
+    if (maxThreads <= 0) {
+      throw new IllegalArgumentException("maxThreads must be positive");
+    }
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  public UserDbInterface getDatabase() {
+    return database;
+  }
+
+  /**
+   * @return the number of queries that were answered by one already in progress
+   */
+  public int getCollapsedQueryCount() {
+    return collapsedQueries.get();
+  }
+
+  /**
+   * Make an arbitrary read, or several, on the executor. The call is never collapsed with
+   * another.
+   *
+   * @param call     the call
+   * @param callback told the outcome; may be null
+   * @return the result
+   */
+  public <T> Future<T> submit(final DbCall<T> call, DbCallback<T> callback) {
+    CallbackTask<T> task = new CallbackTask<>(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return call.call(database);
+      }
+    }, callback);
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Make a change, or several, on the executor. Queries submitted after this are not
+   * collapsed into queries submitted before it, but they are not held back until it is
+   * done either; see the class comment.
+   *
+   * @param call     the call
+   * @param callback told the outcome; may be null
+   * @return the result
+   */
+  public <T> Future<T> submitWrite(DbCall<T> call, DbCallback<T> callback) {
+    synchronized (inFlightQueries) {
+      inFlightQueries.clear();
+    }
+    return submit(call, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.simpleQuery()
+   */
+  public Future<BaseTable> simpleQuery(final String appName, final DbHandle dbHandleName,
+      final String tableId, final String whereClause, final BindArgs bindArgs,
+      final String[] groupBy, final String having, final String[] orderByColNames,
+      final String[] orderByDirections, final Integer limit, final Integer offset,
+      final String[] projection, DbCallback<BaseTable> callback) {
+    List<Object> key = key("simpleQuery", appName, dbHandleName, tableId, whereClause,
+        bindArgs, groupBy, having, orderByColNames, orderByDirections, limit, offset,
+        projection);
+    return submitQuery(key, new DbCall<BaseTable>() {
+      @Override
+      public BaseTable call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database.simpleQuery(appName, dbHandleName, tableId, whereClause, bindArgs,
+            groupBy, having, orderByColNames, orderByDirections, limit, offset, projection);
+      }
+    }, BASE_TABLE_COPIER, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.simpleQuery() returning a UserTable
+   */
+  public Future<UserTable> simpleQuery(final String appName, final DbHandle dbHandleName,
+      final String tableId, final OrderedColumns columnDefns, final String whereClause,
+      final BindArgs bindArgs, final String[] groupBy, final String having,
+      final String[] orderByColNames, final String[] orderByDirections, final Integer limit,
+      final Integer offset, DbCallback<UserTable> callback) {
+    List<Object> key = key("simpleQuery", appName, dbHandleName, tableId, columnDefns,
+        whereClause, bindArgs, groupBy, having, orderByColNames, orderByDirections, limit,
+        offset);
+    return submitQuery(key, new DbCall<UserTable>() {
+      @Override
+      public UserTable call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database.simpleQuery(appName, dbHandleName, tableId, columnDefns, whereClause,
+            bindArgs, groupBy, having, orderByColNames, orderByDirections, limit, offset);
+      }
+    }, USER_TABLE_COPIER, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.arbitrarySqlQuery()
+   */
+  public Future<BaseTable> arbitrarySqlQuery(final String appName, final DbHandle dbHandleName,
+      final String tableId, final String sqlCommand, final BindArgs bindArgs,
+      final Integer limit, final Integer offset, DbCallback<BaseTable> callback) {
+    List<Object> key = key("arbitrarySqlQuery", appName, dbHandleName, tableId, sqlCommand,
+        bindArgs, limit, offset);
+    return submitQuery(key, new DbCall<BaseTable>() {
+      @Override
+      public BaseTable call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database.arbitrarySqlQuery(appName, dbHandleName, tableId, sqlCommand,
+            bindArgs, limit, offset);
+      }
+    }, BASE_TABLE_COPIER, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getRowsWithId()
+   */
+  public Future<UserTable> getRowsWithId(final String appName, final DbHandle dbHandleName,
+      final String tableId, final OrderedColumns orderedColumns, final String rowId,
+      DbCallback<UserTable> callback) {
+    List<Object> key = key("getRowsWithId", appName, dbHandleName, tableId, orderedColumns,
+        rowId);
+    return submitQuery(key, new DbCall<UserTable>() {
+      @Override
+      public UserTable call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database.getRowsWithId(appName, dbHandleName, tableId, orderedColumns, rowId);
+      }
+    }, USER_TABLE_COPIER, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getMostRecentRowWithId()
+   */
+  public Future<UserTable> getMostRecentRowWithId(final String appName,
+      final DbHandle dbHandleName, final String tableId, final OrderedColumns orderedColumns,
+      final String rowId, DbCallback<UserTable> callback) {
+    List<Object> key = key("getMostRecentRowWithId", appName, dbHandleName, tableId,
+        orderedColumns, rowId);
+    return submitQuery(key, new DbCall<UserTable>() {
+      @Override
+      public UserTable call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database
+            .getMostRecentRowWithId(appName, dbHandleName, tableId, orderedColumns, rowId);
+      }
+    }, USER_TABLE_COPIER, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getTableMetadata()
+   */
+  public Future<TableMetaDataEntries> getTableMetadata(final String appName,
+      final DbHandle dbHandleName, final String tableId, final String partition,
+      final String aspect, final String key, final String revId,
+      DbCallback<TableMetaDataEntries> callback) {
+    return submit(new DbCall<TableMetaDataEntries>() {
+      @Override
+      public TableMetaDataEntries call(UserDbInterface database)
+          throws ServicesAvailabilityException {
+        return database
+            .getTableMetadata(appName, dbHandleName, tableId, partition, aspect, key, revId);
+      }
+    }, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getTableDefinitionEntry()
+   */
+  public Future<TableDefinitionEntry> getTableDefinitionEntry(final String appName,
+      final DbHandle dbHandleName, final String tableId,
+      DbCallback<TableDefinitionEntry> callback) {
+    return submit(new DbCall<TableDefinitionEntry>() {
+      @Override
+      public TableDefinitionEntry call(UserDbInterface database)
+          throws ServicesAvailabilityException {
+        return database.getTableDefinitionEntry(appName, dbHandleName, tableId);
+      }
+    }, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getUserDefinedColumns()
+   */
+  public Future<OrderedColumns> getUserDefinedColumns(final String appName,
+      final DbHandle dbHandleName, final String tableId, DbCallback<OrderedColumns> callback) {
+    return submit(new DbCall<OrderedColumns>() {
+      @Override
+      public OrderedColumns call(UserDbInterface database)
+          throws ServicesAvailabilityException {
+        return database.getUserDefinedColumns(appName, dbHandleName, tableId);
+      }
+    }, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getTableInfos()
+   */
+  public Future<List<TableInfo>> getTableInfos(final String appName,
+      final DbHandle dbHandleName, final List<String> tableIds,
+      DbCallback<List<TableInfo>> callback) {
+    return submit(new DbCall<List<TableInfo>>() {
+      @Override
+      public List<TableInfo> call(UserDbInterface database)
+          throws ServicesAvailabilityException {
+        return database.getTableInfos(appName, dbHandleName, tableIds);
+      }
+    }, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getAllTableIds()
+   */
+  public Future<List<String>> getAllTableIds(final String appName, final DbHandle dbHandleName,
+      DbCallback<List<String>> callback) {
+    return submit(new DbCall<List<String>>() {
+      @Override
+      public List<String> call(UserDbInterface database) throws ServicesAvailabilityException {
+        return database.getAllTableIds(appName, dbHandleName);
+      }
+    }, callback);
+  }
+
+  /**
+   * Asynchronous UserDbInterface.getParsedChoiceList()
+   */
+  public Future<List<Map<String, Object>>> getParsedChoiceList(final String appName,
+      final DbHandle dbHandleName, final String choiceListId,
+      DbCallback<List<Map<String, Object>>> callback) {
+    return submit(new DbCall<List<Map<String, Object>>>() {
+      @Override
+      public List<Map<String, Object>> call(UserDbInterface database)
+          throws ServicesAvailabilityException {
+        return database.getParsedChoiceList(appName, dbHandleName, choiceListId);
+      }
+    }, callback);
+  }
+
+  /**
+   * Run a query, or join the identical one that is already in progress
+   */
+  private <T> Future<T> submitQuery(List<Object> key, final DbCall<T> call, Copier<T> copier,
+      DbCallback<T> callback) {
+    SharedCall<T> shared;
+    Future<T> result;
+    boolean start = false;
+    // joining while holding the lock means that no one joins once the call is done
+    synchronized (inFlightQueries) {
+      @SuppressWarnings("unchecked")
+      SharedCall<T> existing = (SharedCall<T>) inFlightQueries.get(key);
+      if (existing == null || existing.isDone()) {
+        shared = new SharedCall<>(key, new Callable<T>() {
+          @Override
+          public T call() throws Exception {
+            return call.call(database);
+          }
+        }, copier);
+        inFlightQueries.put(key, shared);
+        start = true;
+      } else {
+        shared = existing;
+        collapsedQueries.incrementAndGet();
+      }
+      result = shared.join(callback);
+    }
+    if (start) {
+      try {
+        executor.execute(shared);
+      } catch (RuntimeException e) {
+        synchronized (inFlightQueries) {
+          if (inFlightQueries.get(key) == shared) {
+            inFlightQueries.remove(key);
+          }
+        }
+        shared.setException(e);
+        throw e;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The arguments of a query, in a form that is equal for identical queries
+   */
+  private static List<Object> key(Object... args) {
+    List<Object> key = new ArrayList<>(args.length);
+    for (Object arg : args) {
+      if (arg instanceof Object[]) {
+        key.add(Arrays.asList(((Object[]) arg).clone()));
+      } else if (arg instanceof BindArgs) {
+        Object[] values = ((BindArgs) arg).bindArgs;
+        key.add((values == null) ? null : Arrays.asList(values.clone()));
+      } else if (arg instanceof DbHandle) {
+        key.add(((DbHandle) arg).getDatabaseHandle());
+      } else {
+        // OrderedColumns are compared by identity
+        key.add(arg);
+      }
+    }
+    return key;
+  }
+
+  private <T> void dispatch(final DbCallback<T> callback, final T result, final Exception e) {
+    if (callback == null) {
+      return;
+    }
+    Runnable report = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (e == null) {
+            callback.onSuccess(result);
+          } else {
+            callback.onFailure(e);
+          }
+        } catch (RuntimeException t) {
+          WebLogger.getContextLogger().e(TAG, "callback failed: " + t.toString());
+          WebLogger.getContextLogger().printStackTrace(t);
+        }
+      }
+    };
+    if (callbackExecutor == null) {
+      report.run();
+    } else {
+      callbackExecutor.execute(report);
+    }
+  }
+
+  private static Exception unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    return (cause instanceof Exception) ? (Exception) cause : e;
+  }
+
+  /**
+   * A call whose outcome is reported to a callback
+   */
+  private final class CallbackTask<T> extends FutureTask<T> {
+    private final DbCallback<T> callback;
+
+    CallbackTask(Callable<T> callable, DbCallback<T> callback) {
+      super(callable);
+      this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        return;
+      }
+      try {
+        dispatch(callback, get(), null);
+      } catch (ExecutionException e) {
+        dispatch(callback, null, unwrap(e));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A query shared by everyone who asked for it while it was in progress. The first to ask
+   * receives the result itself and the others receive copies of it. The copies are all made
+   * before anyone receives the result, so no one can be changing it while it is copied.
+   */
+  private final class SharedCall<T> extends FutureTask<T> {
+    private final List<Object> key;
+    private final Copier<T> copier;
+    private final List<Joiner> joiners = new ArrayList<>();
+    /**
+     * Released once each joiner has been given its result
+     */
+    private final CountDownLatch prepared = new CountDownLatch(1);
+
+    SharedCall(List<Object> key, Callable<T> callable, Copier<T> copier) {
+      super(callable);
+      this.key = key;
+      this.copier = copier;
+    }
+
+    /**
+     * Called while holding inFlightQueries, before the call is done
+     */
+    Future<T> join(DbCallback<T> callback) {
+      Joiner joiner = new Joiner(callback);
+      synchronized (joiners) {
+        joiners.add(joiner);
+      }
+      return joiner;
+    }
+
+    /**
+     * Overridden so that submitQuery() can fail the call if the executor rejects it
+     */
+    @Override
+    protected void setException(Throwable t) {
+      super.setException(t);
+    }
+
+    @Override
+    protected void done() {
+      synchronized (inFlightQueries) {
+        if (inFlightQueries.get(key) == this) {
+          inFlightQueries.remove(key);
+        }
+      }
+      // no one can join now
+      List<Joiner> toReport;
+      synchronized (joiners) {
+        toReport = new ArrayList<>(joiners);
+      }
+      T shared = null;
+      if (!isCancelled()) {
+        try {
+          shared = get();
+        } catch (ExecutionException | InterruptedException e) {
+          // each joiner reports the failure itself
+        }
+      }
+      for (int i = toReport.size() - 1; i >= 0; --i) {
+        Joiner joiner = toReport.get(i);
+        if (joiner.cancelled) {
+          continue;
+        }
+        if (i == 0 || shared == null) {
+          joiner.result = shared;
+        } else {
+          try {
+            joiner.result = copier.copy(shared);
+          } catch (RuntimeException e) {
+            joiner.copyFailure = e;
+          }
+        }
+      }
+      prepared.countDown();
+      for (Joiner joiner : toReport) {
+        joiner.report();
+      }
+    }
+
+    /**
+     * One caller's view of the shared query. Cancelling it does not affect the others.
+     */
+    private final class Joiner implements Future<T> {
+      private final DbCallback<T> callback;
+      private volatile boolean cancelled = false;
+      /**
+       * Set by done() before it releases prepared
+       */
+      private T result = null;
+      private RuntimeException copyFailure = null;
+
+      Joiner(DbCallback<T> callback) {
+        this.callback = callback;
+      }
+
+      void report() {
+        if (cancelled || callback == null) {
+          return;
+        }
+        try {
+          dispatch(callback, get(), null);
+        } catch (ExecutionException e) {
+          dispatch(callback, null, unwrap(e));
+        } catch (CancellationException | InterruptedException e) {
+          // nothing to report
+        }
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+          return false;
+        }
+        cancelled = true;
+        return true;
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+        return cancelled || SharedCall.this.isDone();
+      }
+
+      @Override
+      public T get() throws InterruptedException, ExecutionException {
+        if (cancelled) {
+          throw new CancellationException();
+        }
+        SharedCall.this.get();
+        prepared.await();
+        return result();
+      }
+
+      @Override
+      public T get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, TimeoutException {
+        if (cancelled) {
+          throw new CancellationException();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        SharedCall.this.get(timeout, unit);
+        if (!prepared.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          throw new TimeoutException();
+        }
+        return result();
+      }
+
+      private T result() throws ExecutionException {
+        if (copyFailure != null) {
+          throw new ExecutionException(copyFailure);
+        }
+        return result;
+      }
+    }
+  }
+}
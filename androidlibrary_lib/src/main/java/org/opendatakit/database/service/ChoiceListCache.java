@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSON of recently used choice lists, and their parsed form once asked for, by app and
+ * choiceListId. Used by UserDbInterfaceImpl.
+ * <p>
+ * A choiceListId is derived from the content of its choice list, so an entry never needs
+ * to be revalidated. The least recently used entries are dropped once the estimated size
+ * of all of them is over the budget.
+ * <p>
+ * Multiple threads may be accessing this.
+ */
+final class ChoiceListCache {
+
+  /**
+   * Estimated bytes held by a String, excluding its characters
+   */
+  private static final int STRING_OVERHEAD = 40;
+  /**
+   * Estimated bytes held by any other parsed value, or by a Map or List, excluding their
+   * contents
+   */
+  private static final int OBJECT_OVERHEAD = 32;
+  /**
+   * Estimated bytes held for each element of a Map or List, excluding the element
+   */
+  private static final int ELEMENT_OVERHEAD = 24;
+
+  static final long DEFAULT_MAX_BYTES = 512L * 1024L;
+
+  private static final class Key {
+    private final String appName;
+    private final String choiceListId;
+
+    Key(String appName, String choiceListId) {
+      this.appName = appName;
+      this.choiceListId = choiceListId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return appName.equals(other.appName) && choiceListId.equals(other.choiceListId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * appName.hashCode() + choiceListId.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    private final String json;
+    private List<Map<String, Object>> parsed = null;
+    private long size;
+
+    Entry(String json) {
+      this.json = json;
+      this.size = sizeOf(json);
+    }
+  }
+
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long maxBytes = DEFAULT_MAX_BYTES;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param maxBytes the most the choice lists may hold, estimated; 0 disables the cache
+   */
+  synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    this.maxBytes = maxBytes;
+    trimToSize();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @param appName      the app name
+   * @param choiceListId the choiceListId
+   * @return the choice list JSON, or null if it is not kept
+   */
+  synchronized String getJson(String appName, String choiceListId) {
+    Entry entry = (choiceListId == null) ? null : entries.get(new Key(appName, choiceListId));
+    if (entry == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    return entry.json;
+  }
+
+  /**
+   * Only counted if it is found; otherwise the caller goes on to getJson(), which is.
+   *
+   * @param appName      the app name
+   * @param choiceListId the choiceListId
+   * @return the parsed choice list, or null if it has not been parsed
+   */
+  synchronized List<Map<String, Object>> getParsed(String appName, String choiceListId) {
+    Entry entry = (choiceListId == null) ? null : entries.get(new Key(appName, choiceListId));
+    if (entry == null || entry.parsed == null) {
+      return null;
+    }
+    ++hits;
+    return entry.parsed;
+  }
+
+  /**
+   * Keep the JSON of a choice list
+   *
+   * @param appName      the app name
+   * @param choiceListId the choiceListId
+   * @param json         the choice list JSON
+   */
+  synchronized void putJson(String appName, String choiceListId, String json) {
+    if (choiceListId == null || json == null || maxBytes == 0) {
+      return;
+    }
+    Key key = new Key(appName, choiceListId);
+    if (entries.containsKey(key)) {
+      return;
+    }
+    Entry entry = new Entry(json);
+    if (entry.size > maxBytes) {
+      return;
+    }
+    entries.put(key, entry);
+    bytes += entry.size;
+    trimToSize();
+  }
+
+  /**
+   * Keep the parsed form of a choice list along with its JSON
+   *
+   * @param appName      the app name
+   * @param choiceListId the choiceListId
+   * @param json         the choice list JSON
+   * @param parsed       the result of parse(json)
+   */
+  synchronized void putParsed(String appName, String choiceListId, String json,
+      List<Map<String, Object>> parsed) {
+    putJson(appName, choiceListId, json);
+    Entry entry = entries.get(new Key(appName, choiceListId));
+    if (entry == null || entry.parsed != null) {
+      return;
+    }
+    long parsedSize = sizeOf(parsed);
+    if (entry.size + parsedSize > maxBytes) {
+      return;
+    }
+    entry.parsed = parsed;
+    entry.size += parsedSize;
+    bytes += parsedSize;
+    trimToSize();
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  private void trimToSize() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      bytes -= iterator.next().size;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Parse choice list JSON into a list of choices that cannot be changed, so that it can
+   * be shared by every caller
+   *
+   * @param json the choice list JSON
+   * @return the choices
+   * @throws IllegalArgumentException if it is not a JSON array of objects
+   */
+  @SuppressWarnings("unchecked")
+  static List<Map<String, Object>> parse(String json) {
+    Object value;
+    try {
+      value = ODKFileUtils.mapper.readValue(json, Object.class);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid choice list: " + e.getMessage(), e);
+    }
+    if (!(value instanceof List)) {
+      throw new IllegalArgumentException("Invalid choice list: not a JSON array");
+    }
+    List<Map<String, Object>> choices = new ArrayList<>();
+    for (Object choice : (List<Object>) value) {
+      if (!(choice instanceof Map)) {
+        throw new IllegalArgumentException("Invalid choice list: a choice is not an object");
+      }
+      choices.add((Map<String, Object>) unmodifiable(choice));
+    }
+    return Collections.unmodifiableList(choices);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object unmodifiable(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+        map.put(e.getKey(), unmodifiable(e.getValue()));
+      }
+      return Collections.unmodifiableMap(map);
+    }
+    if (value instanceof List) {
+      List<Object> list = new ArrayList<>();
+      for (Object element : (List<Object>) value) {
+        list.add(unmodifiable(element));
+      }
+      return Collections.unmodifiableList(list);
+    }
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static long sizeOf(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return STRING_OVERHEAD + 2L * ((String) value).length();
+    }
+    long size = OBJECT_OVERHEAD;
+    if (value instanceof Map) {
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+        size += ELEMENT_OVERHEAD + sizeOf(e.getKey()) + sizeOf(e.getValue());
+      }
+    } else if (value instanceof List) {
+      for (Object element : (List<Object>) value) {
+        size += ELEMENT_OVERHEAD + sizeOf(element);
+      }
+    }
+    return size;
+  }
+}
@@ -17,26 +17,137 @@
 package org.opendatakit.database.service;
 
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 
 import java.util.UUID;
+import java.util.zip.CRC32;
 
 public class DbChunk implements Parcelable {
 
+  /**
+   * Optional ways of transporting results that a client and the service can agree upon
+   * through AidlDbInterface.negotiateChunkFeatures(). A service must only use the features
+   * the client has asked for; older clients ask for none of them.
+   */
+  public static final int FEATURE_FILE_DESCRIPTOR = 0x1;
+  public static final int FEATURE_DEFLATE = 0x2;
+  public static final int FEATURE_COMPACT_FRAME = 0x4;
+  /**
+   * Not a transport feature: BaseTable results may be written with
+   * BaseTable.PARCELABLE_WRITE_DICTIONARY_ENCODED. Together with FEATURE_INDEXED_ROWS, the
+   * indexed rows are then dictionary encoded.
+   */
+  public static final int FEATURE_DICTIONARY_ENCODING = 0x8;
+  /**
+   * Not a transport feature: BaseTable results may be written with
+   * BaseTable.PARCELABLE_WRITE_HEALTH_SUMMARY
+   */
+  public static final int FEATURE_HEALTH_SUMMARY = 0x10;
+  /**
+   * Not a transport feature: BaseTable results may be written with
+   * BaseTable.PARCELABLE_WRITE_INDEXED_ROWS
+   */
+  public static final int FEATURE_INDEXED_ROWS = 0x20;
+  /**
+   * Not a transport feature: TableMetaDataEntries results may be written with
+   * TableMetaDataEntries.PARCELABLE_WRITE_FIELD_WISE
+   */
+  public static final int FEATURE_FIELD_WISE_METADATA = 0x40;
+
+  /**
+   * Chunks that use any of the negotiated features are written in an extended frame,
+   * which begins with this marker in place of the (non-negative) data length of the
+   * original frame, followed by the chunk flags.
+   */
+  private static final int EXTENDED_FRAME = -1;
+
+  /**
+   * Marker that begins the compact frame. In place of the serialized UUIDs, it carries
+   * the stream id and sequence number of the chunk (the id of the next chunk is implied),
+   * the length of the entire serialized payload and a CRC32 checksum of the chunk data.
+   */
+  private static final int COMPACT_FRAME = -2;
+
+  /**
+   * Chunk flag: the payload is not in the chunk data but is read from a file descriptor
+   */
+  private static final int FLAG_PAYLOAD_DESCRIPTOR = 0x1;
+
+  /**
+   * Chunk flag: the payload that the chunks make up is Deflate-compressed
+   */
+  private static final int FLAG_DEFLATED = 0x2;
+
   private byte[] data = null;
+  private int dataOffset = 0;
+  private int dataLength = 0;
   private UUID thisID = null;
   private UUID nextID = null;
+  private ParcelFileDescriptor payloadDescriptor = null;
+  private boolean deflated = false;
+  private boolean compactFrame = false;
+  private int payloadLengthHint = -1;
 
   public DbChunk(byte[] data, UUID thisID) {
     if ( data == null ) {
       throw new IllegalArgumentException("null data");
     }
     this.data = data;
+    this.dataLength = data.length;
+    this.thisID = thisID;
+  }
+
+  /**
+   * Construct a chunk that is a view onto a region of a larger buffer.
+   * The buffer is not copied, so it must not be modified while the chunk is in use.
+   *
+   * @param data       the buffer holding the chunk data
+   * @param dataOffset where the chunk data starts within the buffer
+   * @param dataLength how many bytes of the buffer belong to this chunk
+   * @param thisID     the id of this chunk
+   */
+  public DbChunk(byte[] data, int dataOffset, int dataLength, UUID thisID) {
+    if ( data == null ) {
+      throw new IllegalArgumentException("null data");
+    }
+    if ( dataOffset < 0 || dataLength < 0 || dataOffset + dataLength > data.length ) {
+      throw new IllegalArgumentException("invalid data region");
+    }
+    this.data = data;
+    this.dataOffset = dataOffset;
+    this.dataLength = dataLength;
+    this.thisID = thisID;
+  }
+
+  /**
+   * Construct a chunk that carries no data of its own. Instead, the entire payload is
+   * read from the given file descriptor (e.g., the read side of a pipe). Such a chunk
+   * is never followed by another chunk.
+   *
+   * @param payloadDescriptor the descriptor to read the payload from
+   * @param thisID            the id of this chunk
+   */
+  public DbChunk(ParcelFileDescriptor payloadDescriptor, UUID thisID) {
+    if ( payloadDescriptor == null ) {
+      throw new IllegalArgumentException("null payload descriptor");
+    }
+    this.data = new byte[0];
+    this.payloadDescriptor = payloadDescriptor;
     this.thisID = thisID;
   }
 
   public DbChunk(Parcel in) {
-    int dataLength = in.readInt();
+    int chunkFlags = 0;
+    dataLength = in.readInt();
+    if ( dataLength == COMPACT_FRAME ) {
+      readCompactFrame(in);
+      return;
+    }
+    if ( dataLength == EXTENDED_FRAME ) {
+      chunkFlags = in.readInt();
+      dataLength = in.readInt();
+    }
     if ( dataLength < 0 ) {
       throw new IllegalArgumentException("invalid data length");
     }
@@ -50,12 +161,74 @@ public class DbChunk implements Parcelable {
     if (hasNext > 0) {
       nextID = (UUID) in.readSerializable();
     }
+
+    if ((chunkFlags & FLAG_PAYLOAD_DESCRIPTOR) != 0) {
+      payloadDescriptor = ParcelFileDescriptor.CREATOR.createFromParcel(in);
+    }
+    deflated = (chunkFlags & FLAG_DEFLATED) != 0;
+  }
+
+  private void readCompactFrame(Parcel in) {
+    compactFrame = true;
+    int chunkFlags = in.readInt();
+    long streamId = in.readLong();
+    int sequence = in.readInt();
+    thisID = new UUID(streamId, sequence);
+
+    byte hasNext = in.readByte();
+    if (hasNext > 0) {
+      nextID = new UUID(streamId, sequence + 1L);
+    }
+
+    payloadLengthHint = in.readInt();
+    int checksum = in.readInt();
+
+    data = in.createByteArray();
+    if ( data == null ) {
+      throw new IllegalArgumentException("null data");
+    }
+    dataLength = data.length;
+    if ( checksum != computeChecksum() ) {
+      throw new IllegalArgumentException("chunk checksum mismatch");
+    }
+
+    if ((chunkFlags & FLAG_PAYLOAD_DESCRIPTOR) != 0) {
+      payloadDescriptor = ParcelFileDescriptor.CREATOR.createFromParcel(in);
+    }
+    deflated = (chunkFlags & FLAG_DEFLATED) != 0;
   }
 
+  /**
+   * Return the data of this chunk. If the chunk is a view onto a region of a larger
+   * buffer, this copies that region; use getDataBuffer(), getDataOffset() and
+   * getDataLength() to access the data without copying it.
+   *
+   * @return the chunk data
+   */
   public byte[] getData() {
+    if (dataOffset == 0 && dataLength == data.length) {
+      return this.data;
+    }
+    byte[] copy = new byte[dataLength];
+    System.arraycopy(data, dataOffset, copy, 0, dataLength);
+    return copy;
+  }
+
+  /**
+   * @return the buffer holding the chunk data. The chunk data may only be a region of it.
+   */
+  public byte[] getDataBuffer() {
     return this.data;
   }
 
+  public int getDataOffset() {
+    return this.dataOffset;
+  }
+
+  public int getDataLength() {
+    return this.dataLength;
+  }
+
   public UUID getThisID() {
     return this.thisID;
   }
@@ -72,15 +245,116 @@ public class DbChunk implements Parcelable {
     this.nextID = nextID;
   }
 
+  /**
+   * @return true if the payload must be read from getPayloadDescriptor() rather than from
+   * the chunk data
+   */
+  public boolean hasPayloadDescriptor() {
+    return this.payloadDescriptor != null;
+  }
+
+  public ParcelFileDescriptor getPayloadDescriptor() {
+    return this.payloadDescriptor;
+  }
+
+  /**
+   * @return true if the payload that the chunks make up is Deflate-compressed
+   */
+  public boolean isDeflated() {
+    return this.deflated;
+  }
+
+  public void setDeflated(boolean deflated) {
+    this.deflated = deflated;
+  }
+
+  /**
+   * Write this chunk in the compact frame if its ids allow it. Only set this for a client
+   * that has agreed to DbChunk.FEATURE_COMPACT_FRAME.
+   *
+   * @param compactFrame true to write the compact frame
+   */
+  public void setCompactFrame(boolean compactFrame) {
+    this.compactFrame = compactFrame;
+  }
+
+  /**
+   * @return the length of the entire serialized payload that this chunk is part of (before
+   * any compression), or -1 if it is not known
+   */
+  public int getPayloadLengthHint() {
+    return this.payloadLengthHint;
+  }
+
+  public void setPayloadLengthHint(int payloadLengthHint) {
+    this.payloadLengthHint = payloadLengthHint;
+  }
+
+  /**
+   * The compact frame can only represent a chunk whose id is a stream id and a
+   * non-negative int sequence number, and whose next chunk is the following sequence
+   * number of the same stream.
+   *
+   * @return true if this chunk can be written in the compact frame
+   */
+  private boolean canWriteCompactFrame() {
+    if (!compactFrame || thisID == null) {
+      return false;
+    }
+    long sequence = thisID.getLeastSignificantBits();
+    if (sequence < 0 || sequence >= Integer.MAX_VALUE) {
+      return false;
+    }
+    return nextID == null
+        || (nextID.getMostSignificantBits() == thisID.getMostSignificantBits()
+            && nextID.getLeastSignificantBits() == sequence + 1);
+  }
+
+  private int computeChecksum() {
+    CRC32 crc = new CRC32();
+    crc.update(data, dataOffset, dataLength);
+    return (int) crc.getValue();
+  }
+
+  private int getChunkFlags() {
+    int chunkFlags = 0;
+    if (payloadDescriptor != null) {
+      chunkFlags |= FLAG_PAYLOAD_DESCRIPTOR;
+    }
+    if (deflated) {
+      chunkFlags |= FLAG_DEFLATED;
+    }
+    return chunkFlags;
+  }
+
   @Override
   public int describeContents() {
-    return 0;
+    return (payloadDescriptor != null) ? CONTENTS_FILE_DESCRIPTOR : 0;
   }
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeInt(data.length);
-    dest.writeByteArray(data);
+    int chunkFlags = getChunkFlags();
+    if (canWriteCompactFrame()) {
+      dest.writeInt(COMPACT_FRAME);
+      dest.writeInt(chunkFlags);
+      dest.writeLong(thisID.getMostSignificantBits());
+      dest.writeInt((int) thisID.getLeastSignificantBits());
+      dest.writeByte((byte) ((nextID == null) ? 0 : 1));
+      dest.writeInt(payloadLengthHint);
+      dest.writeInt(computeChecksum());
+      dest.writeByteArray(data, dataOffset, dataLength);
+      writePayloadDescriptor(dest, flags);
+      return;
+    }
+
+    if (chunkFlags != 0) {
+      dest.writeInt(EXTENDED_FRAME);
+      dest.writeInt(chunkFlags);
+    }
+
+    dest.writeInt(dataLength);
+    dest.writeByteArray(data, dataOffset, dataLength);
     dest.writeSerializable(thisID);
 
     if (nextID == null) {
@@ -90,6 +364,15 @@ public class DbChunk implements Parcelable {
       dest.writeSerializable(nextID);
     }
 
+    writePayloadDescriptor(dest, flags);
+  }
+
+  private void writePayloadDescriptor(Parcel dest, int flags) {
+    if (payloadDescriptor != null) {
+      // when returned from the service (PARCELABLE_WRITE_RETURN_VALUE), this
+      // closes the service's copy of the descriptor once it has been written.
+      payloadDescriptor.writeToParcel(dest, flags);
+    }
   }
 
   public static final Parcelable.Creator<DbChunk> CREATOR =
@@ -162,6 +162,10 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
 
+   List<TableInfo> getTableInfos(String appName, DbHandle dbHandleName, List<String> tableIds)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
    boolean hasTableId(String appName, DbHandle dbHandleName, String tableId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
@@ -214,6 +218,13 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
 
+   int[] privilegedUpdateRowsETagAndSyncState(String appName, DbHandle dbHandleName,
+                                              String tableId, List<String> rowIds,
+                                              List<String> rowETags, List<String> syncStates,
+                                              boolean returnStatus)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
    BaseTable getRowsWithId(String appName, DbHandle dbHandleName, String tableId, String rowId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
@@ -250,6 +261,17 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ActionNotAuthorizedException, ServicesAvailabilityException;
 
+   int[] privilegedInsertRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                                     List<ContentValues> cvValuesList, List<String> rowIds,
+                                     boolean asCsvRequestedChange)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
+   int[] insertRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                           List<ContentValues> cvValuesList, List<String> rowIds)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ActionNotAuthorizedException, ServicesAvailabilityException;
+
    BaseTable deleteAllCheckpointRowsWithId(String appName, DbHandle dbHandleName, String tableId,
                                            String rowId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
@@ -269,6 +291,11 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ActionNotAuthorizedException, ServicesAvailabilityException;
 
+   int[] deleteRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                           List<String> rowIds, boolean returnStatus)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ActionNotAuthorizedException, ServicesAvailabilityException;
+
    BaseTable saveAsIncompleteMostRecentCheckpointRowWithId(String appName, DbHandle dbHandleName,
                                                            String tableId, String rowId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
@@ -284,6 +311,12 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ActionNotAuthorizedException, ServicesAvailabilityException;
 
+   int[] updateRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                           List<ContentValues> cvValuesList, List<String> rowIds,
+                           boolean returnStatus)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ActionNotAuthorizedException, ServicesAvailabilityException;
+
    void resolveServerConflictWithDeleteRowWithId(String appName, DbHandle dbHandleName,
                                                  String tableId, String rowId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
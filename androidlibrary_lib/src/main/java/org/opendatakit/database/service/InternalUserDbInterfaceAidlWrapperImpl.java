@@ -15,6 +15,7 @@
 package org.opendatakit.database.service;
 
 import android.content.ContentValues;
+import android.os.IBinder;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -24,11 +25,25 @@ import org.opendatakit.database.utilities.DbChunkUtil;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
+import org.sqlite.database.sqlite.SQLiteConstraintException;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Wrapper for the Aidl DbChunk and Exception pass-through interface that presents
@@ -41,14 +56,122 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
 
   private static final String TAG = InternalUserDbInterfaceAidlWrapperImpl.class.getSimpleName();
 
+  /**
+   * Upper bounds on the amount of chunk data requested in a single getChunks() call.
+   * The binder transaction buffer is 1MB and shared by all transactions in flight for
+   * this process, so stay well under it.
+   */
+  private static final int MAX_CHUNKS_PER_FETCH = 64;
+  private static final int MAX_BYTES_PER_FETCH = 512 * 1024;
+
+  /**
+   * Results larger than this are returned through a file descriptor rather than as
+   * a chain of DbChunks, if the service supports it.
+   */
+  public static final int DEFAULT_FILE_DESCRIPTOR_THRESHOLD = 256 * 1024;
+
+  /**
+   * Upper bounds on the rows sent in a single insertRowsWithIds() (or other batch row)
+   * call, so that the arguments stay well under the binder transaction buffer
+   */
+  private static final int MAX_ROWS_PER_BATCH = 1000;
+  private static final int MAX_BYTES_PER_BATCH = 256 * 1024;
+
+  /**
+   * The DbChunk.FEATURE_... values this wrapper is able to read
+   */
+  private static final int SUPPORTED_CHUNK_FEATURES =
+      DbChunk.FEATURE_FILE_DESCRIPTOR | DbChunk.FEATURE_DEFLATE | DbChunk.FEATURE_COMPACT_FRAME
+          | DbChunk.FEATURE_DICTIONARY_ENCODING | DbChunk.FEATURE_HEALTH_SUMMARY
+          | DbChunk.FEATURE_INDEXED_ROWS | DbChunk.FEATURE_FIELD_WISE_METADATA;
+
+  /**
+   * The service remembers the chunk features and file descriptor threshold it agreed upon
+   * for each calling process, not for each caller. They are therefore process-wide: the
+   * threshold is set by the first wrapper created in the process, and the features are
+   * negotiated once per service binder and shared by every wrapper that talks to it.
+   */
+  private static final Object negotiationLock = new Object();
+  private static Integer processFileDescriptorThreshold = null;
+  private static IBinder negotiatedBinder = null;
+  private static int negotiatedChunkFeatures = 0;
+
   private AidlDbInterface dbInterface;
 
+  /**
+   * Cleared if the service does not implement getChunks(); we then fall back to
+   * fetching one chunk per getChunk() call.
+   */
+  private volatile boolean batchedChunkFetch = true;
+
+  /**
+   * Cleared if the service does not implement insertRowsWithIds(), or the batch update and
+   * delete calls; we then fall back to changing one row per call.
+   */
+  private final AtomicBoolean batchedRowInsert = new AtomicBoolean(true);
+  private final AtomicBoolean batchedRowChange = new AtomicBoolean(true);
+
+  /**
+   * Cleared if the service does not implement getTableInfos(); we then fall back to
+   * fetching the information of one table at a time.
+   */
+  private volatile boolean bulkTableInfo = true;
+
+  /**
+   * The DbChunk.FEATURE_... values agreed upon with the service
+   */
+  private volatile int chunkFeatures = 0;
+
+  /**
+   * If set, the remaining chunks of a result are retrieved on this executor while the
+   * caller appends the chunks that have already arrived. See setChunkPrefetchExecutor().
+   */
+  private volatile Executor chunkPrefetchExecutor = null;
+
   public InternalUserDbInterfaceAidlWrapperImpl(AidlDbInterface dbInterface) throws IllegalArgumentException {
+    this(dbInterface, DEFAULT_FILE_DESCRIPTOR_THRESHOLD);
+  }
+
+  /**
+   * The threshold is process-wide (see getFileDescriptorThreshold()). Only the first wrapper
+   * created in the process sets it; the threshold given to any later wrapper is ignored.
+   *
+   * @param dbInterface             the service interface
+   * @param fileDescriptorThreshold results larger than this many bytes are returned
+   *                                through a file descriptor if the service supports it.
+   *                                Use Integer.MAX_VALUE to always use DbChunks.
+   * @throws IllegalArgumentException if dbInterface is null
+   */
+  public InternalUserDbInterfaceAidlWrapperImpl(AidlDbInterface dbInterface,
+      int fileDescriptorThreshold) throws IllegalArgumentException {
     if (dbInterface == null) {
       throw new IllegalArgumentException("Database Interface must not be null");
     }
 
+    synchronized (negotiationLock) {
+      if (processFileDescriptorThreshold == null) {
+        processFileDescriptorThreshold = fileDescriptorThreshold;
+      } else if (processFileDescriptorThreshold != fileDescriptorThreshold) {
+        WebLogger.getContextLogger().w(TAG, "fileDescriptorThreshold " + fileDescriptorThreshold
+            + " ignored; the process-wide threshold is " + processFileDescriptorThreshold);
+      }
+    }
     this.dbInterface = dbInterface;
+    negotiateChunkFeatures();
+  }
+
+  /**
+   * The service keeps one threshold per calling process, so this is shared by every wrapper
+   * in the process and is the one given to the first wrapper that was created.
+   *
+   * @return results larger than this many bytes are returned through a file descriptor if
+   * the service supports it
+   */
+  public static int getFileDescriptorThreshold() {
+    synchronized (negotiationLock) {
+      return (processFileDescriptorThreshold == null) ? DEFAULT_FILE_DESCRIPTOR_THRESHOLD :
+          processFileDescriptorThreshold;
+    }
   }
 
   public AidlDbInterface getDbInterface() {
@@ -61,6 +184,93 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
 
     this.dbInterface = dbInterface;
+    this.batchedChunkFetch = true;
+    this.batchedRowInsert.set(true);
+    this.batchedRowChange.set(true);
+    this.bulkTableInfo = true;
+    negotiateChunkFeatures();
+  }
+
+  /**
+   * @return the DbChunk.FEATURE_... values agreed upon with the service
+   */
+  public int getChunkFeatures() {
+    return chunkFeatures;
+  }
+
+  /**
+   * Enable or disable pipelined retrieval of results that span several chunks.
+   * <p>
+   * When enabled, a task on the given executor retrieves the remaining chunks of a result
+   * from the service while the calling thread appends, inflates and verifies the chunks
+   * that have already arrived. This overlaps the IPC latency of each getChunks() call
+   * with the work on the previous batch. Results that fit in a single chunk, or that are
+   * returned through a file descriptor, are unaffected.
+   *
+   * @param executor the executor to retrieve chunks on, or null to retrieve them on the
+   *                 calling thread (the default)
+   */
+  public void setChunkPrefetchExecutor(Executor executor) {
+    this.chunkPrefetchExecutor = executor;
+  }
+
+  /**
+   * Tell the service which optional ways of returning results we can read. An older
+   * service that does not know about this returns an empty reply, i.e., no features.
+   * <p>
+   * The service keeps the outcome for the whole process, so this only asks it once per
+   * binder; every later wrapper for the same binder reuses the features agreed upon then.
+   */
+  private void negotiateChunkFeatures() {
+    IBinder binder = dbInterface.asBinder();
+    synchronized (negotiationLock) {
+      if (binder != null && binder == negotiatedBinder) {
+        chunkFeatures = negotiatedChunkFeatures;
+        return;
+      }
+
+      int threshold = processFileDescriptorThreshold;
+      int requested = SUPPORTED_CHUNK_FEATURES;
+      if (threshold == Integer.MAX_VALUE) {
+        requested &= ~DbChunk.FEATURE_FILE_DESCRIPTOR;
+      }
+
+      int features = 0;
+      if (requested != 0) {
+        try {
+          features = dbInterface.negotiateChunkFeatures(requested, threshold) & requested;
+        } catch (Exception e) {
+          // try again with the next wrapper rather than settle on no features
+          WebLogger.getContextLogger().w(TAG, "negotiateChunkFeatures failed: " + e.toString());
+          chunkFeatures = 0;
+          return;
+        }
+      }
+      negotiatedBinder = binder;
+      negotiatedChunkFeatures = features;
+      chunkFeatures = features;
+    }
+  }
+
+  /**
+   * The service reports a failure as an IllegalStateException or RemoteException whose
+   * message is "org.opendatakit|", the class name of the exception it caught, ": " and
+   * the message of that exception.
+   *
+   * @param e the failure
+   * @return the class name of the exception the service caught, or null if the failure
+   * was not reported by the service in that form (e.g., the service is unavailable)
+   */
+  private static String getServiceExceptionName(Exception e) {
+    if (!(e instanceof IllegalStateException) && !(e instanceof RemoteException)) {
+      return null;
+    }
+    String msg = e.getMessage();
+    int idx = (msg == null) ? -1 : msg.indexOf(':');
+    if (idx == -1 || !msg.startsWith("org.opendatakit|")) {
+      return null;
+    }
+    return msg.substring(msg.indexOf('|') + 1, idx);
   }
 
   private void rethrowNotAuthorizedRemoteException(Exception e)
@@ -69,16 +279,11 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     if ((e instanceof IllegalStateException) || (e instanceof RemoteException)) {
       String prefix = "via RemoteException on AidlDbInterface: ";
       String msg = e.getMessage();
-      int idx = msg.indexOf(':');
-      if (idx == -1) {
+      String exceptionName = getServiceExceptionName(e);
+      if (exceptionName == null) {
         throw new ServicesAvailabilityException(prefix + msg);
       }
-      String exceptionName = msg.substring(0, idx);
-      String message = msg.substring(idx + 2);
-      if (!exceptionName.startsWith("org.opendatakit|")) {
-        throw new ServicesAvailabilityException(prefix + msg);
-      }
-      exceptionName = exceptionName.substring(exceptionName.indexOf('|') + 1);
+      String message = msg.substring(msg.indexOf(':') + 2);
       if (exceptionName.equals(ActionNotAuthorizedException.class.getName())) {
         throw new ActionNotAuthorizedException(prefix + message);
       }
@@ -107,16 +312,11 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
       if (msg == null) {
         throw new IllegalStateException(prefix + e.toString());
       }
-      int idx = msg.indexOf(':');
-      if (idx == -1) {
+      String exceptionName = getServiceExceptionName(e);
+      if (exceptionName == null) {
         throw new ServicesAvailabilityException(prefix + msg);
       }
-      String exceptionName = msg.substring(0, idx);
-      String message = msg.substring(idx + 2);
-      if (!exceptionName.startsWith("org.opendatakit|")) {
-        throw new ServicesAvailabilityException(prefix + msg);
-      }
-      exceptionName = exceptionName.substring(exceptionName.indexOf('|') + 1);
+      String message = msg.substring(msg.indexOf(':') + 2);
       if (exceptionName.equals(IllegalArgumentException.class.getName())) {
         throw new IllegalArgumentException(prefix + message);
       }
@@ -706,24 +906,6 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     return entries;
   }
 
-  private TableMetaDataEntries filterEntries(TableMetaDataEntries allEntries, String partition,
-                                             String aspect, String key) {
-    if (partition == null && aspect == null && key == null) {
-      return new TableMetaDataEntries(allEntries);
-    }
-
-    TableMetaDataEntries entries = new TableMetaDataEntries(allEntries.getTableId(),
-        allEntries.getRevId());
-
-    for (KeyValueStoreEntry entry : allEntries.getEntries()) {
-      if ((partition == null || entry.partition.equals(partition)) && (aspect == null
-          || entry.aspect.equals(aspect)) && (key == null || entry.key.equals(key))) {
-        entries.addEntry(entry);
-      }
-    }
-    return entries;
-  }
-
   /**
    * Return an array of the admin columns that should be exported to
    * a CSV file. This list excludes the SYNC_STATE and CONFLICT_TYPE columns.
@@ -832,6 +1014,55 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
   }
 
+  /**
+   * Retrieve the table definition entry, user-defined columns and metadata of several
+   * tables in one call, or a table at a time if the service does not support that. An
+   * older service is then asked for the table ids once and for the three parts of each
+   * table, i.e. 1 + 3 * N calls.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableIds     the tables, or null for all the tables
+   * @return the table infos
+   */
+  @Override
+  public List<TableInfo> getTableInfos(String appName, DbHandle dbHandleName,
+      List<String> tableIds) throws ServicesAvailabilityException {
+    if (bulkTableInfo) {
+      try {
+        DbChunk firstChunk = dbInterface.getTableInfos(appName, dbHandleName, tableIds);
+        if (firstChunk != null) {
+          return fetchAndRebuildChunks(firstChunk, TableInfoList.CREATOR).getTableInfos();
+        }
+      } catch (Exception e) {
+        rethrowAlwaysAllowedRemoteException(e);
+        throw new IllegalStateException("unreachable - keep IDE happy");
+      }
+      // an older service returns an empty reply for a method it does not know
+      WebLogger.getContextLogger().i(TAG, "getTableInfos not supported by service");
+      bulkTableInfo = false;
+    }
+
+    List<String> ids = getAllTableIds(appName, dbHandleName);
+    if (tableIds != null) {
+      // leave out the tables that do not exist without asking about each of them
+      Set<String> existing = new HashSet<>(ids);
+      ids = new ArrayList<>(tableIds.size());
+      for (String tableId : tableIds) {
+        if (existing.contains(tableId)) {
+          ids.add(tableId);
+        }
+      }
+    }
+    List<TableInfo> tableInfos = new ArrayList<>(ids.size());
+    for (String tableId : ids) {
+      tableInfos.add(new TableInfo(getTableDefinitionEntry(appName, dbHandleName, tableId),
+          getUserDefinedColumns(appName, dbHandleName, tableId),
+          getTableMetadata(appName, dbHandleName, tableId, null, null, null)));
+    }
+    return tableInfos;
+  }
+
   /**
    * Verifies that the tableId exists in the database.
    *
@@ -1306,6 +1537,441 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
   }
 
+  /**
+   * SYNC, CSV Import ONLY
+   * <p>
+   * Insert each rowId with the values in the corresponding cvValues. The rows are sent
+   * in batches, each of which the service inserts in a single transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList
+   * @param rowIds
+   * @param asCsvRequestedChange
+   * @return the UserDbInterface.ROW_STATUS_... value of each row
+   */
+  @Override
+  public int[] privilegedInsertRowsWithIds(final String appName, final DbHandle dbHandleName,
+                                           final String tableId,
+                                           final List<ContentValues> cvValuesList,
+                                           final List<String> rowIds,
+                                           final boolean asCsvRequestedChange)
+      throws ServicesAvailabilityException {
+    checkRowBatch(rowIds, cvValuesList);
+    try {
+      return applyInBatches(new RowBatchOperation(batchedRowInsert, rowIds, cvValuesList) {
+        @Override
+        DbChunk applyToRows(int start, int end) throws RemoteException {
+          return dbInterface.privilegedInsertRowsWithIds(appName, dbHandleName, tableId,
+              cvValuesList.subList(start, end), rowIds.subList(start, end),
+              asCsvRequestedChange);
+        }
+
+        @Override
+        void applyToRow(int index) throws RemoteException {
+          fetchAndRebuildChunks(dbInterface
+              .privilegedInsertRowWithId(appName, dbHandleName, tableId, cvValuesList.get(index),
+                  rowIds.get(index), asCsvRequestedChange), BaseTable.CREATOR);
+        }
+      }, true);
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * Insert each rowId with the values in the corresponding cvValues. The rows are sent
+   * in batches, each of which the service inserts in a single transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList
+   * @param rowIds
+   * @return the UserDbInterface.ROW_STATUS_... value of each row
+   */
+  @Override
+  public int[] insertRowsWithIds(final String appName, final DbHandle dbHandleName,
+                                 final String tableId, final List<ContentValues> cvValuesList,
+                                 final List<String> rowIds)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+    checkRowBatch(rowIds, cvValuesList);
+    try {
+      return applyInBatches(new RowBatchOperation(batchedRowInsert, rowIds, cvValuesList) {
+        @Override
+        DbChunk applyToRows(int start, int end) throws RemoteException {
+          return dbInterface.insertRowsWithIds(appName, dbHandleName, tableId,
+              cvValuesList.subList(start, end), rowIds.subList(start, end));
+        }
+
+        @Override
+        void applyToRow(int index) throws RemoteException {
+          fetchAndRebuildChunks(dbInterface
+              .insertRowWithId(appName, dbHandleName, tableId, cvValuesList.get(index),
+                  rowIds.get(index)), BaseTable.CREATOR);
+        }
+      }, true);
+    } catch (Exception e) {
+      rethrowNotAuthorizedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * Update each rowId with the values in the corresponding cvValues. The rows are sent
+   * in batches, each of which the service updates in a single transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList
+   * @param rowIds
+   * @param returnStatus
+   * @return the UserDbInterface.ROW_STATUS_... value of each row, or null if returnStatus
+   * is false
+   */
+  @Override
+  public int[] updateRowsWithIds(final String appName, final DbHandle dbHandleName,
+                                 final String tableId, final List<ContentValues> cvValuesList,
+                                 final List<String> rowIds, final boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+    checkRowBatch(rowIds, cvValuesList);
+    try {
+      return applyInBatches(new RowBatchOperation(batchedRowChange, rowIds, cvValuesList) {
+        @Override
+        DbChunk applyToRows(int start, int end) throws RemoteException {
+          return dbInterface.updateRowsWithIds(appName, dbHandleName, tableId,
+              cvValuesList.subList(start, end), rowIds.subList(start, end), returnStatus);
+        }
+
+        @Override
+        void applyToRow(int index) throws RemoteException {
+          fetchAndRebuildChunks(dbInterface
+              .updateRowWithId(appName, dbHandleName, tableId, cvValuesList.get(index),
+                  rowIds.get(index)), BaseTable.CREATOR);
+        }
+
+        @Override
+        int statusOfFailedRow(int index, Exception e) throws RemoteException {
+          return changedRowStatusOf(appName, dbHandleName, tableId, rowIds.get(index), e);
+        }
+      }, returnStatus);
+    } catch (Exception e) {
+      rethrowNotAuthorizedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * Delete each rowId, with the same sync semantics as deleteRowWithId. The rows are sent
+   * in batches, each of which the service deletes in a single transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param rowIds
+   * @param returnStatus
+   * @return the UserDbInterface.ROW_STATUS_... value of each row, or null if returnStatus
+   * is false
+   */
+  @Override
+  public int[] deleteRowsWithIds(final String appName, final DbHandle dbHandleName,
+                                 final String tableId, final List<String> rowIds,
+                                 final boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+    checkRowBatch(rowIds);
+    try {
+      return applyInBatches(new RowBatchOperation(batchedRowChange, rowIds) {
+        @Override
+        DbChunk applyToRows(int start, int end) throws RemoteException {
+          return dbInterface.deleteRowsWithIds(appName, dbHandleName, tableId,
+              rowIds.subList(start, end), returnStatus);
+        }
+
+        @Override
+        void applyToRow(int index) throws RemoteException {
+          fetchAndRebuildChunks(dbInterface
+              .deleteRowWithId(appName, dbHandleName, tableId, rowIds.get(index)),
+              BaseTable.CREATOR);
+        }
+
+        @Override
+        int statusOfFailedRow(int index, Exception e) throws RemoteException {
+          return changedRowStatusOf(appName, dbHandleName, tableId, rowIds.get(index), e);
+        }
+      }, returnStatus);
+    } catch (Exception e) {
+      rethrowNotAuthorizedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * SYNC Only. ADMIN Privileges!
+   * <p>
+   * Update the ETag and SyncState of each rowId. The rows are sent in batches, each of
+   * which the service updates in a single transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param rowIds
+   * @param rowETags
+   * @param syncStates
+   * @param returnStatus
+   * @return the UserDbInterface.ROW_STATUS_... value of each row, or null if returnStatus
+   * is false
+   */
+  @Override
+  public int[] privilegedUpdateRowsETagAndSyncState(final String appName,
+                                                    final DbHandle dbHandleName,
+                                                    final String tableId,
+                                                    final List<String> rowIds,
+                                                    final List<String> rowETags,
+                                                    final List<String> syncStates,
+                                                    final boolean returnStatus)
+      throws ServicesAvailabilityException {
+    checkRowBatch(rowIds, rowETags, syncStates);
+    try {
+      return applyInBatches(new RowBatchOperation(batchedRowChange, rowIds, rowETags,
+          syncStates) {
+        @Override
+        DbChunk applyToRows(int start, int end) throws RemoteException {
+          return dbInterface.privilegedUpdateRowsETagAndSyncState(appName, dbHandleName,
+              tableId, rowIds.subList(start, end), rowETags.subList(start, end),
+              syncStates.subList(start, end), returnStatus);
+        }
+
+        @Override
+        void applyToRow(int index) throws RemoteException {
+          dbInterface.privilegedUpdateRowETagAndSyncState(appName, dbHandleName, tableId,
+              rowIds.get(index), rowETags.get(index), syncStates.get(index));
+        }
+
+        @Override
+        int statusOfFailedRow(int index, Exception e) throws RemoteException {
+          return changedRowStatusOf(appName, dbHandleName, tableId, rowIds.get(index), e);
+        }
+      }, returnStatus);
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * A change to many rows that is sent to the service in batches, falling back to the
+   * single-row call if the service does not implement the batch one.
+   */
+  private abstract static class RowBatchOperation {
+    private final AtomicBoolean batchSupported;
+    private final List<String> rowIds;
+    private final List<?>[] rowArguments;
+
+    /**
+     * @param batchSupported cleared if the service does not implement the batch call
+     * @param rowIds         the rows to change
+     * @param rowArguments   the other per-row arguments, used to size the batches
+     */
+    RowBatchOperation(AtomicBoolean batchSupported, List<String> rowIds,
+        List<?>... rowArguments) {
+      this.batchSupported = batchSupported;
+      this.rowIds = rowIds;
+      this.rowArguments = rowArguments;
+    }
+
+    /**
+     * @return the first chunk of the int[] of the status of each row, or null if the
+     * service does not implement the batch call
+     */
+    abstract DbChunk applyToRows(int start, int end) throws RemoteException;
+
+    abstract void applyToRow(int index) throws RemoteException;
+
+    /**
+     * @param index the row whose single-row call failed
+     * @param e     the failure
+     * @return the UserDbInterface.ROW_STATUS_... value of the row, or ROW_STATUS_OK if the
+     * failure is not one that only affects the row
+     */
+    int statusOfFailedRow(int index, Exception e) throws RemoteException {
+      return rowStatusOf(e);
+    }
+
+    /**
+     * @return the index after the last row of the batch beginning at start
+     */
+    int endOfBatch(int start) {
+      int end = start;
+      long bytes = 0;
+      while (end < rowIds.size() && end - start < MAX_ROWS_PER_BATCH) {
+        long rowBytes = estimateParcelSize(rowIds.get(end));
+        for (List<?> arguments : rowArguments) {
+          rowBytes += estimateParcelSize(arguments.get(end));
+        }
+        // always send at least one row
+        if (end > start && bytes + rowBytes > MAX_BYTES_PER_BATCH) {
+          break;
+        }
+        bytes += rowBytes;
+        ++end;
+      }
+      return end;
+    }
+  }
+
+  /**
+   * @param operation    the change to make
+   * @param returnStatus whether the status of each row is wanted
+   * @return the UserDbInterface.ROW_STATUS_... value of each row, or null if returnStatus
+   * is false
+   */
+  private int[] applyInBatches(RowBatchOperation operation, boolean returnStatus)
+      throws RemoteException {
+    int rowCount = operation.rowIds.size();
+    int[] statuses = returnStatus ? new int[rowCount] : null;
+    int start = 0;
+    while (start < rowCount) {
+      int end = operation.endOfBatch(start);
+
+      DbChunk firstChunk = null;
+      if (operation.batchSupported.get()) {
+        firstChunk = operation.applyToRows(start, end);
+        if (firstChunk == null) {
+          // an older service returns an empty reply for a method it does not know
+          WebLogger.getContextLogger().i(TAG, "batch row changes not supported by service");
+          operation.batchSupported.set(false);
+        }
+      }
+
+      if (firstChunk != null) {
+        // the service returns no statuses if they were not asked for
+        int[] batchStatuses = fetchAndRebuildChunks(firstChunk, int[].class);
+        if (batchStatuses == null || (returnStatus && batchStatuses.length != end - start)) {
+          throw new IllegalStateException("invalid row statuses from service");
+        }
+        if (returnStatus) {
+          System.arraycopy(batchStatuses, 0, statuses, start, batchStatuses.length);
+        }
+      } else {
+        // as the batch call does, skip a row that cannot be changed and record why
+        for (int i = start; i < end; ++i) {
+          int status;
+          try {
+            operation.applyToRow(i);
+            status = UserDbInterface.ROW_STATUS_OK;
+          } catch (Exception e) {
+            status = operation.statusOfFailedRow(i, e);
+            if (status == UserDbInterface.ROW_STATUS_OK) {
+              throw e;
+            }
+            WebLogger.getContextLogger().w(TAG, "row " + operation.rowIds.get(i) +
+                " not changed (status " + status + "): " + e.getMessage());
+          }
+          if (returnStatus) {
+            statuses[i] = status;
+          }
+        }
+      }
+      start = end;
+    }
+    return statuses;
+  }
+
+  /**
+   * Map the failure of a single-row call made by applyInBatches() to the status the batch
+   * call would have reported for the row.
+   *
+   * @param e the failure
+   * @return the UserDbInterface.ROW_STATUS_... value, or ROW_STATUS_OK if the failure is
+   * not one that only affects the row (e.g., the service is unavailable)
+   */
+  private static int rowStatusOf(Exception e) {
+    String exceptionName = getServiceExceptionName(e);
+    if (exceptionName == null) {
+      return UserDbInterface.ROW_STATUS_OK;
+    }
+    if (exceptionName.equals(ActionNotAuthorizedException.class.getName())) {
+      return UserDbInterface.ROW_STATUS_NOT_AUTHORIZED;
+    }
+    if (exceptionName.equals(SQLiteConstraintException.class.getName())) {
+      // the rowId is the only unique constraint of a user table
+      return UserDbInterface.ROW_STATUS_ALREADY_EXISTS;
+    }
+    if (exceptionName.equals(IllegalArgumentException.class.getName())) {
+      return UserDbInterface.ROW_STATUS_INVALID;
+    }
+    return UserDbInterface.ROW_STATUS_OK;
+  }
+
+  /**
+   * Map the failure of a single-row change to an existing row to the status the batch call
+   * would have reported. The single-row calls do not say why a row could not be changed,
+   * so the row is looked up: a missing row is ROW_STATUS_NOT_FOUND, and a row in conflict
+   * or with checkpoints is ROW_STATUS_CONFLICT. Otherwise the failure is mapped as for an
+   * insert.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param rowId        the row that could not be changed
+   * @param e            the failure
+   * @return the UserDbInterface.ROW_STATUS_... value, or ROW_STATUS_OK if the failure is
+   * not one that only affects the row
+   */
+  private int changedRowStatusOf(String appName, DbHandle dbHandleName, String tableId,
+      String rowId, Exception e) throws RemoteException {
+    if (getServiceExceptionName(e) == null) {
+      return UserDbInterface.ROW_STATUS_OK;
+    }
+    BaseTable rows = null;
+    try {
+      DbChunk firstChunk = dbInterface.getRowsWithId(appName, dbHandleName, tableId, rowId);
+      if (firstChunk != null) {
+        rows = fetchAndRebuildChunks(firstChunk, BaseTable.CREATOR);
+      }
+    } catch (IllegalStateException lookupFailure) {
+      // e.g., the user may not read the row
+    }
+    if (rows == null) {
+      return rowStatusOf(e);
+    }
+    if (rows.getNumberOfRows() == 0) {
+      return UserDbInterface.ROW_STATUS_NOT_FOUND;
+    }
+    if (rows.getHealthSummary() != 0) {
+      return UserDbInterface.ROW_STATUS_CONFLICT;
+    }
+    return rowStatusOf(e);
+  }
+
+  private static void checkRowBatch(List<String> rowIds, List<?>... rowArguments) {
+    if (rowIds == null) {
+      throw new IllegalArgumentException("rowIds must not be null");
+    }
+    for (List<?> arguments : rowArguments) {
+      if (arguments == null || arguments.size() != rowIds.size()) {
+        throw new IllegalArgumentException("there must be one value for each rowId");
+      }
+    }
+  }
+
+  private static long estimateParcelSize(Object value) {
+    if (value instanceof String) {
+      return 8 + 2L * ((String) value).length();
+    }
+    if (value instanceof ContentValues) {
+      long bytes = 4;
+      for (Map.Entry<String, Object> entry : ((ContentValues) value).valueSet()) {
+        bytes += estimateParcelSize(entry.getKey()) + estimateParcelSize(entry.getValue());
+      }
+      return bytes;
+    }
+    return (value == null) ? 4 : 16;
+  }
+
   /**
    * Delete any checkpoint rows for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
@@ -1804,30 +2470,49 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
   private <T> T fetchAndRebuildChunks(DbChunk firstChunk, Parcelable.Creator<T> creator)
       throws RemoteException {
 
-    List<DbChunk> aggregatedChunks = retrieveChunks(firstChunk);
-
-    return DbChunkUtil.rebuildFromChunks(aggregatedChunks, creator);
+    PrefetchingChunkIterator prefetcher = startPrefetch(firstChunk);
+    Iterator<DbChunk> chunks = (prefetcher == null) ?
+        retrieveChunks(firstChunk).iterator() : prefetcher;
+    try {
+      return DbChunkUtil.rebuildFromChunks(chunks, creator);
+    } catch (PrefetchFailedException e) {
+      throw e.unwrap();
+    } finally {
+      if (prefetcher != null) {
+        prefetcher.cancel();
+      }
+    }
   }
 
   /**
-   * Retrieve all the pieces of the data across the wire and rebuild them into their original type
+   * Retrieve all the pieces of the data across the wire and rebuild them into their original type.
+   * Whether or not the chunks are prefetched, a failure to retrieve them is thrown, while a
+   * payload that cannot be deserialized is logged and null is returned.
    *
    * @param firstChunk   The first chunk, which contains a pointer to the next
    * @param serializable
    * @param <T>          The type to reconstruct into
-   * @return The original object
+   * @return The original object, or null if it could not be deserialized
    * @throws RemoteException
    */
   private <T> T fetchAndRebuildChunks(DbChunk firstChunk, Class<T> serializable)
       throws RemoteException {
 
-    List<DbChunk> aggregatedChunks = retrieveChunks(firstChunk);
-
+    PrefetchingChunkIterator prefetcher = startPrefetch(firstChunk);
+    Iterator<DbChunk> chunks = (prefetcher == null) ?
+        retrieveChunks(firstChunk).iterator() : prefetcher;
     try {
-      return DbChunkUtil.rebuildFromChunks(aggregatedChunks, serializable);
+      return DbChunkUtil.rebuildFromChunks(chunks, serializable);
+    } catch (PrefetchFailedException e) {
+      throw e.unwrap();
     } catch (Exception e) {
-      WebLogger.getContextLogger().e(TAG, "Failed to rebuild serialized object from chunks");
+      WebLogger.getContextLogger().e(TAG, "Failed to rebuild serialized object from chunks: "
+          + e.toString());
       return null;
+    } finally {
+      if (prefetcher != null) {
+        prefetcher.cancel();
+      }
     }
   }
 
@@ -1851,7 +2536,9 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
   }
 
   /**
-   * Iterate through the chunks like a linked list, retrieving them one by one from the service
+   * Iterate through the chunks like a linked list, retrieving them from the service in
+   * batches. Falls back to retrieving them one by one if the service does not support
+   * batched retrieval.
    *
    * @param firstChunk
    * @return
@@ -1863,11 +2550,189 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
 
     DbChunk currChunk = firstChunk;
     while (currChunk.hasNextID()) {
-      ParcelUuid parcelUuid = new ParcelUuid(currChunk.getNextID());
-      currChunk = dbInterface.getChunk(parcelUuid);
-      aggregatedChunks.add(currChunk);
+      List<DbChunk> batch = retrieveBatch(currChunk.getNextID());
+      aggregatedChunks.addAll(batch);
+      currChunk = batch.get(batch.size() - 1);
     }
 
     return aggregatedChunks;
   }
+
+  /**
+   * Retrieve the next run of chunks from the service.
+   *
+   * @param chunkID the id of the first chunk of the run
+   * @return the chunks, of which there is at least one
+   * @throws RemoteException
+   */
+  private List<DbChunk> retrieveBatch(UUID chunkID) throws RemoteException {
+    ParcelUuid parcelUuid = new ParcelUuid(chunkID);
+
+    if (batchedChunkFetch) {
+      List<DbChunk> batch = dbInterface.getChunks(parcelUuid, MAX_CHUNKS_PER_FETCH,
+          MAX_BYTES_PER_FETCH);
+      if (batch == null || batch.isEmpty()) {
+        // an older service that does not know about getChunks() returns an empty reply
+        batchedChunkFetch = false;
+      } else if (!chunkID.equals(batch.get(0).getThisID())) {
+        throw new IllegalStateException("getChunks returned an unexpected first chunk");
+      } else {
+        return batch;
+      }
+    }
+
+    List<DbChunk> single = new LinkedList<>();
+    single.add(dbInterface.getChunk(parcelUuid));
+    return single;
+  }
+
+  /**
+   * Start retrieving the remaining chunks of a result in the background, if pipelined
+   * retrieval is enabled and the result spans several chunks.
+   *
+   * @param firstChunk the first chunk of the result
+   * @return an iterator over all the chunks of the result, or null if the chunks should
+   * be retrieved on the calling thread
+   */
+  private PrefetchingChunkIterator startPrefetch(DbChunk firstChunk) {
+    Executor executor = chunkPrefetchExecutor;
+    if (executor == null || !firstChunk.hasNextID()) {
+      return null;
+    }
+
+    PrefetchingChunkIterator prefetcher = new PrefetchingChunkIterator(firstChunk);
+    try {
+      executor.execute(prefetcher);
+    } catch (RejectedExecutionException e) {
+      WebLogger.getContextLogger().w(TAG, "startPrefetch: executor rejected the prefetch");
+      return null;
+    }
+    return prefetcher;
+  }
+
+  /**
+   * Thrown out of a PrefetchingChunkIterator when the background retrieval failed.
+   * Carries the original exception so that it can be rethrown on the calling thread.
+   */
+  private static final class PrefetchFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    PrefetchFailedException(Exception cause) {
+      super(cause);
+    }
+
+    /**
+     * Throw the cause if it is unchecked. Otherwise, return it for the caller to throw.
+     *
+     * @return the RemoteException that caused the failure
+     */
+    RemoteException unwrap() {
+      if (getCause() instanceof RemoteException) {
+        return (RemoteException) getCause();
+      }
+      if (getCause() instanceof RuntimeException) {
+        throw (RuntimeException) getCause();
+      }
+      throw new IllegalStateException(getCause());
+    }
+  }
+
+  /**
+   * Retrieves the remaining chunks of a result when run, handing each batch to the
+   * iterator as soon as it arrives. The iterator blocks until the chunk it is asked for
+   * has been retrieved.
+   */
+  private final class PrefetchingChunkIterator implements Iterator<DbChunk>, Runnable {
+
+    private final BlockingQueue<Object> batches = new LinkedBlockingQueue<>();
+    private final DbChunk firstChunk;
+    private volatile boolean cancelled = false;
+
+    private DbChunk lastChunk = null;
+    private Iterator<DbChunk> currBatch = null;
+
+    PrefetchingChunkIterator(DbChunk firstChunk) {
+      this.firstChunk = firstChunk;
+    }
+
+    @Override
+    public void run() {
+      try {
+        UUID nextID = firstChunk.getNextID();
+        while (nextID != null && !cancelled) {
+          List<DbChunk> batch = retrieveBatch(nextID);
+          if (!offer(batch)) {
+            return;
+          }
+          nextID = batch.get(batch.size() - 1).getNextID();
+        }
+      } catch (Exception e) {
+        offer(e);
+      }
+    }
+
+    /**
+     * Hand a batch, or the exception that ended the retrieval, to the iterator
+     *
+     * @return false if the iterator was cancelled, in which case it is dropped
+     */
+    private synchronized boolean offer(Object batch) {
+      if (cancelled) {
+        return false;
+      }
+      batches.add(batch);
+      return true;
+    }
+
+    /**
+     * Stop retrieving chunks and drop any that have not been consumed, including a batch
+     * whose retrieval is in progress when this is called.
+     */
+    synchronized void cancel() {
+      cancelled = true;
+      batches.clear();
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (lastChunk == null) {
+        return true;
+      }
+      return (currBatch != null && currBatch.hasNext()) || lastChunk.hasNextID();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public DbChunk next() {
+      if (lastChunk == null) {
+        lastChunk = firstChunk;
+        return lastChunk;
+      }
+      if (currBatch == null || !currBatch.hasNext()) {
+        if (!lastChunk.hasNextID()) {
+          throw new NoSuchElementException();
+        }
+        Object batch;
+        try {
+          batch = batches.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PrefetchFailedException(
+              new IllegalStateException("interrupted while retrieving chunks"));
+        }
+        if (batch instanceof Exception) {
+          throw new PrefetchFailedException((Exception) batch);
+        }
+        currBatch = ((List<DbChunk>) batch).iterator();
+      }
+      lastChunk = currBatch.next();
+      return lastChunk;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
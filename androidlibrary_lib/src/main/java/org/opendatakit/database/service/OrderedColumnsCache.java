@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableDefinitionEntry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The user-defined columns of recently used tables, by app, table id and schema version.
+ * Used by UserDbInterfaceImpl.
+ * <p>
+ * The columns of a table only change along with its schema ETag, or, before the table is
+ * first synced, when it is deleted and created again. The latter is done through the
+ * UserDbInterfaceImpl, which calls invalidate().
+ * <p>
+ * Multiple threads may be accessing this.
+ */
+final class OrderedColumnsCache {
+
+  /**
+   * Off by default; see UserDbInterfaceImpl.setUserDefinedColumnsCacheSize()
+   */
+  static final int DEFAULT_MAX_TABLES = 0;
+
+  private static final class Key {
+    private final String appName;
+    private final String tableId;
+
+    Key(String appName, String tableId) {
+      this.appName = appName;
+      this.tableId = tableId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return appName.equals(other.appName) && tableId.equals(other.tableId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * appName.hashCode() + tableId.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    private final String version;
+    private final OrderedColumns columns;
+
+    Entry(String version, OrderedColumns columns) {
+      this.version = version;
+      this.columns = columns;
+    }
+  }
+
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxTables = DEFAULT_MAX_TABLES;
+  /**
+   * Incremented by every invalidation, so that columns fetched while the schema was being
+   * changed are not stored
+   */
+  private long generation = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param maxTables the most tables to keep the columns of; 0 disables the cache
+   */
+  synchronized void setMaxTables(int maxTables) {
+    if (maxTables < 0) {
+      throw new IllegalArgumentException("maxTables must not be negative");
+    }
+    this.maxTables = maxTables;
+    trimToSize();
+  }
+
+  synchronized boolean isEnabled() {
+    return maxTables > 0;
+  }
+
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @param definition the table definition entry
+   * @return the version of the table's schema, or null if it cannot be determined
+   */
+  static String getVersion(TableDefinitionEntry definition) {
+    if (definition == null) {
+      return null;
+    }
+    if (definition.getSchemaETag() != null) {
+      return definition.getSchemaETag();
+    }
+    // never synced; the revision changes whenever the table definition does
+    return (definition.getRevId() == null) ? null : "rev:" + definition.getRevId();
+  }
+
+  /**
+   * @param appName the app name
+   * @param tableId the table id
+   * @param version the current version of the table's schema
+   * @return the columns, or null if there are none for that version
+   */
+  synchronized OrderedColumns get(String appName, String tableId, String version) {
+    Key key = new Key(appName, tableId);
+    Entry entry = entries.get(key);
+    if (entry == null || version == null || !version.equals(entry.version)) {
+      if (entry != null) {
+        entries.remove(key);
+      }
+      ++misses;
+      return null;
+    }
+    ++hits;
+    return entry.columns;
+  }
+
+  /**
+   * Store the columns of a table, unless the cache has been invalidated since they were
+   * fetched
+   *
+   * @param appName    the app name
+   * @param tableId    the table id
+   * @param version    the version of the table's schema before the columns were fetched
+   * @param columns    the columns
+   * @param generation the value of getGeneration() before the columns were fetched
+   */
+  synchronized void put(String appName, String tableId, String version,
+      OrderedColumns columns, long generation) {
+    if (version == null || columns == null || generation != this.generation
+        || maxTables == 0) {
+      return;
+    }
+    entries.put(new Key(appName, tableId), new Entry(version, columns));
+    trimToSize();
+  }
+
+  /**
+   * Drop the columns of a table
+   *
+   * @param appName the app name
+   * @param tableId the table id, or null for all the tables of the app
+   */
+  synchronized void invalidate(String appName, String tableId) {
+    ++generation;
+    if (tableId != null) {
+      entries.remove(new Key(appName, tableId));
+      return;
+    }
+    Iterator<Key> iterator = entries.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().appName.equals(appName)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    ++generation;
+    entries.clear();
+  }
+
+  private void trimToSize() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (entries.size() > maxTables && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TableDefinitionEntry;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of recent queries, so that a query repeated before the table changes does not
+ * go back to the database. Used by UserDbInterfaceImpl.
+ * <p>
+ * A result is only returned if the table definition entry (revision, schema ETag and data
+ * ETag) is the same as when it was stored, and to the same user with the same roles, as
+ * the roles decide which rows are visible. The caller asks the database for the version of
+ * the table and for the user, and remembers them with confirmVersion() and confirmUser();
+ * within the freshness window it uses the remembered ones without asking again, so a
+ * repeated query makes no call to the database at all. Every write made through the
+ * UserDbInterfaceImpl calls invalidate(), which forgets the versions as well as the results.
+ * The least recently used results are dropped once the estimated size of all of them is
+ * over the budget.
+ * <p>
+ * Multiple threads may be accessing this.
+ */
+final class QueryResultCache {
+
+  /**
+   * Estimated bytes held by a String, excluding its characters
+   */
+  private static final int STRING_OVERHEAD = 40;
+  /**
+   * Estimated bytes held by a Row and its array, excluding the cells
+   */
+  private static final int ROW_OVERHEAD = 32;
+  /**
+   * The most rows estimateSize() looks at, so that rows decoded on demand are not all decoded
+   */
+  private static final int SAMPLE_ROWS = 64;
+
+  static final long DEFAULT_FRESHNESS_MILLIS = 1000L;
+
+  static final class Key {
+    private final String appName;
+    private final String user;
+    private final String tableId;
+    private final String sqlCommand;
+    private final List<Object> bindArgs;
+    private final int limit;
+    private final int offset;
+
+    /**
+     * @param user the active user and roles, as returned by getUser()
+     */
+    Key(String appName, String user, String tableId, String sqlCommand, BindArgs bindArgs,
+        QueryBounds bounds) {
+      this.appName = appName;
+      this.user = user;
+      this.tableId = tableId;
+      this.sqlCommand = normalize(sqlCommand);
+      if (bindArgs == null || bindArgs.bindArgs == null) {
+        this.bindArgs = Collections.emptyList();
+      } else {
+        this.bindArgs = Arrays.asList(bindArgs.bindArgs.clone());
+      }
+      this.limit = (bounds == null) ? -1 : bounds.mLimit;
+      this.offset = (bounds == null) ? -1 : bounds.mOffset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return limit == other.limit && offset == other.offset && appName.equals(other.appName)
+          && user.equals(other.user) && tableId.equals(other.tableId) && sqlCommand
+          .equals(other.sqlCommand) && bindArgs.equals(other.bindArgs);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = appName.hashCode();
+      result = 31 * result + user.hashCode();
+      result = 31 * result + tableId.hashCode();
+      result = 31 * result + sqlCommand.hashCode();
+      result = 31 * result + bindArgs.hashCode();
+      result = 31 * result + limit;
+      result = 31 * result + offset;
+      return result;
+    }
+  }
+
+  private static final class Entry {
+    private final BaseTable table;
+    private final String version;
+    private final long size;
+
+    Entry(BaseTable table, String version, long size) {
+      this.table = table;
+      this.version = version;
+      this.size = size;
+    }
+  }
+
+  /**
+   * A version of a table or the user of an app, and when it was last asked for
+   */
+  private static final class Confirmed {
+    private final String value;
+    private final long confirmedAt;
+
+    Confirmed(String value, long confirmedAt) {
+      this.value = value;
+      this.confirmedAt = confirmedAt;
+    }
+  }
+
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * The confirmed version of each table, by app name and table id
+   */
+  private final Map<String, Map<String, Confirmed>> versions = new HashMap<>();
+  /**
+   * The confirmed user of each app
+   */
+  private final Map<String, Confirmed> users = new HashMap<>();
+  private long freshnessNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRESHNESS_MILLIS);
+  private long maxBytes = 0;
+  private long bytes = 0;
+  /**
+   * Incremented by every invalidation, so that a result fetched while a write was in
+   * progress is not stored
+   */
+  private long generation = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param maxBytes the most the results may hold, estimated; 0 disables the cache
+   */
+  synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    this.maxBytes = maxBytes;
+    trimToSize();
+  }
+
+  /**
+   * @param freshnessMillis how long a confirmed version or user is used without asking the
+   *                        database again; 0 to always ask
+   */
+  synchronized void setFreshness(long freshnessMillis) {
+    if (freshnessMillis < 0) {
+      throw new IllegalArgumentException("freshnessMillis must not be negative");
+    }
+    this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+  }
+
+  synchronized boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @param definition the table definition entry
+   * @return the version of the table's content recorded with a result, or null if it cannot
+   * be determined
+   */
+  static String getVersion(TableDefinitionEntry definition) {
+    if (definition == null || definition.getRevId() == null) {
+      return null;
+    }
+    return definition.getRevId() + '\n' + definition.getSchemaETag() + '\n' + definition
+        .getLastDataETag();
+  }
+
+  /**
+   * @param activeUser the active user of the app
+   * @param roles      the roles of the active user
+   * @return the user a result is stored for
+   */
+  static String getUser(String activeUser, String roles) {
+    return activeUser + '\n' + roles;
+  }
+
+  /**
+   * @param appName the app name
+   * @param tableId the table
+   * @param now     the current System.nanoTime()
+   * @return the version of the table confirmed within the freshness window, or null
+   */
+  synchronized String getConfirmedVersion(String appName, String tableId, long now) {
+    Map<String, Confirmed> tables = versions.get(appName);
+    return (tables == null) ? null : freshValue(tables.get(tableId), now);
+  }
+
+  /**
+   * Remember the version of a table, unless the cache has been invalidated since it was
+   * asked for
+   *
+   * @param appName    the app name
+   * @param tableId    the table
+   * @param version    the version, as returned by getVersion()
+   * @param now        the System.nanoTime() before it was asked for
+   * @param generation the value of getGeneration() before it was asked for
+   */
+  synchronized void confirmVersion(String appName, String tableId, String version, long now,
+      long generation) {
+    if (version == null || generation != this.generation) {
+      return;
+    }
+    Map<String, Confirmed> tables = versions.get(appName);
+    if (tables == null) {
+      tables = new HashMap<>();
+      versions.put(appName, tables);
+    }
+    tables.put(tableId, new Confirmed(version, now));
+  }
+
+  /**
+   * @param appName the app name
+   * @param now     the current System.nanoTime()
+   * @return the user of the app confirmed within the freshness window, or null
+   */
+  synchronized String getConfirmedUser(String appName, long now) {
+    return freshValue(users.get(appName), now);
+  }
+
+  /**
+   * Remember the user of an app
+   *
+   * @param appName the app name
+   * @param user    the user, as returned by getUser()
+   * @param now     the System.nanoTime() before it was asked for
+   */
+  synchronized void confirmUser(String appName, String user, long now) {
+    users.put(appName, new Confirmed(user, now));
+  }
+
+  private String freshValue(Confirmed confirmed, long now) {
+    if (confirmed == null || now - confirmed.confirmedAt >= freshnessNanos) {
+      return null;
+    }
+    return confirmed.value;
+  }
+
+  /**
+   * @param key     the query
+   * @param version the current version of the table
+   * @return a copy of the stored result, or null if there is none for that version
+   */
+  synchronized BaseTable get(Key key, String version) {
+    Entry entry = entries.get(key);
+    if (entry == null || version == null || !version.equals(entry.version)) {
+      if (entry != null) {
+        remove(key);
+      }
+      ++misses;
+      return null;
+    }
+    ++hits;
+    return copyOf(entry.table);
+  }
+
+  /**
+   * Store the result of a query, unless the cache has been invalidated since it was begun
+   *
+   * @param key        the query
+   * @param version    the version of the table before the query was run
+   * @param table      the result, which is copied
+   * @param generation the value of getGeneration() before the query was run
+   */
+  synchronized void put(Key key, String version, BaseTable table, long generation) {
+    if (version == null || generation != this.generation || maxBytes <= 0) {
+      return;
+    }
+    long size = estimateSize(table);
+    if (size > maxBytes) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(copyOf(table), version, size));
+    bytes += size;
+    trimToSize();
+  }
+
+  /**
+   * Drop the results of all queries of an app
+   *
+   * @param appName the app name
+   */
+  synchronized void invalidate(String appName) {
+    ++generation;
+    versions.remove(appName);
+    Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Entry> entry = iterator.next();
+      if (entry.getKey().appName.equals(appName)) {
+        bytes -= entry.getValue().size;
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    ++generation;
+    versions.clear();
+    users.clear();
+    entries.clear();
+    bytes = 0;
+  }
+
+  private void remove(Key key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.size;
+    }
+  }
+
+  private void trimToSize() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      bytes -= iterator.next().size;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * The rows are shared, as they are not changed once they are in a table, but the table is
+   * not, as its query is replaced by the caller. Rows that are still encoded stay so.
+   */
+  private static BaseTable copyOf(BaseTable table) {
+    return BaseTable.shareRows(table);
+  }
+
+  /**
+   * Estimated from evenly spaced rows, so that a table whose rows are decoded on demand
+   * does not have all of them decoded
+   */
+  private static long estimateSize(BaseTable table) {
+    int rowCount = table.getNumberOfRows();
+    // the rows of a query result all have the columns of the table
+    int width = table.getWidth();
+    int step = Math.max(1, (rowCount + SAMPLE_ROWS - 1) / SAMPLE_ROWS);
+    long sampleSize = 0;
+    int sampleCount = 0;
+    for (int i = 0; i < rowCount; i += step) {
+      Row row = table.getRowAtIndex(i);
+      for (int j = 0; j < width; ++j) {
+        String value = row.getDataByIndex(j);
+        if (value != null) {
+          sampleSize += STRING_OVERHEAD + 2L * value.length();
+        }
+      }
+      ++sampleCount;
+    }
+    long size = ROW_OVERHEAD + rowCount * (ROW_OVERHEAD + 4L * width);
+    if (sampleCount != 0) {
+      size += sampleSize * rowCount / sampleCount;
+    }
+    return size;
+  }
+
+  /**
+   * Collapse runs of whitespace, so that queries differing only in layout are the same
+   */
+  private static String normalize(String sqlCommand) {
+    StringBuilder b = new StringBuilder(sqlCommand.length());
+    boolean space = false;
+    boolean quoted = false;
+    char quote = 0;
+    for (int i = 0; i < sqlCommand.length(); ++i) {
+      char c = sqlCommand.charAt(i);
+      if (quoted) {
+        b.append(c);
+        if (c == quote) {
+          quoted = false;
+        }
+      } else if (Character.isWhitespace(c)) {
+        space = b.length() != 0;
+      } else {
+        if (space) {
+          b.append(' ');
+          space = false;
+        }
+        if (c == '\'' || c == '"' || c == '`') {
+          quoted = true;
+          quote = c;
+        }
+        b.append(c);
+      }
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The rows of a query, fetched from the database a page at a time as they are iterated
+ * over. Only the current page is held (and the next one, if it is being prefetched), so a
+ * table of any size can be processed in constant memory.
+ * <p>
+ * Obtained from UserDbInterface.streamQuery(). A stream may be iterated over once, from a
+ * single thread, and should be closed if it is abandoned before the end so that any
+ * prefetch in progress is cancelled.
+ */
+public final class RowStream implements Iterator<Row>, Iterable<Row>, Closeable {
+
+  /**
+   * Thrown by hasNext() and next() if a page could not be fetched from the database
+   */
+  public static class PageFetchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    PageFetchException(ServicesAvailabilityException cause) {
+      super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized ServicesAvailabilityException getCause() {
+      return (ServicesAvailabilityException) super.getCause();
+    }
+  }
+
+  private final UserDbInterface dbInterface;
+  private final String appName;
+  private final DbHandle dbHandleName;
+  private final ResumableQuery query;
+  private final int pageSize;
+  private final Executor prefetchExecutor;
+
+  /**
+   * The offset of the next page to request
+   */
+  private int nextOffset;
+  /**
+   * The number of rows that may still be requested, or -1 if there is no limit
+   */
+  private int remaining;
+  /**
+   * True once there are no more pages to request
+   */
+  private boolean exhausted = false;
+  private boolean closed = false;
+
+  private BaseTable page = null;
+  private int pageIndex = 0;
+
+  private FutureTask<BaseTable> nextPage = null;
+  private int nextPageLimit = 0;
+
+  private RowStream(UserDbInterface dbInterface, String appName, DbHandle dbHandleName,
+      ResumableQuery query, int pageSize, Executor prefetchExecutor) {
+    this.dbInterface = dbInterface;
+    this.appName = appName;
+    this.dbHandleName = dbHandleName;
+    this.query = query;
+    this.pageSize = pageSize;
+    this.prefetchExecutor = prefetchExecutor;
+    this.nextOffset = Math.max(query.getSqlOffset(), 0);
+    this.remaining = (query.getSqlLimit() < 0) ? -1 : query.getSqlLimit();
+  }
+
+  /**
+   * Start streaming the rows of a query, fetching the first page before returning
+   *
+   * @param dbInterface      the interface to fetch the pages through
+   * @param appName          the app name
+   * @param dbHandleName     the database handle to use
+   * @param query            the query. Its offset, if any, is where the stream starts and its
+   *                         limit, if any, is the most rows the stream returns. Its bounds
+   *                         are changed as the pages are fetched.
+   * @param pageSize         the number of rows to fetch at a time
+   * @param prefetchExecutor if not null, each page is fetched on this while the previous
+   *                         one is being iterated over
+   * @return the stream
+   * @throws ServicesAvailabilityException if the first page could not be fetched
+   */
+  static RowStream open(UserDbInterface dbInterface, String appName, DbHandle dbHandleName,
+      ResumableQuery query, int pageSize, Executor prefetchExecutor)
+      throws ServicesAvailabilityException {
+    if (query == null) {
+      throw new IllegalArgumentException("query must not be null");
+    }
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+    RowStream stream = new RowStream(dbInterface, appName, dbHandleName, query, pageSize,
+        prefetchExecutor);
+    try {
+      stream.advance();
+    } catch (PageFetchException e) {
+      throw e.getCause();
+    }
+    return stream;
+  }
+
+  /**
+   * @return this stream, which can only be iterated over once
+   */
+  @Override
+  public Iterator<Row> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!closed) {
+      if (page != null && pageIndex < page.getNumberOfRows()) {
+        return true;
+      }
+      if (!advance()) {
+        close();
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Row next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.getRowAtIndex(pageIndex++);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+
+  /**
+   * Release the current page and cancel any prefetch that is in progress
+   */
+  @Override
+  public void close() {
+    closed = true;
+    page = null;
+    if (nextPage != null) {
+      nextPage.cancel(false);
+      nextPage = null;
+    }
+  }
+
+  /**
+   * Replace the current page with the next one, waiting for it if it is being prefetched,
+   * and start prefetching the one after it.
+   *
+   * @return false if there are no more pages
+   */
+  private boolean advance() {
+    if (exhausted && nextPage == null) {
+      page = null;
+      return false;
+    }
+    if (nextPage == null) {
+      scheduleNextPage();
+    }
+    FutureTask<BaseTable> task = nextPage;
+    int limit = nextPageLimit;
+    nextPage = null;
+    page = null;
+
+    // does nothing if the executor has already run, or is running, the fetch
+    task.run();
+    page = awaitPage(task);
+    pageIndex = 0;
+    if (page.getNumberOfRows() < limit) {
+      exhausted = true;
+    }
+
+    if (!exhausted && prefetchExecutor != null) {
+      scheduleNextPage();
+      try {
+        prefetchExecutor.execute(nextPage);
+      } catch (RejectedExecutionException e) {
+        // it is fetched when it is needed instead
+      }
+    }
+    return true;
+  }
+
+  private void scheduleNextPage() {
+    int limit = (remaining < 0) ? pageSize : Math.min(pageSize, remaining);
+    // Continue from the end of the current page, which positions the query by keyset if it
+    // supports that. Nothing is in flight, so the query can be changed here.
+    if (page == null || page.resumeQueryForward(limit) != query) {
+      query.setSqlLimit(limit);
+      query.setSqlOffset(nextOffset);
+    }
+    nextOffset += limit;
+    if (remaining >= 0) {
+      remaining -= limit;
+      if (remaining == 0) {
+        exhausted = true;
+      }
+    }
+
+    nextPageLimit = limit;
+    nextPage = new FutureTask<>(new Callable<BaseTable>() {
+      @Override
+      public BaseTable call() throws ServicesAvailabilityException {
+        return dbInterface.resumeSimpleQuery(appName, dbHandleName, query);
+      }
+    });
+  }
+
+  private static BaseTable awaitPage(FutureTask<BaseTable> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while waiting for a page of rows", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ServicesAvailabilityException) {
+        throw new PageFetchException((ServicesAvailabilityException) cause);
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("unable to fetch a page of rows", cause);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.TableMetaDataEntries;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The full set of metadata entries of recently used tables, by app and table id. Used by
+ * UserDbInterfaceImpl.
+ * <p>
+ * An entry is returned without asking the database whether it has changed if it was
+ * fetched or revalidated within the freshness window, one second by default, so that the
+ * repeated lookups of one screen cost a single call. Otherwise the caller revalidates it
+ * against its revId. The service does not notify clients of changes, so writes made
+ * through the UserDbInterfaceImpl, and changes others report to it, call invalidate().
+ * <p>
+ * Lookups do not block one another. Once there are more entries than the limits allow, the
+ * least recently used ones are dropped.
+ * <p>
+ * Multiple threads may be accessing this.
+ */
+final class TableMetadataCache {
+
+  /**
+   * Estimated bytes held by a String, excluding its characters
+   */
+  private static final int STRING_OVERHEAD = 40;
+  /**
+   * Estimated bytes held by a KeyValueStoreEntry, excluding its Strings
+   */
+  private static final int ENTRY_OVERHEAD = 48;
+
+  static final int DEFAULT_MAX_ENTRIES = 128;
+  static final long DEFAULT_MAX_BYTES = 1024L * 1024L;
+  static final long DEFAULT_FRESHNESS_MILLIS = 1000L;
+
+  private static final class Key {
+    private final String appName;
+    private final String tableId;
+
+    Key(String appName, String tableId) {
+      this.appName = appName;
+      this.tableId = tableId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return appName.equals(other.appName) && tableId.equals(other.tableId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * appName.hashCode() + tableId.hashCode();
+    }
+  }
+
+  static final class Entry {
+    private final TableMetaDataEntries entries;
+    private final long size;
+    private volatile long validatedAt;
+    private volatile long lastUsed;
+
+    Entry(TableMetaDataEntries entries, long size, long validatedAt) {
+      this.entries = entries;
+      this.size = size;
+      this.validatedAt = validatedAt;
+    }
+
+    /**
+     * @return all the metadata of the table. Do not change it.
+     */
+    TableMetaDataEntries getEntries() {
+      return entries;
+    }
+  }
+
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong(0);
+  /**
+   * Orders the entries by when they were last used
+   */
+  private final AtomicLong clock = new AtomicLong(0);
+  /**
+   * Incremented by every invalidation, so that metadata fetched while a write was in
+   * progress is not stored
+   */
+  private final AtomicLong generation = new AtomicLong(0);
+
+  private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+  private volatile long maxBytes = DEFAULT_MAX_BYTES;
+  private volatile long freshnessNanos = TimeUnit.MILLISECONDS
+      .toNanos(DEFAULT_FRESHNESS_MILLIS);
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong revalidations = new AtomicLong(0);
+
+  /**
+   * @param maxEntries the most tables to keep the metadata of; 0 disables the cache
+   * @param maxBytes   the most the metadata may hold, estimated
+   */
+  void setLimits(int maxEntries, long maxBytes) {
+    if (maxEntries < 0 || maxBytes < 0) {
+      throw new IllegalArgumentException("limits must not be negative");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    trimToSize();
+  }
+
+  /**
+   * @param freshnessMillis how long an entry is used without revalidating it; 0 to always
+   *                        revalidate it
+   */
+  void setFreshness(long freshnessMillis) {
+    if (freshnessMillis < 0) {
+      throw new IllegalArgumentException("freshnessMillis must not be negative");
+    }
+    this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+  }
+
+  long getGeneration() {
+    return generation.get();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getRevalidations() {
+    return revalidations.get();
+  }
+
+  /**
+   * @param appName the app name
+   * @param tableId the table id
+   * @return the entry, or null if there is none
+   */
+  Entry get(String appName, String tableId) {
+    Entry entry = entries.get(new Key(appName, tableId));
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      entry.lastUsed = clock.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * @param entry an entry returned by get()
+   * @return true if it can be used without revalidating it. Counted as a hit if it can.
+   */
+  boolean isFresh(Entry entry) {
+    long freshness = freshnessNanos;
+    if (freshness > 0 && System.nanoTime() - entry.validatedAt < freshness) {
+      hits.incrementAndGet();
+      return true;
+    }
+    revalidations.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Record that an entry has been found to be unchanged
+   *
+   * @param entry an entry returned by get()
+   */
+  void markValidated(Entry entry) {
+    entry.validatedAt = System.nanoTime();
+  }
+
+  /**
+   * Store the metadata of a table, unless the cache has been invalidated since it was
+   * fetched
+   *
+   * @param appName    the app name
+   * @param tableId    the table id
+   * @param metadata   all the metadata of the table, which must not be changed afterwards
+   * @param generation the value of getGeneration() before the metadata was fetched
+   */
+  void put(String appName, String tableId, TableMetaDataEntries metadata, long generation) {
+    if (metadata == null || generation != this.generation.get() || maxEntries == 0) {
+      return;
+    }
+    long size = estimateSize(metadata);
+    if (size > maxBytes) {
+      return;
+    }
+    Entry entry = new Entry(metadata, size, System.nanoTime());
+    entry.lastUsed = clock.incrementAndGet();
+    Entry previous = entries.put(new Key(appName, tableId), entry);
+    bytes.addAndGet(size - ((previous == null) ? 0 : previous.size));
+    trimToSize();
+  }
+
+  /**
+   * Drop the metadata of a table, or of all the tables of an app
+   *
+   * @param appName the app name
+   * @param tableId the table id, or null for all the tables
+   */
+  void invalidate(String appName, String tableId) {
+    generation.incrementAndGet();
+    if (tableId != null) {
+      remove(new Key(appName, tableId));
+      return;
+    }
+    for (Key key : entries.keySet()) {
+      if (key.appName.equals(appName)) {
+        remove(key);
+      }
+    }
+  }
+
+  void clear() {
+    generation.incrementAndGet();
+    for (Key key : entries.keySet()) {
+      remove(key);
+    }
+  }
+
+  private void remove(Key key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes.addAndGet(-entry.size);
+    }
+  }
+
+  /**
+   * Drop the least recently used entries until the limits are met. Only one thread trims
+   * at a time; lookups continue meanwhile.
+   */
+  private synchronized void trimToSize() {
+    while (entries.size() > maxEntries || bytes.get() > maxBytes) {
+      Key eldest = null;
+      long eldestUse = Long.MAX_VALUE;
+      for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+        if (e.getValue().lastUsed < eldestUse) {
+          eldestUse = e.getValue().lastUsed;
+          eldest = e.getKey();
+        }
+      }
+      if (eldest == null) {
+        return;
+      }
+      remove(eldest);
+    }
+  }
+
+  private static long estimateSize(TableMetaDataEntries metadata) {
+    long size = ENTRY_OVERHEAD + sizeOf(metadata.getTableId()) + sizeOf(metadata.getRevId());
+    for (KeyValueStoreEntry entry : metadata.getEntries()) {
+      size += ENTRY_OVERHEAD + sizeOf(entry.tableId) + sizeOf(entry.partition) + sizeOf(
+          entry.aspect) + sizeOf(entry.key) + sizeOf(entry.type) + sizeOf(entry.value);
+    }
+    return size;
+  }
+
+  private static long sizeOf(String value) {
+    return (value == null) ? 0 : STRING_OVERHEAD + 2L * value.length();
+  }
+}
@@ -22,9 +22,37 @@ import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 public interface UserDbInterface {
 
+  /**
+   * Returned by the batch row operations (e.g., insertRowsWithIds) for each row that was
+   * changed as requested
+   */
+  int ROW_STATUS_OK = 0;
+  /**
+   * The row was not inserted because a row with its rowId is already present
+   */
+  int ROW_STATUS_ALREADY_EXISTS = 1;
+  /**
+   * The row was not changed because the user is not allowed to change it
+   */
+  int ROW_STATUS_NOT_AUTHORIZED = 2;
+  /**
+   * The row was not changed because its values are not valid for the table
+   */
+  int ROW_STATUS_INVALID = 3;
+  /**
+   * The row was not changed because no row with its rowId is present
+   */
+  int ROW_STATUS_NOT_FOUND = 4;
+  /**
+   * The row was not changed because it is in conflict or has checkpoints
+   */
+  int ROW_STATUS_CONFLICT = 5;
+
   /**
    * Return the active user or "anonymous" if the user
    * has not been authenticated against the server.
@@ -286,6 +314,20 @@ public interface UserDbInterface {
   String getChoiceList(String appName, DbHandle dbHandleName, String choiceListId)
       throws ServicesAvailabilityException;
 
+  /**
+   * Return the choices of the choice list corresponding to the choiceListId.
+   * The list and the maps within it cannot be changed.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param choiceListId -- the md5 hash of the choiceListJSON
+   * @return the choices, each a map of the fields of the choice, or null if there is no
+   * choice list with that choiceListId
+   * @throws IllegalArgumentException if the choice list is not a JSON array of objects
+   */
+  List<Map<String, Object>> getParsedChoiceList(String appName, DbHandle dbHandleName,
+      String choiceListId) throws ServicesAvailabilityException;
+
   /**
    * If the tableId is not recorded in the TableDefinition metadata table, then
    * create the tableId with the indicated columns. This will synthesize
@@ -453,6 +495,19 @@ public interface UserDbInterface {
   OrderedColumns getUserDefinedColumns(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException;
 
+  /**
+   * Retrieve the table definition entry, user-defined columns and metadata of several
+   * tables at once, e.g. to list the tables of an app. Tables that do not exist are left
+   * out.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableIds     the tables, or null for all the tables
+   * @return the table infos, in no particular order
+   */
+  List<TableInfo> getTableInfos(String appName, DbHandle dbHandleName, List<String> tableIds)
+      throws ServicesAvailabilityException;
+
   /**
    * Verifies that the tableId exists in the database.
    *
@@ -493,6 +548,33 @@ public interface UserDbInterface {
                         Integer offset)
       throws ServicesAvailabilityException;
 
+  /**
+   * Get a {@link BaseTable} for this table based on the given SQL command, with only the
+   * given columns. The element keys of the result are those of the projection.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @param projection        the element keys of the columns to return, or null for all of them
+   * @return A {@link BaseTable} containing the results of the query
+   */
+  BaseTable simpleQuery(String appName, DbHandle dbHandleName, String tableId, String whereClause,
+                        BindArgs bindArgs, String[] groupBy, String having,
+                        String[] orderByColNames, String[] orderByDirections, Integer limit,
+                        Integer offset, String[] projection)
+      throws ServicesAvailabilityException;
+
   /**
    * SYNC ONLY
    * <p>
@@ -558,6 +640,23 @@ public interface UserDbInterface {
   BaseTable resumeSimpleQuery(String appName, DbHandle dbHandleName, ResumableQuery query)
       throws ServicesAvailabilityException;
 
+  /**
+   * Iterate over the results of a query without holding all of them, by fetching them a
+   * page at a time through resumeSimpleQuery.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param query            The query. Its offset, if any, is where the rows start and its
+   *                         limit, if any, is the most rows returned. Its bounds are changed
+   *                         as the pages are fetched.
+   * @param pageSize         the number of rows to fetch at a time
+   * @param prefetchExecutor if not null, the next page is fetched on this while the current
+   *                         page is being iterated over
+   * @return A {@link RowStream} over the results, with the first page already fetched
+   */
+  RowStream streamQuery(String appName, DbHandle dbHandleName, ResumableQuery query,
+      int pageSize, Executor prefetchExecutor) throws ServicesAvailabilityException;
+
   /**
    * SYNC ONLY
    * <p>
@@ -614,6 +713,36 @@ public interface UserDbInterface {
                         String[] orderByDirections, Integer limit, Integer offset)
       throws ServicesAvailabilityException;
 
+  /**
+   * Get a {@link UserTable} for this table based on the given SQL command, with only the
+   * given columns. The column definitions remain those of the whole table, so the types of
+   * the returned columns can still be found.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param columnDefns
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @param projection        the element keys of the columns to return, or null for all of them
+   * @return A {@link UserTable} containing the results of the query
+   */
+  UserTable simpleQuery(String appName, DbHandle dbHandleName, String tableId,
+                        OrderedColumns columnDefns, String whereClause, BindArgs bindArgs,
+                        String[] groupBy, String having, String[] orderByColNames,
+                        String[] orderByDirections, Integer limit, Integer offset,
+                        String[] projection)
+      throws ServicesAvailabilityException;
+
   /**
    * SYNC ONLY
    * <p>
@@ -796,6 +925,37 @@ public interface UserDbInterface {
                                            String rowId, String rowETag, String syncState)
       throws ServicesAvailabilityException;
 
+  /**
+   * SYNC Only. ADMIN Privileges!
+   * <p>
+   * Update the ETag and SyncState of many rows, as privilegedUpdateRowETagAndSyncState()
+   * does.
+   * <p>
+   * The rows are not updated in a single transaction. They are sent to the database in
+   * batches of at most 1000 rows, each of which is updated and committed in its own
+   * transaction before the next is sent. A row that cannot be updated is skipped and its
+   * status records why, including ROW_STATUS_NOT_FOUND for a missing row and
+   * ROW_STATUS_CONFLICT for a row in conflict or with checkpoints. Any other failure throws
+   * and rolls back only the batch it occurred in: the earlier batches stay committed. An
+   * older service without the batch call updates and commits the rows one at a time; the
+   * status of a row that fails there is found by looking the row up.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param rowIds       the row id of each row
+   * @param rowETags     the new rowETag of each row
+   * @param syncStates   the new SyncState.name() of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, in the order they were given, or null
+   * if returnStatus is false
+   */
+  int[] privilegedUpdateRowsETagAndSyncState(String appName, DbHandle dbHandleName,
+                                             String tableId, List<String> rowIds,
+                                             List<String> rowETags, List<String> syncStates,
+                                             boolean returnStatus)
+      throws ServicesAvailabilityException;
+
   /**
    * Return the row with the most recent changes for the given tableId and rowId.
    * If the row has conflicts, it throws an exception. Otherwise, it returns the
@@ -929,6 +1089,54 @@ public interface UserDbInterface {
                             OrderedColumns orderedColumns, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException;
 
+  /**
+   * SYNC, CSV Import ONLY
+   * <p>
+   * Insert many rows, as privilegedInsertRowWithId() does, without returning their content.
+   * <p>
+   * The rows are not inserted in a single transaction. They are sent to the database in
+   * batches of at most 1000 rows, each of which is inserted and committed in its own
+   * transaction before the next is sent. A row that cannot be inserted is skipped and its
+   * status records why. Any other failure throws and rolls back only the batch it occurred
+   * in: the earlier batches stay committed, so a caller that retries must expect some of
+   * the rowIds to be present already. An older service without the batch call inserts and
+   * commits the rows one at a time.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList         the values of each row
+   * @param rowIds               the row id of each row
+   * @param asCsvRequestedChange
+   * @return the ROW_STATUS_... value of each row, in the order they were given
+   */
+  int[] privilegedInsertRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                                    List<ContentValues> cvValuesList, List<String> rowIds,
+                                    boolean asCsvRequestedChange)
+      throws ServicesAvailabilityException;
+
+  /**
+   * Insert many rows, as insertRowWithId() does, without returning their content.
+   * <p>
+   * The rows are not inserted in a single transaction. They are sent to the database in
+   * batches of at most 1000 rows, each of which is inserted and committed in its own
+   * transaction before the next is sent. A row that cannot be inserted is skipped and its
+   * status records why. Any other failure throws and rolls back only the batch it occurred
+   * in: the earlier batches stay committed, so a caller that retries must expect some of
+   * the rowIds to be present already. An older service without the batch call inserts and
+   * commits the rows one at a time.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList the values of each row
+   * @param rowIds       the row id of each row
+   * @return the ROW_STATUS_... value of each row, in the order they were given
+   */
+  int[] insertRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                          List<ContentValues> cvValuesList, List<String> rowIds)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException;
+
   /**
    * Delete any checkpoint rows for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
@@ -1004,6 +1212,30 @@ public interface UserDbInterface {
                             OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException;
 
+  /**
+   * Delete many rows, as deleteRowWithId() does, without returning their content.
+   * <p>
+   * The rows are not deleted in a single transaction. They are sent to the database in
+   * batches of at most 1000 rows, each of which is deleted and committed in its own
+   * transaction before the next is sent. A row that cannot be deleted is skipped and its
+   * status records why, including ROW_STATUS_NOT_FOUND for a missing row and
+   * ROW_STATUS_CONFLICT for a row in conflict or with checkpoints. Any other failure throws
+   * and rolls back only the batch it occurred in: the earlier batches stay committed. An
+   * older service without the batch call deletes and commits the rows one at a time; the
+   * status of a row that fails there is found by looking the row up.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param rowIds       the row id of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, in the order they were given, or null
+   * if returnStatus is false
+   */
+  int[] deleteRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                          List<String> rowIds, boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException;
+
   /**
    * Update all rows for the given rowId to SavepointType 'INCOMPLETE' and
    * remove all but the most recent row. When used with a rowId that has
@@ -1062,6 +1294,32 @@ public interface UserDbInterface {
                             OrderedColumns orderedColumns, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException;
 
+  /**
+   * Update many rows, as updateRowWithId() does, without returning their content.
+   * <p>
+   * The rows are not updated in a single transaction. They are sent to the database in
+   * batches of at most 1000 rows, each of which is updated and committed in its own
+   * transaction before the next is sent. A row that cannot be updated is skipped and its
+   * status records why, including ROW_STATUS_NOT_FOUND for a missing row and
+   * ROW_STATUS_CONFLICT for a row in conflict or with checkpoints. Any other failure throws
+   * and rolls back only the batch it occurred in: the earlier batches stay committed. An
+   * older service without the batch call updates and commits the rows one at a time; the
+   * status of a row that fails there is found by looking the row up.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList the new values of each row
+   * @param rowIds       the row id of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, in the order they were given, or null
+   * if returnStatus is false
+   */
+  int[] updateRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+                          List<ContentValues> cvValuesList, List<String> rowIds,
+                          boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException;
+
   /**
    * Client-side wrapper to make changing the row filter easier.
    *
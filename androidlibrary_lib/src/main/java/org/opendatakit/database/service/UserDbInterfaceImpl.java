@@ -19,15 +19,16 @@ import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.database.data.*;
 import org.opendatakit.database.queries.ArbitraryQuery;
 import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
 import org.opendatakit.database.queries.ResumableQuery;
 import org.opendatakit.database.queries.SimpleQuery;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Used in CommonApplication
@@ -38,10 +39,19 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   private final InternalUserDbInterface internalUserDbInterface;
 
   /**
-   * Access this ONLY through getMetadata(tableId) and putMetadata(tableId, entries).
-   * Multiple threads may be accessing this.
+   * The full metadata of recently used tables, by app and table id
+   */
+  private final TableMetadataCache tableMetadataCache = new TableMetadataCache();
+
+  /**
+   * The user-defined columns of recently used tables, by app, table id and schema version
    */
-  private final Map<String, TableMetaDataEntries> privateMetaDataCache = new HashMap<>();
+  private final OrderedColumnsCache orderedColumnsCache = new OrderedColumnsCache();
+
+  /**
+   * The JSON and parsed form of recently used choice lists, by app and choiceListId
+   */
+  private final ChoiceListCache choiceListCache = new ChoiceListCache();
 
   /**
    * Access this ONLY through internalGetAdminColumns()
@@ -49,6 +59,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
    */
   private String[] internalAdminColumns = null;
 
+  /**
+   * Recent query results. Disabled until setQueryResultCacheSize() is called.
+   */
+  private final QueryResultCache queryResultCache = new QueryResultCache();
+
   public UserDbInterfaceImpl(InternalUserDbInterface internalUserDbInterface)
       throws IllegalArgumentException {
     if (internalUserDbInterface == null) {
@@ -58,38 +73,232 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     this.internalUserDbInterface = internalUserDbInterface;
   }
 
-  private static TableMetaDataEntries filterEntries(TableMetaDataEntries allEntries,
-      String partition, String aspect, String key) {
-    if (partition == null && aspect == null && key == null) {
-      return new TableMetaDataEntries(allEntries);
-    }
+  public InternalUserDbInterface getInternalUserDbInterface() {
+    return internalUserDbInterface;
+  }
 
-    TableMetaDataEntries entries = new TableMetaDataEntries(allEntries.getTableId(),
-        allEntries.getRevId());
+  /**
+   * Keep the results of simpleQuery(), arbitrarySqlQuery() and resumeSimpleQuery() so that
+   * the same query is answered without going back to the database until the table changes.
+   * A result is reused only while the table definition entry of its table is unchanged and
+   * for the same user and roles, and every write made through this interface drops the
+   * results for that app. Writes made by other processes are only noticed once they change
+   * the table definition entry, and at the earliest once the freshness window has passed.
+   *
+   * @param maxBytes the estimated memory the results may use; 0 (the default) disables the
+   *                 cache
+   */
+  public void setQueryResultCacheSize(long maxBytes) {
+    queryResultCache.setMaxBytes(maxBytes);
+  }
 
-    for (KeyValueStoreEntry entry : allEntries.getEntries()) {
-      if ((partition == null || entry.partition.equals(partition)) && (aspect == null
-          || entry.aspect.equals(aspect)) && (key == null || entry.key.equals(key))) {
-        entries.addEntry(entry);
-      }
-    }
-    return entries;
+  /**
+   * Within the freshness window, a query answered from the query result cache uses the
+   * table definition entry and the user it last asked the database for, so that it makes no
+   * call to the database at all. A change made by another process, or a change of user,
+   * may therefore go unnoticed until the window has passed or clearQueryResultCache() is
+   * called.
+   *
+   * @param freshnessMillis how long the version of a table and the user are used without
+   *                        asking again; 0 to always ask. Defaults to one second.
+   */
+  public void setQueryResultCacheFreshness(long freshnessMillis) {
+    queryResultCache.setFreshness(freshnessMillis);
   }
 
-  private TableMetaDataEntries getMetadata(String tableId) {
-    synchronized (privateMetaDataCache) {
-      return privateMetaDataCache.get(tableId);
-    }
+  /**
+   * Drop all the results kept by the query result cache
+   */
+  public void clearQueryResultCache() {
+    queryResultCache.clear();
   }
 
-  private void putMetadata(String tableId, TableMetaDataEntries entries) {
-    synchronized (privateMetaDataCache) {
-      privateMetaDataCache.put(tableId, entries);
-    }
+  /**
+   * @return the number of queries answered from the query result cache
+   */
+  public long getQueryResultCacheHits() {
+    return queryResultCache.getHits();
   }
 
-  public InternalUserDbInterface getInternalUserDbInterface() {
-    return internalUserDbInterface;
+  /**
+   * @return the number of cacheable queries that had to go to the database
+   */
+  public long getQueryResultCacheMisses() {
+    return queryResultCache.getMisses();
+  }
+
+  /**
+   * Limit the table metadata kept by getTableMetadata(). Defaults to 128 tables and 1MB.
+   *
+   * @param maxTables the most tables to keep the metadata of; 0 disables the cache
+   * @param maxBytes  the estimated memory the metadata may use
+   */
+  public void setTableMetadataCacheLimits(int maxTables, long maxBytes) {
+    tableMetadataCache.setLimits(maxTables, maxBytes);
+  }
+
+  /**
+   * Within the freshness window, getTableMetadata() uses the metadata it has kept without
+   * asking the database whether it has changed; after it, it asks each time the metadata is
+   * used. The service does not notify clients of changes, so a change made by another
+   * process may go unnoticed until the window has passed or invalidateTableMetadata() is
+   * called.
+   *
+   * @param freshnessMillis how long kept metadata is used without asking; 0 to always ask.
+   *                        Defaults to one second.
+   */
+  public void setTableMetadataFreshness(long freshnessMillis) {
+    tableMetadataCache.setFreshness(freshnessMillis);
+  }
+
+  /**
+   * Drop the kept metadata of a table, e.g. when told that another process has changed it.
+   * Changes made through this interface do so already.
+   *
+   * @param appName the app name
+   * @param tableId the table id, or null for all the tables of the app
+   */
+  public void invalidateTableMetadata(String appName, String tableId) {
+    tableMetadataCache.invalidate(appName, tableId);
+  }
+
+  /**
+   * @return the number of getTableMetadata() calls answered without asking the database
+   */
+  public long getTableMetadataCacheHits() {
+    return tableMetadataCache.getHits();
+  }
+
+  /**
+   * @return the number of getTableMetadata() calls that fetched all the metadata
+   */
+  public long getTableMetadataCacheMisses() {
+    return tableMetadataCache.getMisses();
+  }
+
+  /**
+   * @return the number of getTableMetadata() calls that asked the database whether the kept
+   * metadata had changed
+   */
+  public long getTableMetadataCacheRevalidations() {
+    return tableMetadataCache.getRevalidations();
+  }
+
+  /**
+   * Limit the number of tables whose columns getUserDefinedColumns() keeps. The cache is off
+   * (0) by default. Kept columns are checked against the table definition entry, which is
+   * fetched on every call, so a miss costs two calls to the database instead of one. Turn
+   * it on (e.g. with 64) when the same tables' columns are asked for repeatedly and have
+   * many columns.
+   *
+   * @param maxTables the most tables to keep the columns of; 0 disables the cache
+   */
+  public void setUserDefinedColumnsCacheSize(int maxTables) {
+    orderedColumnsCache.setMaxTables(maxTables);
+  }
+
+  /**
+   * @return the number of getUserDefinedColumns() calls answered without fetching the columns
+   */
+  public long getUserDefinedColumnsCacheHits() {
+    return orderedColumnsCache.getHits();
+  }
+
+  /**
+   * @return the number of getUserDefinedColumns() calls that fetched the columns
+   */
+  public long getUserDefinedColumnsCacheMisses() {
+    return orderedColumnsCache.getMisses();
+  }
+
+  /**
+   * Limit the memory used to keep choice lists returned by getChoiceList(),
+   * getParsedChoiceList() and setChoiceList(). A choiceListId is derived from the content of
+   * its choice list, so these are never stale.
+   *
+   * @param maxBytes the estimated memory the choice lists may use; 0 disables the cache
+   */
+  public void setChoiceListCacheSize(long maxBytes) {
+    choiceListCache.setMaxBytes(maxBytes);
+  }
+
+  /**
+   * Drop all the choice lists kept by the choice list cache
+   */
+  public void clearChoiceListCache() {
+    choiceListCache.clear();
+  }
+
+  /**
+   * @return the number of choice lists returned without fetching them
+   */
+  public long getChoiceListCacheHits() {
+    return choiceListCache.getHits();
+  }
+
+  /**
+   * @return the number of choice lists that were fetched
+   */
+  public long getChoiceListCacheMisses() {
+    return choiceListCache.getMisses();
+  }
+
+  /**
+   * Drop everything kept about the schema of a table, after it may have changed
+   */
+  private void invalidateTableSchema(String appName, String tableId) {
+    tableMetadataCache.invalidate(appName, tableId);
+    orderedColumnsCache.invalidate(appName, tableId);
+  }
+
+  private void invalidateQueryResults(String appName) {
+    queryResultCache.invalidate(appName);
+  }
+
+  /**
+   * Run a query, or return the result of the same query if it is in the query result cache
+   * and the table has not changed since.
+   */
+  private BaseTable cachedSimpleQuery(String appName, DbHandle dbHandleName,
+      ResumableQuery query) throws ServicesAvailabilityException {
+
+    String tableId = query.getTableId();
+    String sqlCommand = query.getSqlCommand();
+    BindArgs bindArgs = query.getSqlBindArgs();
+    QueryBounds bounds = query.getSqlQueryBounds();
+
+    BaseTable baseTable;
+    if (!queryResultCache.isEnabled() || tableId == null) {
+      baseTable = internalUserDbInterface
+          .simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, bounds, tableId);
+    } else {
+      long generation = queryResultCache.getGeneration();
+      long now = System.nanoTime();
+      String user = queryResultCache.getConfirmedUser(appName, now);
+      if (user == null) {
+        user = QueryResultCache.getUser(internalUserDbInterface.getActiveUser(appName),
+            internalUserDbInterface.getRolesList(appName));
+        queryResultCache.confirmUser(appName, user, now);
+      }
+      String version = queryResultCache.getConfirmedVersion(appName, tableId, now);
+      if (version == null) {
+        version = QueryResultCache.getVersion(
+            internalUserDbInterface.getTableDefinitionEntry(appName, dbHandleName, tableId));
+        queryResultCache.confirmVersion(appName, tableId, version, now, generation);
+      }
+      QueryResultCache.Key key = new QueryResultCache.Key(appName, user, tableId, sqlCommand,
+          bindArgs, bounds);
+      baseTable = queryResultCache.get(key, version);
+      if (baseTable == null) {
+        baseTable = internalUserDbInterface
+            .simpleQuery(appName, dbHandleName, sqlCommand, bindArgs, bounds, tableId);
+        queryResultCache.put(key, version, baseTable, generation);
+      }
+    }
+
+    baseTable.setQuery(query);
+
+    return baseTable;
   }
 
   private synchronized String[] internalGetAdminColumns() throws ServicesAvailabilityException {
@@ -200,8 +409,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public OrderedColumns createLocalOnlyTableWithColumns(String appName, DbHandle dbHandleName,
       String tableId, ColumnList columns) throws ServicesAvailabilityException {
 
-    return internalUserDbInterface
-        .createLocalOnlyTableWithColumns(appName, dbHandleName, tableId, columns);
+    try {
+      return internalUserDbInterface
+          .createLocalOnlyTableWithColumns(appName, dbHandleName, tableId, columns);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -216,7 +429,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteLocalOnlyTable(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface.deleteLocalOnlyTable(appName, dbHandleName, tableId);
+    try {
+      internalUserDbInterface.deleteLocalOnlyTable(appName, dbHandleName, tableId);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -232,7 +449,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void insertLocalOnlyRow(String appName, DbHandle dbHandleName, String tableId,
       ContentValues rowValues) throws ServicesAvailabilityException {
 
-    internalUserDbInterface.insertLocalOnlyRow(appName, dbHandleName, tableId, rowValues);
+    try {
+      internalUserDbInterface.insertLocalOnlyRow(appName, dbHandleName, tableId, rowValues);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -251,8 +472,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       ContentValues rowValues, String whereClause, BindArgs bindArgs)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .updateLocalOnlyRows(appName, dbHandleName, tableId, rowValues, whereClause, bindArgs);
+    try {
+      internalUserDbInterface
+          .updateLocalOnlyRows(appName, dbHandleName, tableId, rowValues, whereClause, bindArgs);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -270,8 +495,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteLocalOnlyRows(String appName, DbHandle dbHandleName, String tableId,
       String whereClause, BindArgs bindArgs) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .deleteLocalOnlyRows(appName, dbHandleName, tableId, whereClause, bindArgs);
+    try {
+      internalUserDbInterface
+          .deleteLocalOnlyRows(appName, dbHandleName, tableId, whereClause, bindArgs);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -405,9 +634,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String tableId, String schemaETag, String tableInstanceFilesUri)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .privilegedServerTableSchemaETagChanged(appName, dbHandleName, tableId, schemaETag,
-            tableInstanceFilesUri);
+    try {
+      internalUserDbInterface
+          .privilegedServerTableSchemaETagChanged(appName, dbHandleName, tableId, schemaETag,
+              tableInstanceFilesUri);
+    } finally {
+      invalidateQueryResults(appName);
+      invalidateTableSchema(appName, tableId);
+    }
   }
 
   /**
@@ -424,7 +658,10 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public String setChoiceList(String appName, DbHandle dbHandleName, String choiceListJSON)
       throws ServicesAvailabilityException {
 
-    return internalUserDbInterface.setChoiceList(appName, dbHandleName, choiceListJSON);
+    String choiceListId = internalUserDbInterface
+        .setChoiceList(appName, dbHandleName, choiceListJSON);
+    choiceListCache.putJson(appName, choiceListId, choiceListJSON);
+    return choiceListId;
   }
 
   /**
@@ -439,7 +676,38 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public String getChoiceList(String appName, DbHandle dbHandleName, String choiceListId)
       throws ServicesAvailabilityException {
 
-    return internalUserDbInterface.getChoiceList(appName, dbHandleName, choiceListId);
+    String choiceListJSON = choiceListCache.getJson(appName, choiceListId);
+    if (choiceListJSON == null) {
+      choiceListJSON = internalUserDbInterface.getChoiceList(appName, dbHandleName, choiceListId);
+      choiceListCache.putJson(appName, choiceListId, choiceListJSON);
+    }
+    return choiceListJSON;
+  }
+
+  /**
+   * Return the choices of the choice list corresponding to the choiceListId.
+   * The list and the maps within it cannot be changed.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param choiceListId -- the md5 hash of the choiceListJSON
+   * @return the choices, each a map of the fields of the choice, or null if there is no
+   * choice list with that choiceListId
+   */
+  @Override
+  public List<Map<String, Object>> getParsedChoiceList(String appName, DbHandle dbHandleName,
+      String choiceListId) throws ServicesAvailabilityException {
+
+    List<Map<String, Object>> choices = choiceListCache.getParsed(appName, choiceListId);
+    if (choices == null) {
+      String choiceListJSON = getChoiceList(appName, dbHandleName, choiceListId);
+      if (choiceListJSON == null) {
+        return null;
+      }
+      choices = ChoiceListCache.parse(choiceListJSON);
+      choiceListCache.putParsed(appName, choiceListId, choiceListJSON, choices);
+    }
+    return choices;
   }
 
   /**
@@ -459,8 +727,13 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public OrderedColumns createOrOpenTableWithColumns(String appName, DbHandle dbHandleName,
       String tableId, ColumnList columns) throws ServicesAvailabilityException {
 
-    return internalUserDbInterface
-        .createOrOpenTableWithColumns(appName, dbHandleName, tableId, columns);
+    try {
+      return internalUserDbInterface
+          .createOrOpenTableWithColumns(appName, dbHandleName, tableId, columns);
+    } finally {
+      invalidateQueryResults(appName);
+      invalidateTableSchema(appName, tableId);
+    }
   }
 
   /**
@@ -486,9 +759,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       DbHandle dbHandleName, String tableId, ColumnList columns, List<KeyValueStoreEntry> metaData,
       boolean clear) throws ServicesAvailabilityException {
 
-    return internalUserDbInterface
-        .createOrOpenTableWithColumnsAndProperties(appName, dbHandleName, tableId, columns,
-            metaData, clear);
+    try {
+      return internalUserDbInterface
+          .createOrOpenTableWithColumnsAndProperties(appName, dbHandleName, tableId, columns,
+              metaData, clear);
+    } finally {
+      invalidateQueryResults(appName);
+      invalidateTableSchema(appName, tableId);
+    }
   }
 
   /**
@@ -503,7 +781,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteTableAndAllData(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface.deleteTableAndAllData(appName, dbHandleName, tableId);
+    try {
+      internalUserDbInterface.deleteTableAndAllData(appName, dbHandleName, tableId);
+    } finally {
+      invalidateQueryResults(appName);
+      invalidateTableSchema(appName, tableId);
+    }
   }
 
   /**
@@ -519,7 +802,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public boolean rescanTableFormDefs(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException {
 
-    return internalUserDbInterface.rescanTableFormDefs(appName, dbHandleName, tableId);
+    try {
+      return internalUserDbInterface.rescanTableFormDefs(appName, dbHandleName, tableId);
+    } finally {
+      invalidateTableMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -537,8 +824,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteTableMetadata(String appName, DbHandle dbHandleName, String tableId,
       String partition, String aspect, String key) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .deleteTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
+    try {
+      internalUserDbInterface
+          .deleteTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
+    } finally {
+      invalidateTableMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -606,28 +897,36 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       entries = internalUserDbInterface
           .getTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
     } else {
-      TableMetaDataEntries allEntries = getMetadata(tableId);
+      long generation = tableMetadataCache.getGeneration();
+      TableMetadataCache.Entry cached = tableMetadataCache.get(appName, tableId);
+      TableMetaDataEntries allEntries;
 
-      if (allEntries == null) {
+      if (cached == null) {
         // If there is no cache hit, fetch from the database
         allEntries = internalUserDbInterface
             .getTableMetadata(appName, dbHandleName, tableId, null, null, null);
-        putMetadata(tableId, allEntries);
+        tableMetadataCache.put(appName, tableId, allEntries, generation);
+      } else if (tableMetadataCache.isFresh(cached)) {
+        // Recently fetched or checked, so use it without asking
+        allEntries = cached.getEntries();
       } else {
         // If there is a cache hit, check if it is stale
+        allEntries = cached.getEntries();
         TableMetaDataEntries newEntries = internalUserDbInterface
             .getTableMetadataIfChanged(appName, dbHandleName, tableId, allEntries.getRevId());
         String newEntRevId = newEntries.getRevId();
         // We want to update the cache if the condition of the revIds being the
         // same does NOT hold
         if (!(newEntRevId != null && newEntRevId.equals(allEntries.getRevId()))) {
-          putMetadata(tableId, newEntries);
+          tableMetadataCache.put(appName, tableId, newEntries, generation);
           allEntries = newEntries;
+        } else {
+          tableMetadataCache.markValidated(cached);
         }
       }
 
       // Filter the requested entries from the full list
-      entries = filterEntries(allEntries, partition, aspect, key);
+      entries = allEntries.filter(partition, aspect, key);
     }
 
     if (entries == null) {
@@ -695,7 +994,55 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public OrderedColumns getUserDefinedColumns(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException {
 
-    return internalUserDbInterface.getUserDefinedColumns(appName, dbHandleName, tableId);
+    if (!orderedColumnsCache.isEnabled() || tableId == null) {
+      return internalUserDbInterface.getUserDefinedColumns(appName, dbHandleName, tableId);
+    }
+
+    // The definition entry is much smaller than the columns, and tells whether the kept
+    // columns are still those of the table.
+    long generation = orderedColumnsCache.getGeneration();
+    String version = OrderedColumnsCache.getVersion(
+        internalUserDbInterface.getTableDefinitionEntry(appName, dbHandleName, tableId));
+    OrderedColumns columns = orderedColumnsCache.get(appName, tableId, version);
+    if (columns == null) {
+      columns = internalUserDbInterface.getUserDefinedColumns(appName, dbHandleName, tableId);
+      orderedColumnsCache.put(appName, tableId, version, columns, generation);
+    }
+    return columns;
+  }
+
+  /**
+   * Retrieve the table definition entry, user-defined columns and metadata of several
+   * tables at once. They are kept, as getTableMetadata() and getUserDefinedColumns() keep
+   * them, so that those do not fetch them again for these tables.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableIds     the tables, or null for all the tables
+   * @return the table infos, in no particular order
+   */
+  @Override
+  public List<TableInfo> getTableInfos(String appName, DbHandle dbHandleName,
+      List<String> tableIds) throws ServicesAvailabilityException {
+
+    long metadataGeneration = tableMetadataCache.getGeneration();
+    long columnsGeneration = orderedColumnsCache.getGeneration();
+    List<TableInfo> tableInfos = internalUserDbInterface
+        .getTableInfos(appName, dbHandleName, tableIds);
+
+    for (TableInfo tableInfo : tableInfos) {
+      String tableId = tableInfo.getTableId();
+      if (tableId == null) {
+        continue;
+      }
+      // a copy, as the caller may change the one returned
+      tableMetadataCache.put(appName, tableId, new TableMetaDataEntries(tableInfo.getMetadata()),
+          metadataGeneration);
+      orderedColumnsCache
+          .put(appName, tableId, OrderedColumnsCache.getVersion(tableInfo.getDefinitionEntry()),
+              tableInfo.getColumns(), columnsGeneration);
+    }
+    return tableInfos;
   }
 
   /**
@@ -744,16 +1091,42 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String[] orderByColNames, String[] orderByDirections, Integer limit, Integer offset)
       throws ServicesAvailabilityException {
 
-    SimpleQuery query = new SimpleQuery(tableId, bindArgs, whereClause, groupBy, having,
-        orderByColNames, orderByDirections, limit, offset);
+    return simpleQuery(appName, dbHandleName, tableId, whereClause, bindArgs, groupBy, having,
+        orderByColNames, orderByDirections, limit, offset, null);
+  }
 
-    BaseTable baseTable = internalUserDbInterface
-        .simpleQuery(appName, dbHandleName, query.getSqlCommand(), query.getSqlBindArgs(),
-            query.getSqlQueryBounds(), query.getTableId());
+  /**
+   * Get a {@link BaseTable} for this table based on the given SQL command, with only the
+   * given columns. The element keys of the result are those of the projection.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the sql query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @param projection        the element keys of the columns to return, or null for all of them
+   * @return A {@link BaseTable} containing the results of the query
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  @Override
+  public BaseTable simpleQuery(String appName, DbHandle dbHandleName, String tableId,
+      String whereClause, BindArgs bindArgs, String[] groupBy, String having,
+      String[] orderByColNames, String[] orderByDirections, Integer limit, Integer offset,
+      String[] projection) throws ServicesAvailabilityException {
 
-    baseTable.setQuery(query);
+    SimpleQuery query = new SimpleQuery(tableId, projection, bindArgs, whereClause, groupBy,
+        having, orderByColNames, orderByDirections, limit, offset);
 
-    return baseTable;
+    return cachedSimpleQuery(appName, dbHandleName, query);
   }
 
   /**
@@ -825,13 +1198,7 @@ public class UserDbInterfaceImpl implements UserDbInterface {
 
     ArbitraryQuery query = new ArbitraryQuery(tableId, bindArgs, sqlCommand, limit, offset);
 
-    BaseTable baseTable = internalUserDbInterface
-        .simpleQuery(appName, dbHandleName, query.getSqlCommand(), query.getSqlBindArgs(),
-            query.getSqlQueryBounds(), query.getTableId());
-
-    baseTable.setQuery(query);
-
-    return baseTable;
+    return cachedSimpleQuery(appName, dbHandleName, query);
   }
 
   /**
@@ -846,13 +1213,29 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public BaseTable resumeSimpleQuery(String appName, DbHandle dbHandleName, ResumableQuery query)
       throws ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .simpleQuery(appName, dbHandleName, query.getSqlCommand(), query.getSqlBindArgs(),
-            query.getSqlQueryBounds(), query.getTableId());
+    return cachedSimpleQuery(appName, dbHandleName, query);
+  }
 
-    baseTable.setQuery(query);
+  /**
+   * Iterate over the results of a query without holding all of them, by fetching them a
+   * page at a time through resumeSimpleQuery.
+   *
+   * @param appName          the app name
+   * @param dbHandleName     the database handle to use
+   * @param query            The query. Its offset, if any, is where the rows start and its
+   *                         limit, if any, is the most rows returned. Its bounds are changed
+   *                         as the pages are fetched.
+   * @param pageSize         the number of rows to fetch at a time
+   * @param prefetchExecutor if not null, the next page is fetched on this while the current
+   *                         page is being iterated over
+   * @return the stream of rows, with the first page already fetched
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  @Override
+  public RowStream streamQuery(String appName, DbHandle dbHandleName, ResumableQuery query,
+      int pageSize, Executor prefetchExecutor) throws ServicesAvailabilityException {
 
-    return baseTable;
+    return RowStream.open(this, appName, dbHandleName, query, pageSize, prefetchExecutor);
   }
 
   /**
@@ -892,7 +1275,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void privilegedExecute(String appName, DbHandle dbHandleName, String sqlCommand,
       BindArgs bindArgs) throws ServicesAvailabilityException {
 
-    internalUserDbInterface.privilegedExecute(appName, dbHandleName, sqlCommand, bindArgs);
+    try {
+      internalUserDbInterface.privilegedExecute(appName, dbHandleName, sqlCommand, bindArgs);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /////////// USERTABLE QUERY WRAPPERS ///////////
@@ -927,8 +1314,42 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String having, String[] orderByColNames, String[] orderByDirections, Integer limit,
       Integer offset) throws ServicesAvailabilityException {
 
+    return simpleQuery(appName, dbHandleName, tableId, columnDefns, whereClause, bindArgs,
+        groupBy, having, orderByColNames, orderByDirections, limit, offset, null);
+  }
+
+  /**
+   * Get a {@link UserTable} for this table based on the given SQL command, with only the
+   * given columns. The column definitions remain those of the whole table, so the types of
+   * the returned columns can still be found.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param columnDefns       the columns of the table
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the sql query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @param projection        the element keys of the columns to return, or null for all of them
+   * @return A {@link UserTable} containing the results of the query
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  @Override
+  public UserTable simpleQuery(String appName, DbHandle dbHandleName, String tableId,
+      OrderedColumns columnDefns, String whereClause, BindArgs bindArgs, String[] groupBy,
+      String having, String[] orderByColNames, String[] orderByDirections, Integer limit,
+      Integer offset, String[] projection) throws ServicesAvailabilityException {
+
     BaseTable baseTable = simpleQuery(appName, dbHandleName, tableId, whereClause, bindArgs,
-        groupBy, having, orderByColNames, orderByDirections, limit, offset);
+        groupBy, having, orderByColNames, orderByDirections, limit, offset, projection);
 
     return new UserTable(baseTable, columnDefns, internalGetAdminColumns());
   }
@@ -1050,7 +1471,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void replaceTableMetadata(String appName, DbHandle dbHandleName, KeyValueStoreEntry entry)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface.replaceTableMetadata(appName, dbHandleName, entry);
+    try {
+      internalUserDbInterface.replaceTableMetadata(appName, dbHandleName, entry);
+    } finally {
+      invalidateTableMetadata(appName, entry.tableId);
+    }
   }
 
   /**
@@ -1069,8 +1494,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void replaceTableMetadataList(String appName, DbHandle dbHandleName, String tableId,
       List<KeyValueStoreEntry> entries, boolean clear) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .replaceTableMetadataList(appName, dbHandleName, tableId, entries, clear);
+    try {
+      internalUserDbInterface
+          .replaceTableMetadataList(appName, dbHandleName, tableId, entries, clear);
+    } finally {
+      invalidateTableMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -1089,8 +1518,13 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String partition, String aspect, List<KeyValueStoreEntry> entries)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .replaceTableMetadataSubList(appName, dbHandleName, tableId, partition, aspect, entries);
+    try {
+      internalUserDbInterface
+          .replaceTableMetadataSubList(appName, dbHandleName, tableId, partition, aspect,
+              entries);
+    } finally {
+      invalidateTableMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -1108,8 +1542,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void privilegedUpdateTableETags(String appName, DbHandle dbHandleName, String tableId,
       String schemaETag, String lastDataETag) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .privilegedUpdateTableETags(appName, dbHandleName, tableId, schemaETag, lastDataETag);
+    try {
+      internalUserDbInterface
+          .privilegedUpdateTableETags(appName, dbHandleName, tableId, schemaETag, lastDataETag);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1162,9 +1600,43 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String tableId, String rowId, String rowETag, String syncState)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .privilegedUpdateRowETagAndSyncState(appName, dbHandleName, tableId, rowId, rowETag,
-            syncState);
+    try {
+      internalUserDbInterface
+          .privilegedUpdateRowETagAndSyncState(appName, dbHandleName, tableId, rowId, rowETag,
+              syncState);
+    } finally {
+      invalidateQueryResults(appName);
+    }
+  }
+
+  /**
+   * SYNC Only. ADMIN Privileges!
+   * <p>
+   * Update the ETag and SyncState of many rows, as privilegedUpdateRowETagAndSyncState()
+   * does. The rows are sent to the database in batches, each of which is updated in a
+   * single transaction.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableId      the table id
+   * @param rowIds       the row id of each row
+   * @param rowETags     the new rowETag of each row
+   * @param syncStates   the new SyncState.name() of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, or null if returnStatus is false
+   */
+  @Override
+  public int[] privilegedUpdateRowsETagAndSyncState(String appName, DbHandle dbHandleName,
+      String tableId, List<String> rowIds, List<String> rowETags, List<String> syncStates,
+      boolean returnStatus) throws ServicesAvailabilityException {
+
+    try {
+      return internalUserDbInterface
+          .privilegedUpdateRowsETagAndSyncState(appName, dbHandleName, tableId, rowIds,
+              rowETags, syncStates, returnStatus);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1256,11 +1728,15 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       DbHandle dbHandleName, String tableId, OrderedColumns orderedColumns, ContentValues cvValues,
       String rowId) throws ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .privilegedPerhapsPlaceRowIntoConflictWithId(appName, dbHandleName, tableId, cvValues,
-            rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .privilegedPerhapsPlaceRowIntoConflictWithId(appName, dbHandleName, tableId, cvValues,
+              rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1285,11 +1761,15 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       OrderedColumns orderedColumns, ContentValues cvValues, String rowId,
       boolean asCsvRequestedChange) throws ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .privilegedInsertRowWithId(appName, dbHandleName, tableId, cvValues, rowId,
-            asCsvRequestedChange);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .privilegedInsertRowWithId(appName, dbHandleName, tableId, cvValues, rowId,
+              asCsvRequestedChange);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1311,10 +1791,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       OrderedColumns orderedColumns, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .insertCheckpointRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .insertCheckpointRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1338,10 +1822,68 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       OrderedColumns orderedColumns, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .insertRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .insertRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
+  }
+
+  /**
+   * SYNC, CSV Import ONLY
+   * <p>
+   * Insert many rows, as privilegedInsertRowWithId() does, without returning their content.
+   * The rows are sent to the database in batches, each of which is inserted in a single
+   * transaction. A row that cannot be inserted is skipped and its status records why.
+   *
+   * @param appName              the app name
+   * @param dbHandleName         the database handle to use
+   * @param tableId              the table id
+   * @param cvValuesList         the values of each row
+   * @param rowIds               the row id of each row
+   * @param asCsvRequestedChange Whether the request is from a csv import
+   * @return the ROW_STATUS_... value of each row, in the order they were given
+   */
+  @Override
+  public int[] privilegedInsertRowsWithIds(String appName, DbHandle dbHandleName,
+      String tableId, List<ContentValues> cvValuesList, List<String> rowIds,
+      boolean asCsvRequestedChange) throws ServicesAvailabilityException {
+
+    try {
+      return internalUserDbInterface
+          .privilegedInsertRowsWithIds(appName, dbHandleName, tableId, cvValuesList, rowIds,
+              asCsvRequestedChange);
+    } finally {
+      invalidateQueryResults(appName);
+    }
+  }
+
+  /**
+   * Insert many rows, as insertRowWithId() does, without returning their content.
+   * The rows are sent to the database in batches, each of which is inserted in a single
+   * transaction. A row that cannot be inserted is skipped and its status records why.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableId      the table id
+   * @param cvValuesList the values of each row
+   * @param rowIds       the row id of each row
+   * @return the ROW_STATUS_... value of each row, in the order they were given
+   */
+  @Override
+  public int[] insertRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+      List<ContentValues> cvValuesList, List<String> rowIds)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+
+    try {
+      return internalUserDbInterface
+          .insertRowsWithIds(appName, dbHandleName, tableId, cvValuesList, rowIds);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1361,10 +1903,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String tableId, OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .deleteAllCheckpointRowsWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .deleteAllCheckpointRowsWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1385,10 +1931,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String tableId, OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .deleteLastCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .deleteLastCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1409,10 +1959,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public UserTable privilegedDeleteRowWithId(String appName, DbHandle dbHandleName, String tableId,
       OrderedColumns orderedColumns, String rowId) throws ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .privilegedDeleteRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .privilegedDeleteRowWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1440,10 +1994,39 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .deleteRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .deleteRowWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
+  }
+
+  /**
+   * Delete many rows, as deleteRowWithId() does, without returning their content.
+   * The rows are sent to the database in batches, each of which is deleted in a single
+   * transaction.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableId      the table id
+   * @param rowIds       the row id of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, or null if returnStatus is false
+   */
+  @Override
+  public int[] deleteRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+      List<String> rowIds, boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+
+    try {
+      return internalUserDbInterface
+          .deleteRowsWithIds(appName, dbHandleName, tableId, rowIds, returnStatus);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1465,10 +2048,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       DbHandle dbHandleName, String tableId, OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .saveAsIncompleteMostRecentCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .saveAsIncompleteMostRecentCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1490,10 +2077,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       DbHandle dbHandleName, String tableId, OrderedColumns orderedColumns, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .saveAsCompleteMostRecentCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .saveAsCompleteMostRecentCheckpointRowWithId(appName, dbHandleName, tableId, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1516,10 +2107,41 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       OrderedColumns orderedColumns, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
 
-    BaseTable baseTable = internalUserDbInterface
-        .updateRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .updateRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
+  }
+
+  /**
+   * Update many rows, as updateRowWithId() does, without returning their content.
+   * The rows are sent to the database in batches, each of which is updated in a single
+   * transaction.
+   *
+   * @param appName      the app name
+   * @param dbHandleName the database handle to use
+   * @param tableId      the table id
+   * @param cvValuesList the new values of each row
+   * @param rowIds       the row id of each row
+   * @param returnStatus false if the status of each row is not wanted
+   * @return the ROW_STATUS_... value of each row, or null if returnStatus is false
+   */
+  @Override
+  public int[] updateRowsWithIds(String appName, DbHandle dbHandleName, String tableId,
+      List<ContentValues> cvValuesList, List<String> rowIds, boolean returnStatus)
+      throws ActionNotAuthorizedException, ServicesAvailabilityException {
+
+    try {
+      return internalUserDbInterface
+          .updateRowsWithIds(appName, dbHandleName, tableId, cvValuesList, rowIds,
+              returnStatus);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1573,10 +2195,14 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       cvValues.put(DataTableColumns.GROUP_PRIVILEGED, groupPrivileged);
     }
 
-    BaseTable baseTable = internalUserDbInterface
-        .updateRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
+    try {
+      BaseTable baseTable = internalUserDbInterface
+          .updateRowWithId(appName, dbHandleName, tableId, cvValues, rowId);
 
-    return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+      return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1603,8 +2229,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void resolveServerConflictWithDeleteRowWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
-    internalUserDbInterface
-        .resolveServerConflictWithDeleteRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      internalUserDbInterface
+          .resolveServerConflictWithDeleteRowWithId(appName, dbHandleName, tableId, rowId);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1621,8 +2251,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void resolveServerConflictTakeLocalRowWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
-    internalUserDbInterface
-        .resolveServerConflictTakeLocalRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      internalUserDbInterface
+          .resolveServerConflictTakeLocalRowWithId(appName, dbHandleName, tableId, rowId);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1642,9 +2276,13 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void resolveServerConflictTakeLocalRowPlusServerDeltasWithId(String appName,
       DbHandle dbHandleName, String tableId, ContentValues cvValues, String rowId)
       throws ActionNotAuthorizedException, ServicesAvailabilityException {
-    internalUserDbInterface
-        .resolveServerConflictTakeLocalRowPlusServerDeltasWithId(appName, dbHandleName, tableId,
-            cvValues, rowId);
+    try {
+      internalUserDbInterface
+          .resolveServerConflictTakeLocalRowPlusServerDeltasWithId(appName, dbHandleName, tableId,
+              cvValues, rowId);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -1658,8 +2296,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   @Override
   public void resolveServerConflictTakeServerRowWithId(String appName, DbHandle dbHandleName,
       String tableId, String rowId) throws ServicesAvailabilityException {
-    internalUserDbInterface
-        .resolveServerConflictTakeServerRowWithId(appName, dbHandleName, tableId, rowId);
+    try {
+      internalUserDbInterface
+          .resolveServerConflictTakeServerRowWithId(appName, dbHandleName, tableId, rowId);
+    } finally {
+      invalidateQueryResults(appName);
+    }
   }
 
   /**
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.utilities;
+
+import org.opendatakit.database.service.DbChunk;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the data of an ordered list of chunks as one continuous stream of bytes,
+ * without first concatenating the chunks into a single array.
+ */
+public final class DbChunkInputStream extends InputStream {
+
+  private final Iterator<DbChunk> chunks;
+  private DbChunk currChunk = null;
+  private int currIndex = 0;
+  private int currEnd = 0;
+
+  public DbChunkInputStream(List<DbChunk> chunks) {
+    if (chunks == null) {
+      throw new IllegalArgumentException("null chunks");
+    }
+    this.chunks = chunks.iterator();
+  }
+
+  /**
+   * @param firstChunk      the first chunk to read
+   * @param remainingChunks the chunks to read after it, which may still be being retrieved
+   */
+  public DbChunkInputStream(DbChunk firstChunk, Iterator<DbChunk> remainingChunks) {
+    if (firstChunk == null || remainingChunks == null) {
+      throw new IllegalArgumentException("null chunks");
+    }
+    this.chunks = remainingChunks;
+    this.currChunk = firstChunk;
+    this.currIndex = firstChunk.getDataOffset();
+    this.currEnd = currIndex + firstChunk.getDataLength();
+  }
+
+  /**
+   * Advance to the next chunk that has unread data.
+   *
+   * @return false if there is no more data
+   */
+  private boolean advance() {
+    while (currChunk == null || currIndex == currEnd) {
+      if (!chunks.hasNext()) {
+        currChunk = null;
+        return false;
+      }
+      currChunk = chunks.next();
+      currIndex = currChunk.getDataOffset();
+      currEnd = currIndex + currChunk.getDataLength();
+    }
+    return true;
+  }
+
+  @Override
+  public int read() {
+    if (!advance()) {
+      return -1;
+    }
+    return currChunk.getDataBuffer()[currIndex++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) {
+    if (offset < 0 || length < 0 || length > buffer.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (length == 0) {
+      return 0;
+    }
+    if (!advance()) {
+      return -1;
+    }
+    int count = Math.min(length, currEnd - currIndex);
+    System.arraycopy(currChunk.getDataBuffer(), currIndex, buffer, offset, count);
+    currIndex += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return (currChunk == null) ? 0 : currEnd - currIndex;
+  }
+}
@@ -16,36 +16,80 @@
 package org.opendatakit.database.utilities;
 
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.util.Log;
 
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.service.DbChunk;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 public final class DbChunkUtil {
 
-  private static class UUIDGenerator {
-    private static Random generator = new Random();
-    static UUID randomGenerator() {
-      return new UUID(generator.nextLong(), generator.nextLong());
+  /**
+   * Chunk ids are a stream id, which identifies one serialized payload, and the sequence
+   * number of the chunk within it. Stream ids come from a counter, so that concurrent
+   * callers do not contend on a shared Random; the salt keeps them from repeating across
+   * restarts of the process.
+   */
+  private static class StreamIdGenerator {
+    private static final long SALT = new Random().nextLong();
+    private static final AtomicLong counter = new AtomicLong();
+    static long nextStreamId() {
+      return counter.incrementAndGet() ^ SALT;
     }
   }
 
   private static final String TAG = DbChunkUtil.class.getSimpleName();
 
+  /**
+   * Payloads smaller than this are not worth the time to compress
+   */
+  private static final int DEFLATE_THRESHOLD = 16 * 1024;
+
+  /**
+   * Buffer size used when inflating a compressed payload into a parcel
+   */
+  private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * How long the pipe writer waits for the client to read a payload before giving up.
+   * A client that never reads would otherwise hold a pipeWriter thread forever.
+   */
+  private static final long PIPE_WRITE_TIMEOUT_MS = 60L * 1000L;
+
+  /**
+   * Closes the pipes whose payload was not read within PIPE_WRITE_TIMEOUT_MS. Closing the
+   * stream wakes the pipe writer blocked on it with an IOException.
+   */
+  private static final Timer pipeWriteTimer = new Timer(TAG + " pipe write timeout", true);
+
   private DbChunkUtil() {
     // This class should never be instantiated
     throw new IllegalStateException("Never Instantiate this static class");
@@ -58,17 +102,17 @@ public final class DbChunkUtil {
    * @param dataIndex  Where to start reading bytes
    * @param chunkSize  How many bytes to read
    * @param prevChunk  The previous chunk in the payload. Needed for adding linked list pointers
+   * @param streamId   The stream id of the payload
+   * @param sequence   The position of the chunk within the payload
    * @return The chunk
    */
   private static DbChunk createChunk(byte[] sourceData, int dataIndex, int chunkSize,
-      DbChunk prevChunk) {
-
-    UUID chunkID = UUIDGenerator.randomGenerator();
+      DbChunk prevChunk, long streamId, int sequence) {
 
-    byte[] chunkData = new byte[chunkSize];
-    System.arraycopy(sourceData, dataIndex, chunkData, 0, chunkSize);
+    UUID chunkID = new UUID(streamId, sequence);
 
-    DbChunk chunk = new DbChunk(chunkData, chunkID);
+    // The chunk is a view onto the serialized payload; the data is not copied
+    DbChunk chunk = new DbChunk(sourceData, dataIndex, chunkSize, chunkID);
     if (prevChunk != null) {
       prevChunk.setNextID(chunkID);
     }
@@ -99,6 +143,222 @@ public final class DbChunkUtil {
     return createChunkList(bytes, chunkSize);
   }
 
+  /**
+   * Convert a parcelable object into the chunks to return to a client that negotiated the
+   * given transport features.
+   * <p>
+   * If the client accepts DbChunk.FEATURE_FILE_DESCRIPTOR and the serialized object is
+   * larger than fileDescriptorThreshold, a single chunk is returned that carries the read
+   * side of a pipe. The serialized object is written into the pipe on the pipeWriter
+   * executor while the client reads it; if the client has not read all of it within a
+   * minute, the pipe is closed and the pipeWriter thread released. Otherwise, this is the same as
+   * convertToChunks(parcelable, chunkSize).
+   * <p>
+   * If the client accepts DbChunk.FEATURE_DEFLATE, payloads of at least 16KB are compressed
+   * before being chunked, provided that this makes them smaller. The chunks are then
+   * flagged as deflated and the client inflates them in rebuildFromChunks().
+   * <p>
+   * If the client accepts DbChunk.FEATURE_COMPACT_FRAME, the chunks are written in the
+   * compact frame, which also tells the client the size of the entire payload.
+   * <p>
+   * If the client accepts DbChunk.FEATURE_DICTIONARY_ENCODING, the object is written with
+   * the BaseTable.PARCELABLE_WRITE_DICTIONARY_ENCODED flag, and likewise
+   * DbChunk.FEATURE_HEALTH_SUMMARY with BaseTable.PARCELABLE_WRITE_HEALTH_SUMMARY and
+   * DbChunk.FEATURE_INDEXED_ROWS with BaseTable.PARCELABLE_WRITE_INDEXED_ROWS. A client that
+   * accepts both dictionary encoding and indexed rows receives dictionary encoded indexed rows.
+   * Likewise, DbChunk.FEATURE_FIELD_WISE_METADATA gives
+   * TableMetaDataEntries.PARCELABLE_WRITE_FIELD_WISE.
+   *
+   * @param parcelable              The object to be serialized
+   * @param chunkSize               The size of the chunks
+   * @param features                The DbChunk.FEATURE_... values agreed with the client
+   * @param fileDescriptorThreshold The size above which the payload is sent through a pipe
+   * @param pipeWriter              Executor on which to write into the pipe
+   * @return Ordered list of serialized chunks
+   * @throws IOException if the pipe could not be created
+   */
+  public static List<DbChunk> convertToChunks(Parcelable parcelable, int chunkSize,
+      int features, int fileDescriptorThreshold, Executor pipeWriter) throws IOException {
+
+    if (parcelable == null || chunkSize <= 0) {
+      Log.w(TAG, "convertToChunks: Invalid input. Empty chunk list returned");
+      return null;
+    }
+
+    int writeFlags = 0;
+    if ((features & DbChunk.FEATURE_DICTIONARY_ENCODING) != 0) {
+      writeFlags |= BaseTable.PARCELABLE_WRITE_DICTIONARY_ENCODED;
+    }
+    if ((features & DbChunk.FEATURE_HEALTH_SUMMARY) != 0) {
+      writeFlags |= BaseTable.PARCELABLE_WRITE_HEALTH_SUMMARY;
+    }
+    if ((features & DbChunk.FEATURE_INDEXED_ROWS) != 0) {
+      writeFlags |= BaseTable.PARCELABLE_WRITE_INDEXED_ROWS;
+    }
+    if ((features & DbChunk.FEATURE_FIELD_WISE_METADATA) != 0) {
+      writeFlags |= TableMetaDataEntries.PARCELABLE_WRITE_FIELD_WISE;
+    }
+
+    // Convert to bytes
+    Parcel parcel = Parcel.obtain();
+    parcelable.writeToParcel(parcel, writeFlags);
+    byte[] bytes = parcel.marshall();
+    parcel.recycle();
+
+    int payloadLength = bytes.length;
+    boolean deflated = false;
+    if ((features & DbChunk.FEATURE_DEFLATE) != 0 && bytes.length >= DEFLATE_THRESHOLD) {
+      byte[] compressed = deflate(bytes);
+      if (compressed.length < bytes.length) {
+        bytes = compressed;
+        deflated = true;
+      }
+    }
+
+    List<DbChunk> chunks;
+    if ((features & DbChunk.FEATURE_FILE_DESCRIPTOR) != 0 && pipeWriter != null
+        && bytes.length > fileDescriptorThreshold) {
+      chunks = Collections.singletonList(createFileDescriptorChunk(bytes, pipeWriter));
+    } else {
+      chunks = createChunkList(bytes, chunkSize);
+    }
+
+    boolean compactFrame = (features & DbChunk.FEATURE_COMPACT_FRAME) != 0;
+    if (deflated || compactFrame) {
+      for (DbChunk chunk : chunks) {
+        chunk.setDeflated(deflated);
+        chunk.setCompactFrame(compactFrame);
+        chunk.setPayloadLengthHint(payloadLength);
+      }
+    }
+    return chunks;
+  }
+
+  /**
+   * Compress a payload with Deflate, favouring speed over compression ratio.
+   *
+   * @param bytes the payload
+   * @return the compressed payload
+   */
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 4);
+      byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        bos.write(buffer, 0, count);
+      }
+      return bos.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Create a chunk whose payload is delivered through a pipe.
+   *
+   * @param bytes      the serialized payload
+   * @param pipeWriter executor on which to write the payload into the pipe
+   * @return the chunk holding the read side of the pipe
+   * @throws IOException if the pipe could not be created
+   */
+  private static DbChunk createFileDescriptorChunk(final byte[] bytes, Executor pipeWriter)
+      throws IOException {
+    ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+    final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+
+    try {
+      pipeWriter.execute(new Runnable() {
+        @Override
+        public void run() {
+          TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+              Log.w(TAG, "createFileDescriptorChunk: payload not read in time; closing pipe");
+              try {
+                out.close();
+              } catch (IOException e) {
+                // ignore
+              }
+            }
+          };
+          pipeWriteTimer.schedule(timeout, PIPE_WRITE_TIMEOUT_MS);
+          try {
+            writePayload(out, bytes);
+          } catch (IOException e) {
+            // the client went away, stopped reading or did not read in time
+            Log.w(TAG, "createFileDescriptorChunk: unable to write payload: " + e.toString());
+          } finally {
+            timeout.cancel();
+            try {
+              out.close();
+            } catch (IOException e) {
+              // ignore
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      out.close();
+      pipe[0].close();
+      throw new IOException("createFileDescriptorChunk: pipe writer rejected the payload");
+    }
+
+    return new DbChunk(pipe[0], new UUID(StreamIdGenerator.nextStreamId(), 0));
+  }
+
+  /**
+   * Write a payload to a stream, prefixed by its length so that the reader can tell a
+   * complete payload from one that was cut short.
+   *
+   * @param out   the stream to write to. It is not closed.
+   * @param bytes the payload
+   * @throws IOException if the payload could not be written
+   */
+  public static void writePayload(OutputStream out, byte[] bytes) throws IOException {
+    DataOutputStream dos = new DataOutputStream(out);
+    dos.writeInt(bytes.length);
+    dos.write(bytes);
+    dos.flush();
+  }
+
+  /**
+   * Read a payload written by writePayload().
+   *
+   * @param in the stream to read from. It is not closed.
+   * @return the payload
+   * @throws IOException if the stream ended before the entire payload was read
+   */
+  public static byte[] readPayload(InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(in);
+    int length = dis.readInt();
+    if (length < 0) {
+      throw new IOException("readPayload: invalid payload length");
+    }
+    byte[] bytes = new byte[length];
+    dis.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Read the payload of a chunk that carries a file descriptor, then close the descriptor.
+   *
+   * @param chunk the chunk
+   * @return the payload
+   * @throws IOException if the payload could not be read
+   */
+  private static byte[] readPayload(DbChunk chunk) throws IOException {
+    InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(chunk.getPayloadDescriptor());
+    try {
+      return readPayload(in);
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * Convert a serializable object into an ordered list of OdkDbChunks of a specified size.
    *
@@ -133,11 +393,13 @@ public final class DbChunkUtil {
    */
   private static List<DbChunk> createChunkList(byte[] bytes, int chunkSize) {
     // Partition bytes into chunks, inserting them into the list along the way
+    long streamId = StreamIdGenerator.nextStreamId();
+    int sequence = 0;
     int dataIndex = 0;
     DbChunk currChunk = null;
     List<DbChunk> chunkList = new LinkedList<>();
     while (dataIndex + chunkSize < bytes.length) {
-      currChunk = createChunk(bytes, dataIndex, chunkSize, currChunk);
+      currChunk = createChunk(bytes, dataIndex, chunkSize, currChunk, streamId, sequence++);
       chunkList.add(currChunk);
 
       dataIndex += chunkSize;
@@ -145,7 +407,7 @@ public final class DbChunkUtil {
 
     // Create final chunk from remainder data. Return the list
     int remainderSize = bytes.length - dataIndex;
-    currChunk = createChunk(bytes, dataIndex, remainderSize, currChunk);
+    currChunk = createChunk(bytes, dataIndex, remainderSize, currChunk, streamId, sequence);
     chunkList.add(currChunk);
 
     return chunkList;
@@ -167,14 +429,54 @@ public final class DbChunkUtil {
       return null;
     }
 
-    byte[] data = getData(chunks);
+    return rebuildFromChunks(chunks.iterator(), creator);
+  }
+
+  /**
+   * Rebuild a parcelable object that was converted into chunks by convertToChunks(),
+   * consuming the chunks as the iterator produces them. The iterator may block while it
+   * retrieves further chunks; each chunk is appended to the parcel (or inflated) before
+   * the next is asked for, so that this work overlaps with the retrieval.
+   *
+   * @param chunks  Iterator over the ordered chunks. It must produce at least one chunk.
+   * @param creator The parcelable creator to rebuild the original object
+   * @param <T>     The type of the parcelable object to rebuild
+   * @return The original object
+   */
+  public static <T> T rebuildFromChunks(Iterator<DbChunk> chunks,
+      Parcelable.Creator<T> creator) {
+
+    if (chunks == null || !chunks.hasNext() || creator == null) {
+      Log.w(TAG, "rebuildFromChunks: Invalid input. Null returned");
+      return null;
+    }
 
     // Unmarshall the parcel
+    DbChunk firstChunk = chunks.next();
     Parcel parcel = Parcel.obtain();
-    parcel.unmarshall(data, 0, data.length);
-    parcel.setDataPosition(0);
-
-    return creator.createFromParcel(parcel);
+    try {
+      try {
+        if (firstChunk.getPayloadLengthHint() > 0) {
+          parcel.setDataCapacity(firstChunk.getPayloadLengthHint());
+        }
+        if (firstChunk.isDeflated()) {
+          appendStream(parcel, openPayload(firstChunk, chunks));
+        } else if (firstChunk.hasPayloadDescriptor()) {
+          byte[] data = readPayload(firstChunk);
+          parcel.unmarshall(data, 0, data.length);
+        } else {
+          appendChunks(parcel, firstChunk, chunks);
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(
+            "rebuildFromChunks: unable to read payload " + e.toString());
+      }
+      parcel.setDataPosition(0);
+
+      return creator.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
   }
 
   /**
@@ -185,7 +487,6 @@ public final class DbChunkUtil {
    * @param <T>          The type of the parcelable object to rebuild
    * @return The original object
    */
-  @SuppressWarnings("unchecked")
   public static <T> T rebuildFromChunks(List<DbChunk> chunks, Class<T> serializable)
       throws IOException, ClassNotFoundException {
 
@@ -194,42 +495,110 @@ public final class DbChunkUtil {
       return null;
     }
 
-    byte[] data = getData(chunks);
+    return rebuildFromChunks(chunks.iterator(), serializable);
+  }
+
+  /**
+   * Rebuild a serializable object that was converted into chunks by convertToChunks(),
+   * consuming the chunks as the iterator produces them.
+   *
+   * @param chunks       Iterator over the ordered chunks. It must produce at least one chunk.
+   * @param serializable The type to cast the object to
+   * @param <T>          The type of the parcelable object to rebuild
+   * @return The original object
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T rebuildFromChunks(Iterator<DbChunk> chunks, Class<T> serializable)
+      throws IOException, ClassNotFoundException {
+
+    if (chunks == null || !chunks.hasNext() || serializable == null) {
+      Log.w(TAG, "rebuildFromChunks: Invalid input. Null returned");
+      return null;
+    }
 
-    ByteArrayInputStream bis = new ByteArrayInputStream(data);
-    ObjectInput in = new ObjectInputStream(bis);
+    DbChunk firstChunk = chunks.next();
+    ObjectInput in = new ObjectInputStream(openPayload(firstChunk, chunks));
     T result = (T) in.readObject();
-    bis.close();
     in.close();
 
     return result;
   }
 
   /**
-   * Extract the bytes from the chunks and concatenate them into a single byte array
+   * Open a stream over the payload that the chunks make up, inflating it if necessary.
    *
-   * @param chunks a list of chunks representing a split stream of bytes
-   * @return the original bytes
+   * @param firstChunk      the first chunk of the payload
+   * @param remainingChunks the chunks that follow it
+   * @return the stream of payload bytes
+   * @throws IOException if the payload could not be read from a file descriptor
    */
-  private static byte[] getData(List<DbChunk> chunks) {
-    // Find the size of data
-    int dataSize = 0;
-    Iterator<DbChunk> iterator = chunks.iterator();
-    while (iterator.hasNext()) {
-      dataSize += iterator.next().getData().length;
+  private static InputStream openPayload(DbChunk firstChunk, Iterator<DbChunk> remainingChunks)
+      throws IOException {
+    InputStream source;
+    if (firstChunk.hasPayloadDescriptor()) {
+      source = new ByteArrayInputStream(readPayload(firstChunk));
+    } else {
+      // Read straight out of the chunks rather than concatenating them first
+      source = new DbChunkInputStream(firstChunk, remainingChunks);
+    }
+    if (firstChunk.isDeflated()) {
+      source = new InflaterInputStream(source);
     }
+    return source;
+  }
 
-    // Rebuild the byte array
-    int dataIndex = 0;
-    byte[] data = new byte[dataSize];
-    iterator = chunks.iterator();
-    while (iterator.hasNext()) {
-      byte[] currChunkData = iterator.next().getData();
-      System.arraycopy(currChunkData, 0, data, dataIndex, currChunkData.length);
-      dataIndex += currChunkData.length;
+  /**
+   * Append the bytes of a stream to the parcel, one buffer at a time, then close the stream.
+   *
+   * @param parcel the parcel to fill
+   * @param in     the stream to read
+   * @throws IOException if the stream could not be read
+   */
+  private static void appendStream(Parcel parcel, InputStream in) throws IOException {
+    Parcel piece = Parcel.obtain();
+    try {
+      byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+        piece.unmarshall(buffer, 0, count);
+        parcel.appendFrom(piece, 0, count);
+      }
+    } finally {
+      piece.recycle();
+      in.close();
     }
+  }
 
-    return data;
+  /**
+   * Append the bytes of the chunks to the parcel, one chunk at a time, so that the
+   * payload is never concatenated into a single byte array on the Java heap.
+   *
+   * @param parcel          the parcel to fill
+   * @param firstChunk      the first chunk of the payload
+   * @param remainingChunks the chunks that follow it
+   */
+  private static void appendChunks(Parcel parcel, DbChunk firstChunk,
+      Iterator<DbChunk> remainingChunks) {
+    if (!remainingChunks.hasNext()) {
+      parcel.unmarshall(firstChunk.getDataBuffer(), firstChunk.getDataOffset(),
+          firstChunk.getDataLength());
+      return;
+    }
+
+    Parcel piece = Parcel.obtain();
+    try {
+      DbChunk chunk = firstChunk;
+      while (true) {
+        piece.unmarshall(chunk.getDataBuffer(), chunk.getDataOffset(), chunk.getDataLength());
+        parcel.appendFrom(piece, 0, chunk.getDataLength());
+        if (!remainingChunks.hasNext()) {
+          break;
+        }
+        chunk = remainingChunks.next();
+      }
+    } finally {
+      piece.recycle();
+    }
   }
 
 }
@@ -40,8 +40,28 @@ public final class QueryUtil {
 
   public static String buildSqlStatement(String tableId, String whereClause, String[] groupBy,
       String having, String[] orderByElementKey, String[] orderByDirection) {
+    return buildSqlStatement(tableId, null, whereClause, groupBy, having, orderByElementKey,
+        orderByDirection);
+  }
+
+  /**
+   * Build a simple query that returns only some of the columns of the table
+   *
+   * @param tableId           the table to select from
+   * @param projection        the element keys of the columns to return, or null for all of them
+   * @param whereClause       the where clause, or null
+   * @param groupBy           the element keys to group by, or null
+   * @param having            the having clause, or null
+   * @param orderByElementKey the element keys to order by, or null
+   * @param orderByDirection  "ASC" or "DESC" for each of the orderByElementKey
+   * @return the SQL statement
+   */
+  public static String buildSqlStatement(String tableId, String[] projection,
+      String whereClause, String[] groupBy, String having, String[] orderByElementKey,
+      String[] orderByDirection) {
     StringBuilder s = new StringBuilder();
-    s.append("SELECT * FROM \"").append(tableId).append("\" ");
+    appendSelect(s, projection);
+    s.append(" FROM \"").append(tableId).append("\" ");
 
     if (whereClause != null && !whereClause.isEmpty()) {
       s.append(" WHERE ").append(whereClause);
@@ -90,6 +110,116 @@ public final class QueryUtil {
     return s.toString();
   }
 
+  /**
+   * Build the statement for a keyset (seek) continuation of a query: the rows that come
+   * after (or before) a given row in the ordering, found by comparing the ORDER BY keys with
+   * those of that row rather than by skipping an OFFSET of rows. The comparison is expanded
+   * into (k1 > ?) OR (k1 = ? AND k2 > ?) OR ..., with the operator of each key following its
+   * direction, so that keys may be in mixed directions.
+   * <p>
+   * The keys must identify a row uniquely and must not be null. In a user table, _id alone
+   * does not, as checkpoints and conflicts share the _id of their row; SimpleQuery adds
+   * _savepoint_timestamp after it. The values of the row to
+   * continue from are bound after the bind args of the whereClause, in the order given by
+   * buildKeysetBindArgs().
+   * <p>
+   * A backward continuation selects the limit rows before the row in reverse order, then
+   * restores the original order, so the limit is part of the statement and the query must
+   * not be given QueryBounds. A forward continuation is bounded by a limit with no offset.
+   *
+   * @param tableId           the table to select from
+   * @param projection        the element keys of the columns to return, or null for all of
+   *                          them. Must include the keys.
+   * @param whereClause       the where clause of the query, or null
+   * @param orderByElementKey the keys, in order
+   * @param orderByDirection  "ASC" or "DESC" for each key
+   * @param forward           true for the rows after the row, false for those before it
+   * @param limit             the maximum number of rows of a backward continuation
+   * @return the SQL statement
+   */
+  public static String buildSqlStatement(String tableId, String[] projection,
+      String whereClause, String[] orderByElementKey, String[] orderByDirection,
+      boolean forward, int limit) {
+    StringBuilder s = new StringBuilder();
+    if (!forward) {
+      s.append("SELECT * FROM (");
+    }
+    appendSelect(s, projection);
+    s.append(" FROM \"").append(tableId).append("\" WHERE ");
+    if (whereClause != null && !whereClause.isEmpty()) {
+      s.append("(").append(whereClause).append(") AND ");
+    }
+
+    s.append("(");
+    for (int i = 0; i < orderByElementKey.length; i++) {
+      if (i != 0) {
+        s.append(" OR ");
+      }
+      s.append("(");
+      for (int j = 0; j < i; j++) {
+        s.append(orderByElementKey[j]).append(" = ? AND ");
+      }
+      boolean ascending = !isDescending(orderByDirection[i]);
+      s.append(orderByElementKey[i]).append((ascending == forward) ? " > ?" : " < ?");
+      s.append(")");
+    }
+    s.append(")");
+
+    if (forward) {
+      appendOrderBy(s, orderByElementKey, orderByDirection, false);
+    } else {
+      appendOrderBy(s, orderByElementKey, orderByDirection, true);
+      s.append(" LIMIT ").append(limit).append(")");
+      appendOrderBy(s, orderByElementKey, orderByDirection, false);
+    }
+    return s.toString();
+  }
+
+  /**
+   * @param keyValues the values of the keys of the row a keyset continuation starts from
+   * @return the bind args for the comparison built by the keyset buildSqlStatement()
+   */
+  public static Object[] buildKeysetBindArgs(String[] keyValues) {
+    Object[] args = new Object[keyValues.length * (keyValues.length + 1) / 2];
+    int n = 0;
+    for (int i = 0; i < keyValues.length; i++) {
+      for (int j = 0; j <= i; j++) {
+        args[n++] = keyValues[j];
+      }
+    }
+    return args;
+  }
+
+  private static void appendSelect(StringBuilder s, String[] projection) {
+    if (projection == null || projection.length == 0) {
+      s.append("SELECT *");
+      return;
+    }
+    s.append("SELECT ");
+    for (int i = 0; i < projection.length; i++) {
+      if (i != 0) {
+        s.append(", ");
+      }
+      s.append(projection[i]);
+    }
+  }
+
+  private static void appendOrderBy(StringBuilder s, String[] orderByElementKey,
+      String[] orderByDirection, boolean reverse) {
+    s.append(" ORDER BY ");
+    for (int i = 0; i < orderByElementKey.length; i++) {
+      if (i != 0) {
+        s.append(", ");
+      }
+      boolean descending = isDescending(orderByDirection[i]) != reverse;
+      s.append(orderByElementKey[i]).append(descending ? " DESC" : " ASC");
+    }
+  }
+
+  private static boolean isDescending(String orderByDirection) {
+    return orderByDirection != null && orderByDirection.trim().equalsIgnoreCase("DESC");
+  }
+
   // TODO: This is generally used to convert single string order by arguments into arrays. It should
   // be plumped all the way to the Javascript so that this conversion isn't necessary
   public static String[] convertStringToArray(String arg) {
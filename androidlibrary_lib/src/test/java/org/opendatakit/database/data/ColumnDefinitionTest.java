@@ -623,6 +623,30 @@ public class ColumnDefinitionTest {
           "testTable", columns);
    }
 
+   @Test
+   public void testSharedColumnDefinitions() {
+      List<Column> columns = new ArrayList<Column>();
+      columns.add(new Column("col1", "col1", "integer", "[]"));
+      columns.add(new Column("col8", "col8", "geopoint",
+          "[\"col8_accuracy\",\"col8_altitude\",\"col8_latitude\",\"col8_longitude\"]"));
+      columns.add(new Column("col8_accuracy", "accuracy", "number", "[]"));
+      columns.add(new Column("col8_altitude", "altitude", "number", "[]"));
+      columns.add(new Column("col8_latitude", "latitude", "number", "[]"));
+      columns.add(new Column("col8_longitude", "longitude", "number", "[]"));
+
+      OrderedColumns first = new OrderedColumns("appName", "testTable", columns);
+      OrderedColumns second = new OrderedColumns("appName", "otherTable",
+          new ArrayList<Column>(columns));
+
+      assertEquals("otherTable", second.getTableId());
+      assertEquals(first.getColumnDefinitions(), second.getColumnDefinitions());
+      assertFalse(first.getColumnDefinitions() == second.getColumnDefinitions());
+      for (int i = 0; i < first.getColumnDefinitions().size(); ++i) {
+         assertTrue(first.getColumnDefinitions().get(i) == second.getColumnDefinitions().get(i));
+      }
+      assertEquals(4, second.find("col8").getChildren().size());
+   }
+
    @SuppressWarnings("unchecked")
    @Test
    public void testBuildExtendedJson() {
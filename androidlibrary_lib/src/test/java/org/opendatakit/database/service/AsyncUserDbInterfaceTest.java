@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises query collapsing against a stand-in for the database whose queries wait until
+ * the test lets them finish.
+ */
+public class AsyncUserDbInterfaceTest {
+
+  private final CountDownLatch gate = new CountDownLatch(1);
+  private final AtomicInteger queries = new AtomicInteger(0);
+  private volatile boolean failQueries = false;
+  private ExecutorService executor;
+  private AsyncUserDbInterface async;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() {
+    UserDbInterface database = (UserDbInterface) Proxy
+        .newProxyInstance(UserDbInterface.class.getClassLoader(),
+            new Class[] { UserDbInterface.class }, new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method method, Object[] args)
+                  throws Throwable {
+                if (!method.getName().equals("simpleQuery")) {
+                  throw new UnsupportedOperationException(method.getName());
+                }
+                queries.incrementAndGet();
+                gate.await();
+                if (failQueries) {
+                  throw new ServicesAvailabilityException("database is down");
+                }
+                return queryResult((String) args[2]);
+              }
+            });
+    executor = AsyncUserDbInterface.newBoundedExecutor(4);
+    async = new AsyncUserDbInterface(database, executor, null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    gate.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * @return a page of two rows of the table, as a SimpleQuery with a limit of 2 returns it
+   */
+  private static BaseTable queryResult(String tableId) {
+    SimpleQuery query = new SimpleQuery(tableId, null, null, null, null,
+        new String[] { "_id" }, null, 2, 0);
+    BaseTable table = new BaseTable(query, new String[] { "_id", "a" }, null, null, 2);
+    table.addRow(new Row(new String[] { "r0", "0" }, table));
+    table.addRow(new Row(new String[] { "r1", "1" }, table));
+    return table;
+  }
+
+  private Future<BaseTable> query(String tableId, AsyncUserDbInterface.DbCallback<BaseTable>
+      callback) {
+    return async.simpleQuery("app", null, tableId, null, null, null, null,
+        new String[] { "_id" }, null, 2, 0, null, callback);
+  }
+
+  @Test
+  public void testCollapsedCallersGetIndependentCopies() throws Exception {
+    Future<BaseTable> first = query("t", null);
+    Future<BaseTable> second = query("t", null);
+    Future<BaseTable> other = query("u", null);
+    gate.countDown();
+
+    BaseTable firstTable = first.get(10, TimeUnit.SECONDS);
+    BaseTable secondTable = second.get(10, TimeUnit.SECONDS);
+    other.get(10, TimeUnit.SECONDS);
+    assertEquals(2, queries.get());
+    assertEquals(1, async.getCollapsedQueryCount());
+
+    assertNotSame(firstTable, secondTable);
+    assertSame(secondTable, second.get());
+    assertNotSame(firstTable.getQuery(), secondTable.getQuery());
+    assertNotSame(firstTable.getRowAtIndex(0), secondTable.getRowAtIndex(0));
+    assertEquals("r1", secondTable.getRowAtIndex(1).getDataByIndex(0));
+
+    // paging one caller's table does not move the other's
+    assertSame(secondTable.getQuery(), secondTable.resumeQueryForward(2));
+    assertEquals(2, secondTable.getQuery().getSqlOffset());
+    assertEquals(0, firstTable.getQuery().getSqlOffset());
+  }
+
+  @Test
+  public void testCancelOneCaller() throws Exception {
+    final CountDownLatch firstReported = new CountDownLatch(1);
+    final AtomicReference<BaseTable> secondReported = new AtomicReference<>();
+    Future<BaseTable> first = query("t", new AsyncUserDbInterface.DbCallback<BaseTable>() {
+      @Override
+      public void onSuccess(BaseTable result) {
+        firstReported.countDown();
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+      }
+    });
+    Future<BaseTable> second = query("t", new AsyncUserDbInterface.DbCallback<BaseTable>() {
+      @Override
+      public void onSuccess(BaseTable result) {
+        secondReported.set(result);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+      }
+    });
+
+    assertTrue(second.cancel(false));
+    assertTrue(second.isCancelled());
+    assertTrue(second.isDone());
+    assertFalse(first.isDone());
+    gate.countDown();
+
+    assertEquals(2, first.get(10, TimeUnit.SECONDS).getNumberOfRows());
+    assertTrue(firstReported.await(10, TimeUnit.SECONDS));
+    try {
+      second.get();
+      fail("cancelled caller received a result");
+    } catch (CancellationException e) {
+      // expected
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertNull(secondReported.get());
+    assertFalse(first.cancel(false));
+  }
+
+  @Test
+  public void testWriteEndsCollapsing() throws Exception {
+    Future<BaseTable> before = query("t", null);
+    Future<Void> write = async.submitWrite(new AsyncUserDbInterface.DbCall<Void>() {
+      @Override
+      public Void call(UserDbInterface database) {
+        return null;
+      }
+    }, null);
+    Future<BaseTable> after = query("t", null);
+    gate.countDown();
+
+    write.get(10, TimeUnit.SECONDS);
+    before.get(10, TimeUnit.SECONDS);
+    after.get(10, TimeUnit.SECONDS);
+    assertEquals(2, queries.get());
+    assertEquals(0, async.getCollapsedQueryCount());
+  }
+
+  @Test
+  public void testFailureReachesEveryCaller() throws Exception {
+    failQueries = true;
+    final AtomicReference<Exception> reported = new AtomicReference<>();
+    final CountDownLatch failed = new CountDownLatch(1);
+    Future<BaseTable> first = query("t", null);
+    Future<BaseTable> second = query("t", new AsyncUserDbInterface.DbCallback<BaseTable>() {
+      @Override
+      public void onSuccess(BaseTable result) {
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        reported.set(e);
+        failed.countDown();
+      }
+    });
+    gate.countDown();
+
+    for (Future<BaseTable> future : new Future[] { first, second }) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        fail("failed query returned a result");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ServicesAvailabilityException);
+      }
+    }
+    assertTrue(failed.await(10, TimeUnit.SECONDS));
+    assertTrue(reported.get() instanceof ServicesAvailabilityException);
+    assertEquals(1, queries.get());
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ChoiceListCacheTest {
+
+  /**
+   * A choice list of 10 characters, estimated at 40 + 2 * 10 bytes
+   */
+  private static final String JSON_A = "[{\"a\":1}]a";
+  private static final String JSON_B = "[{\"b\":1}]b";
+  private static final String JSON_C = "[{\"c\":1}]c";
+  private static final long JSON_SIZE = 40 + 2 * 10;
+
+  /**
+   * The list, the map and its one String key and value
+   */
+  private static final String CHOICES = "[{\"k\":\"v\"}]";
+  private static final long CHOICES_SIZE =
+      (40 + 2 * CHOICES.length()) + 32 + 24 + 32 + 24 + 2 * (40 + 2);
+
+  @Test
+  public void testEvictionUnderByteBudget() {
+    ChoiceListCache cache = new ChoiceListCache();
+    cache.setMaxBytes(2 * JSON_SIZE);
+    cache.putJson("app", "a", JSON_A);
+    cache.putJson("app", "b", JSON_B);
+    // a is now more recently used than b
+    assertEquals(JSON_A, cache.getJson("app", "a"));
+    cache.putJson("app", "c", JSON_C);
+
+    assertNull(cache.getJson("app", "b"));
+    assertEquals(JSON_A, cache.getJson("app", "a"));
+    assertEquals(JSON_C, cache.getJson("app", "c"));
+    assertNull(cache.getJson("other", "a"));
+    assertEquals(3, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    // shrinking the budget drops the least recently used
+    cache.setMaxBytes(JSON_SIZE);
+    assertNull(cache.getJson("app", "a"));
+    assertEquals(JSON_C, cache.getJson("app", "c"));
+
+    // a choice list over the whole budget is not kept
+    cache.setMaxBytes(JSON_SIZE - 1);
+    cache.putJson("app", "a", JSON_A);
+    assertNull(cache.getJson("app", "a"));
+
+    cache.setMaxBytes(0);
+    cache.putJson("app", "a", JSON_A);
+    assertNull(cache.getJson("app", "a"));
+  }
+
+  @Test
+  public void testParsedCountsTowardsBudget() {
+    ChoiceListCache cache = new ChoiceListCache();
+    List<Map<String, Object>> parsed = ChoiceListCache.parse(CHOICES);
+    cache.putParsed("app", "id", CHOICES, parsed);
+    assertSame(parsed, cache.getParsed("app", "id"));
+    assertEquals(CHOICES, cache.getJson("app", "id"));
+
+    // an id names one content, so it is never replaced
+    cache.putJson("app", "id", "[]");
+    assertEquals(CHOICES, cache.getJson("app", "id"));
+
+    // the JSON fits the budget but not the parsed choices as well
+    ChoiceListCache small = new ChoiceListCache();
+    small.setMaxBytes(CHOICES_SIZE - 1);
+    small.putParsed("app", "id", CHOICES, parsed);
+    assertEquals(CHOICES, small.getJson("app", "id"));
+    assertNull(small.getParsed("app", "id"));
+
+    small.setMaxBytes(CHOICES_SIZE);
+    small.clear();
+    small.putParsed("app", "id", CHOICES, parsed);
+    assertSame(parsed, small.getParsed("app", "id"));
+  }
+
+  @Test
+  public void testParseIsImmutable() {
+    List<Map<String, Object>> choices = ChoiceListCache
+        .parse("[{\"data_value\":\"x\",\"display\":{\"title\":{\"text\":\"X\"}}},{\"n\":[1,2]}]");
+    assertEquals(2, choices.size());
+    assertEquals("x", choices.get(0).get("data_value"));
+
+    try {
+      choices.remove(0);
+      fail("the choice list can be changed");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      choices.get(0).put("data_value", "y");
+      fail("a choice can be changed");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> display = (Map<String, Object>) choices.get(0).get("display");
+      display.clear();
+      fail("a nested object can be changed");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      @SuppressWarnings("unchecked")
+      List<Object> values = (List<Object>) choices.get(1).get("n");
+      values.add(3);
+      fail("a nested array can be changed");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParseRejectsInvalidChoiceLists() {
+    for (String json : new String[] { "{\"a\":1}", "[1,2]", "[{\"a\":" }) {
+      try {
+        ChoiceListCache.parse(json);
+        fail("accepted " + json);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    assertEquals(0, ChoiceListCache.parse("[]").size());
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import org.junit.Test;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TableDefinitionEntry;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class QueryResultCacheTest {
+
+  /**
+   * The estimated size of a table made by table(): the table overhead, and for its row the
+   * row overhead, two cell references and two Strings of two characters
+   */
+  private static final long TABLE_SIZE = 32 + 32 + 4 * 2 + 2 * (40 + 2 * 2);
+
+  private static BaseTable table(String value) {
+    BaseTable table = new BaseTable(null, new String[] { "_id", "a" }, null, 1);
+    table.addRow(new Row(new String[] { "r" + value, "v" + value }, table));
+    return table;
+  }
+
+  private static QueryResultCache.Key key(String appName, String sql) {
+    return new QueryResultCache.Key(appName, "u\nr", "t", sql, new BindArgs(new Object[] { 1 }),
+        new QueryBounds(10, 0));
+  }
+
+  @Test
+  public void testHitReturnsCopy() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setMaxBytes(10 * TABLE_SIZE);
+    BaseTable stored = table("1");
+    cache.put(key("app", "SELECT 1"), "v1", stored, cache.getGeneration());
+
+    BaseTable first = cache.get(key("app", "SELECT 1"), "v1");
+    BaseTable second = cache.get(key("app", "SELECT 1"), "v1");
+    assertNotNull(first);
+    assertNotSame(stored, first);
+    assertNotSame(first, second);
+    assertEquals("v1", second.getRowAtIndex(0).getDataByIndex(1));
+    assertEquals(2, cache.getHits());
+
+    // another version of the table drops the result
+    assertNull(cache.get(key("app", "SELECT 1"), "v2"));
+    assertNull(cache.get(key("app", "SELECT 1"), "v1"));
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testEvictionUnderByteBudget() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setMaxBytes(2 * TABLE_SIZE);
+    cache.put(key("app", "A"), "v", table("1"), cache.getGeneration());
+    cache.put(key("app", "B"), "v", table("2"), cache.getGeneration());
+    // A is now more recently used than B
+    assertNotNull(cache.get(key("app", "A"), "v"));
+    cache.put(key("app", "C"), "v", table("3"), cache.getGeneration());
+
+    assertNull(cache.get(key("app", "B"), "v"));
+    assertNotNull(cache.get(key("app", "A"), "v"));
+    assertNotNull(cache.get(key("app", "C"), "v"));
+
+    // shrinking the budget drops the least recently used
+    cache.setMaxBytes(TABLE_SIZE);
+    assertNull(cache.get(key("app", "A"), "v"));
+    assertNotNull(cache.get(key("app", "C"), "v"));
+
+    // a result over the whole budget is not kept
+    cache.setMaxBytes(TABLE_SIZE - 1);
+    cache.put(key("app", "D"), "v", table("4"), cache.getGeneration());
+    assertNull(cache.get(key("app", "D"), "v"));
+  }
+
+  @Test
+  public void testNormalize() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setMaxBytes(10 * TABLE_SIZE);
+    cache.put(key("app", "SELECT *  FROM t\n WHERE a = 'x  y' "), "v", table("1"),
+        cache.getGeneration());
+
+    assertNotNull(cache.get(key("app", "  SELECT * FROM t WHERE a = 'x  y'"), "v"));
+    // whitespace within a quoted value is significant
+    assertNull(cache.get(key("app", "SELECT * FROM t WHERE a = 'x y'"), "v"));
+    // as are the bind args and bounds
+    assertNull(cache.get(new QueryResultCache.Key("app", "u\nr", "t", "SELECT * FROM t WHERE a = 'x  y'",
+        new BindArgs(new Object[] { 2 }), new QueryBounds(10, 0)), "v"));
+    assertNull(cache.get(new QueryResultCache.Key("app", "u\nr", "t", "SELECT * FROM t WHERE a = 'x  y'",
+        new BindArgs(new Object[] { 1 }), new QueryBounds(10, 10)), "v"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setMaxBytes(10 * TABLE_SIZE);
+    long generation = cache.getGeneration();
+    cache.put(key("app", "A"), "v", table("1"), generation);
+    cache.put(key("other", "A"), "v", table("2"), generation);
+
+    cache.invalidate("app");
+    assertNull(cache.get(key("app", "A"), "v"));
+    assertNotNull(cache.get(key("other", "A"), "v"));
+
+    // a result fetched before the invalidation is not stored
+    cache.put(key("app", "B"), "v", table("3"), generation);
+    assertNull(cache.get(key("app", "B"), "v"));
+  }
+
+  @Test
+  public void testUserIsPartOfKey() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setMaxBytes(10 * TABLE_SIZE);
+    cache.put(key("app", "A"), "v", table("1"), cache.getGeneration());
+
+    assertNotNull(cache.get(new QueryResultCache.Key("app", QueryResultCache.getUser("u", "r"),
+        "t", "A", new BindArgs(new Object[] { 1 }), new QueryBounds(10, 0)), "v"));
+    // another user, or the same user with other roles, may see other rows
+    assertNull(cache.get(new QueryResultCache.Key("app", QueryResultCache.getUser("v", "r"),
+        "t", "A", new BindArgs(new Object[] { 1 }), new QueryBounds(10, 0)), "v"));
+    assertNull(cache.get(new QueryResultCache.Key("app", QueryResultCache.getUser("u", "s"),
+        "t", "A", new BindArgs(new Object[] { 1 }), new QueryBounds(10, 0)), "v"));
+  }
+
+  @Test
+  public void testConfirmedVersionIsFreshWithinWindow() {
+    QueryResultCache cache = new QueryResultCache();
+    cache.setFreshness(1000L);
+    long now = 5000000000L;
+    cache.confirmVersion("app", "t", "v1", now, cache.getGeneration());
+    cache.confirmUser("app", "u\nr", now);
+
+    assertEquals("v1", cache.getConfirmedVersion("app", "t", now + 999000000L));
+    assertEquals("u\nr", cache.getConfirmedUser("app", now + 999000000L));
+    assertNull(cache.getConfirmedVersion("app", "t", now + 1000000000L));
+    assertNull(cache.getConfirmedUser("app", now + 1000000000L));
+    assertNull(cache.getConfirmedVersion("app", "other", now));
+    assertNull(cache.getConfirmedVersion("other", "t", now));
+
+    // a write forgets the versions of the app, but not the user
+    cache.invalidate("app");
+    assertNull(cache.getConfirmedVersion("app", "t", now));
+    assertEquals("u\nr", cache.getConfirmedUser("app", now));
+
+    // a version asked for before the write is not remembered
+    long generation = cache.getGeneration();
+    cache.invalidate("app");
+    cache.confirmVersion("app", "t", "v1", now, generation);
+    assertNull(cache.getConfirmedVersion("app", "t", now));
+
+    // with no window, the database is always asked
+    cache.setFreshness(0L);
+    cache.confirmVersion("app", "t", "v2", now, cache.getGeneration());
+    assertNull(cache.getConfirmedVersion("app", "t", now));
+    assertNull(cache.getConfirmedUser("app", now));
+  }
+
+  @Test
+  public void testSizeIsEstimatedFromSample() {
+    QueryResultCache cache = new QueryResultCache();
+    BaseTable table = new BaseTable(null, new String[] { "_id", "a" }, null, 1000);
+    for (int i = 0; i < 1000; ++i) {
+      table.addRow(new Row(new String[] { "r" + (i % 10), "v" + (i % 10) }, table));
+    }
+    // every row is the same size, so the sample gives the exact size
+    cache.setMaxBytes(32 + 1000 * (TABLE_SIZE - 32));
+    cache.put(key("app", "A"), "v", table, cache.getGeneration());
+    assertNotNull(cache.get(key("app", "A"), "v"));
+    cache.setMaxBytes(32 + 1000 * (TABLE_SIZE - 32) - 1);
+    assertNull(cache.get(key("app", "A"), "v"));
+  }
+
+  @Test
+  public void testVersion() {
+    assertNull(QueryResultCache.getVersion(null));
+    TableDefinitionEntry definition = new TableDefinitionEntry("t");
+    assertNull(QueryResultCache.getVersion(definition));
+    definition.setRevId("r1");
+    definition.setLastDataETag("d1");
+    String version = QueryResultCache.getVersion(definition);
+    definition.setLastDataETag("d2");
+    assertNotNull(version);
+    assertFalse(version.equals(QueryResultCache.getVersion(definition)));
+  }
+}
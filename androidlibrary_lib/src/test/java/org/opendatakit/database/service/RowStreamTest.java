@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams rows from a stand-in for the database that holds the rows of one table, ordered
+ * by _id and _savepoint_timestamp, and answers resumeSimpleQuery() by offset or by keyset.
+ */
+public class RowStreamTest {
+
+  private final List<String> rowIds = new ArrayList<>();
+  /**
+   * The _savepoint_timestamp of each row of rowIds
+   */
+  private final List<String> timestamps = new ArrayList<>();
+  /**
+   * The limit and offset of each page requested, and "keyset" if it was continued by keyset
+   */
+  private final List<String> requests = new ArrayList<>();
+  private int failAfterPages = -1;
+  private UserDbInterface database;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() {
+    for (int i = 0; i < 25; ++i) {
+      rowIds.add(String.format("r%03d", i));
+      timestamps.add("t1");
+    }
+    database = (UserDbInterface) Proxy.newProxyInstance(UserDbInterface.class.getClassLoader(),
+        new Class[] { UserDbInterface.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("resumeSimpleQuery")) {
+              throw new UnsupportedOperationException(method.getName());
+            }
+            return resumeSimpleQuery((ResumableQuery) args[2]);
+          }
+        });
+  }
+
+  private synchronized BaseTable resumeSimpleQuery(ResumableQuery query)
+      throws ServicesAvailabilityException {
+    if (requests.size() == failAfterPages) {
+      throw new ServicesAvailabilityException("database is down");
+    }
+    List<Integer> matching = new ArrayList<>();
+    Object[] args = query.getSqlBindArgs().bindArgs;
+    boolean keyset = args != null && args.length != 0;
+    for (int i = 0; i < rowIds.size(); ++i) {
+      // if continued, (_id > ?) OR (_id = ? AND _savepoint_timestamp > ?)
+      int byRowId = keyset ? rowIds.get(i).compareTo((String) args[0]) : 1;
+      if (byRowId > 0 || (byRowId == 0 && timestamps.get(i).compareTo((String) args[2]) > 0)) {
+        matching.add(i);
+      }
+    }
+    QueryBounds bounds = query.getSqlQueryBounds();
+    int offset = Math.max(bounds.mOffset, 0);
+    int end = (bounds.mLimit < 0) ? matching.size() :
+        Math.min(matching.size(), offset + bounds.mLimit);
+    requests.add(bounds.mLimit + "@" + bounds.mOffset + (keyset ? " keyset" : ""));
+
+    BaseTable page = new BaseTable(query, new String[] { "_id", "_savepoint_timestamp" }, null,
+        null, 0);
+    for (int i = offset; i < end; ++i) {
+      int row = matching.get(i);
+      page.addRow(new Row(new String[] { rowIds.get(row), timestamps.get(row) }, page));
+    }
+    return page;
+  }
+
+  private static SimpleQuery query(Integer limit, Integer offset) {
+    return new SimpleQuery("t", null, null, null, null, new String[] { "_id" }, null, limit,
+        offset);
+  }
+
+  private static List<String> drain(RowStream stream) {
+    List<String> rowIds = new ArrayList<>();
+    for (Row row : stream) {
+      rowIds.add(row.getDataByIndex(0));
+    }
+    return rowIds;
+  }
+
+  @Test
+  public void testPagesByOffset() throws Exception {
+    RowStream stream = RowStream.open(database, "app", null, query(null, null), 10, null);
+    assertEquals(1, requests.size());
+    assertEquals(rowIds, drain(stream));
+    assertEquals(Arrays.asList("10@0", "10@10", "10@20"), requests);
+    assertFalse(stream.hasNext());
+  }
+
+  @Test
+  public void testQueryLimitAndOffset() throws Exception {
+    RowStream stream = RowStream.open(database, "app", null, query(12, 5), 5, null);
+    assertEquals(rowIds.subList(5, 17), drain(stream));
+    assertEquals(Arrays.asList("5@5", "5@10", "2@15"), requests);
+  }
+
+  @Test
+  public void testPagesByKeyset() throws Exception {
+    SimpleQuery query = query(null, null);
+    query.setKeysetPaging(true);
+    RowStream stream = RowStream.open(database, "app", null, query, 10, null);
+    List<String> expected = new ArrayList<>(rowIds);
+
+    // removing a row already returned does not shift the next page, as it would by offset
+    synchronized (this) {
+      rowIds.remove(0);
+      timestamps.remove(0);
+    }
+    assertEquals(expected, drain(stream));
+    assertEquals(Arrays.asList("10@0", "10@0 keyset", "10@0 keyset"), requests);
+  }
+
+  @Test
+  public void testKeysetPagesSplitRowVersions() throws Exception {
+    // a checkpoint of r009 sorts right after it, at the start of the second page
+    rowIds.add(10, "r009");
+    timestamps.add(10, "t2");
+    SimpleQuery query = query(null, null);
+    query.setKeysetPaging(true);
+    RowStream stream = RowStream.open(database, "app", null, query, 10, null);
+
+    List<String> versions = new ArrayList<>();
+    for (Row row : stream) {
+      versions.add(row.getDataByIndex(0) + "@" + row.getDataByIndex(1));
+    }
+    assertEquals(26, versions.size());
+    assertEquals(Arrays.asList("r009@t1", "r009@t2", "r010@t1"), versions.subList(9, 12));
+    assertEquals(Arrays.asList("10@0", "10@0 keyset", "10@0 keyset"), requests);
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      RowStream stream = RowStream.open(database, "app", null, query(null, null), 7, executor);
+      assertEquals(rowIds, drain(stream));
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    assertEquals(Arrays.asList("7@0", "7@7", "7@14", "7@21"), requests);
+  }
+
+  @Test
+  public void testFailedPage() throws Exception {
+    failAfterPages = 1;
+    RowStream stream = RowStream.open(database, "app", null, query(null, null), 10, null);
+    for (int i = 0; i < 10; ++i) {
+      stream.next();
+    }
+    try {
+      stream.hasNext();
+      fail("a page that could not be fetched was not reported");
+    } catch (RowStream.PageFetchException e) {
+      assertEquals("database is down", e.getCause().getMessage());
+    }
+
+    failAfterPages = 0;
+    requests.clear();
+    try {
+      RowStream.open(database, "app", null, query(null, null), 10, null);
+      fail("a first page that could not be fetched was not reported");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    RowStream stream = RowStream.open(database, "app", null, query(null, null), 10, null);
+    stream.next();
+    stream.close();
+    assertFalse(stream.hasNext());
+    assertEquals(1, requests.size());
+  }
+}
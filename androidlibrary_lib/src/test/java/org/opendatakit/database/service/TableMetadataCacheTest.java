@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import org.junit.Test;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.TableMetaDataEntries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TableMetadataCacheTest {
+
+  /**
+   * The estimated size of the metadata made by metadata() without entries: the overhead
+   * and the table id and revision, of one character each
+   */
+  private static final long METADATA_SIZE = 48 + 2 * (40 + 2);
+
+  private static TableMetaDataEntries metadata(String tableId) {
+    return new TableMetaDataEntries(tableId, "r");
+  }
+
+  @Test
+  public void testEvictionByCount() {
+    TableMetadataCache cache = new TableMetadataCache();
+    cache.setLimits(2, 1024);
+    cache.put("app", "a", metadata("a"), cache.getGeneration());
+    cache.put("app", "b", metadata("b"), cache.getGeneration());
+    // a is now more recently used than b
+    assertNotNull(cache.get("app", "a"));
+    cache.put("app", "c", metadata("c"), cache.getGeneration());
+
+    assertNull(cache.get("app", "b"));
+    assertNotNull(cache.get("app", "a"));
+    assertNotNull(cache.get("app", "c"));
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testEvictionUnderByteBudget() {
+    TableMetadataCache cache = new TableMetadataCache();
+    cache.setLimits(100, 2 * METADATA_SIZE);
+    cache.put("app", "a", metadata("a"), cache.getGeneration());
+    cache.put("app", "b", metadata("b"), cache.getGeneration());
+    assertNotNull(cache.get("app", "a"));
+    cache.put("app", "c", metadata("c"), cache.getGeneration());
+    assertNull(cache.get("app", "b"));
+    assertNotNull(cache.get("app", "a"));
+
+    // metadata over the whole budget is not kept
+    TableMetaDataEntries large = metadata("d");
+    KeyValueStoreEntry entry = new KeyValueStoreEntry();
+    entry.value = "a value that takes the metadata over the budget";
+    large.addEntry(entry);
+    cache.put("app", "d", large, cache.getGeneration());
+    assertNull(cache.get("app", "d"));
+
+    // shrinking the budget drops the least recently used
+    cache.setLimits(100, METADATA_SIZE);
+    assertNull(cache.get("app", "c"));
+    assertNotNull(cache.get("app", "a"));
+
+    cache.setLimits(0, METADATA_SIZE);
+    cache.put("app", "e", metadata("e"), cache.getGeneration());
+    assertNull(cache.get("app", "e"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    TableMetadataCache cache = new TableMetadataCache();
+    long generation = cache.getGeneration();
+    cache.put("app", "a", metadata("a"), generation);
+    cache.put("app", "b", metadata("b"), generation);
+    cache.put("other", "a", metadata("a"), generation);
+
+    cache.invalidate("app", "a");
+    assertNull(cache.get("app", "a"));
+    assertNotNull(cache.get("app", "b"));
+
+    cache.invalidate("app", null);
+    assertNull(cache.get("app", "b"));
+    assertNotNull(cache.get("other", "a"));
+
+    // metadata fetched before the invalidation is not stored
+    cache.put("app", "a", metadata("a"), generation);
+    assertNull(cache.get("app", "a"));
+  }
+
+  @Test
+  public void testFreshness() {
+    TableMetadataCache cache = new TableMetadataCache();
+    TableMetaDataEntries metadata = metadata("a");
+    cache.put("app", "a", metadata, cache.getGeneration());
+    TableMetadataCache.Entry entry = cache.get("app", "a");
+    assertSame(metadata, entry.getEntries());
+
+    // by default metadata just fetched is not checked again
+    assertTrue(cache.isFresh(entry));
+    assertEquals(1, cache.getHits());
+
+    // with no window the metadata is always checked
+    cache.setFreshness(0);
+    assertFalse(cache.isFresh(entry));
+    assertEquals(1, cache.getRevalidations());
+
+    cache.setFreshness(60 * 1000);
+    assertTrue(cache.isFresh(entry));
+    cache.markValidated(entry);
+    assertTrue(cache.isFresh(entry));
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getRevalidations());
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.junit.Test;
+import org.opendatakit.database.utilities.DbChunkUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Exercises both ends of the file descriptor transport, using a pipe and a thread
+ * as a stand-in for the service.
+ */
+public class DbChunkPayloadStreamTest {
+
+  private static byte[] testPayload(int size) {
+    byte[] payload = new byte[size];
+    new Random(size).nextBytes(payload);
+    return payload;
+  }
+
+  @Test
+  public void testPayloadThroughPipe() throws Exception {
+    final byte[] payload = testPayload(3 * 1024 * 1024);
+
+    final PipedOutputStream serviceSide = new PipedOutputStream();
+    PipedInputStream clientSide = new PipedInputStream(serviceSide, 64 * 1024);
+
+    final IOException[] writerFailure = new IOException[1];
+    Thread service = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          DbChunkUtil.writePayload(serviceSide, payload);
+          serviceSide.close();
+        } catch (IOException e) {
+          writerFailure[0] = e;
+        }
+      }
+    });
+    service.start();
+
+    byte[] result = DbChunkUtil.readPayload(clientSide);
+    service.join();
+
+    assertNull(writerFailure[0]);
+    assertArrayEquals(payload, result);
+  }
+
+  @Test
+  public void testEmptyPayload() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DbChunkUtil.writePayload(out, new byte[0]);
+
+    byte[] result = DbChunkUtil.readPayload(new ByteArrayInputStream(out.toByteArray()));
+    assertArrayEquals(new byte[0], result);
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedPayload() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DbChunkUtil.writePayload(out, testPayload(1000));
+
+    byte[] written = out.toByteArray();
+    // the service went away part of the way through writing
+    DbChunkUtil.readPayload(new ByteArrayInputStream(written, 0, written.length - 10));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class QueryUtilTest {
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Test
+  public void testProjection() {
+    assertEquals("SELECT * FROM \"t\"  WHERE x = ?",
+        QueryUtil.buildSqlStatement("t", "x = ?", null, null, null, null));
+    assertEquals("SELECT a, b FROM \"t\"  WHERE x = ? GROUP BY a, b ORDER BY a DESC",
+        QueryUtil.buildSqlStatement("t", new String[] { "a", "b" }, "x = ?",
+            new String[] { "a", "b" }, null, new String[] { "a" }, new String[] { "DESC" }));
+    // an empty projection returns all of the columns
+    assertEquals("SELECT * FROM \"t\" ",
+        QueryUtil.buildSqlStatement("t", new String[0], null, null, null, null, null));
+  }
+
+  @Test
+  public void testSimpleQueryProjection() {
+    String[] projection = { "b" };
+    SimpleQuery query = new SimpleQuery("t", projection, null, null, null, null,
+        new String[] { "a" }, null, 3, 0);
+    projection[0] = "changed";
+    assertArrayEquals(new String[] { "b" }, query.getProjection());
+    assertEquals("SELECT b FROM \"t\"  ORDER BY a ASC", query.getSqlCommand());
+
+    // a query continued by keyset also returns the keys, to continue from the last row
+    query.setKeysetPaging(true);
+    assertEquals("SELECT b, a, _id, _savepoint_timestamp FROM \"t\"  ORDER BY a ASC, _id ASC,"
+        + " _savepoint_timestamp ASC", query.getSqlCommand());
+    assertArrayEquals(new String[] { "b" }, query.getProjection());
+
+    SimpleQuery all = new SimpleQuery("t", new String[0], null, null, null, null, null, null,
+        null, null);
+    assertNull(all.getProjection());
+  }
+
+  @Test
+  public void testKeysetForwardMixedDirections() {
+    String sql = QueryUtil.buildSqlStatement("t", null, "x = ?",
+        new String[] { "a", "b", "_id" }, new String[] { "DESC", "ASC", "ASC" }, true, 10);
+    assertEquals("SELECT * FROM \"t\" WHERE (x = ?) AND ((a < ?) OR (a = ? AND b > ?)"
+        + " OR (a = ? AND b = ? AND _id > ?)) ORDER BY a DESC, b ASC, _id ASC", sql);
+  }
+
+  @Test
+  public void testKeysetBackwardMixedDirections() {
+    String sql = QueryUtil.buildSqlStatement("t", null, null,
+        new String[] { "a", "_id" }, new String[] { "desc", null }, false, 10);
+    // the rows before are selected in reverse order, then put back in the query's order
+    assertEquals("SELECT * FROM (SELECT * FROM \"t\" WHERE ((a > ?) OR (a = ? AND _id < ?))"
+        + " ORDER BY a ASC, _id DESC LIMIT 10) ORDER BY a DESC, _id ASC", sql);
+  }
+
+  @Test
+  public void testKeysetBindArgs() {
+    assertArrayEquals(new Object[] { "1", "1", "2", "1", "2", "3" },
+        QueryUtil.buildKeysetBindArgs(new String[] { "1", "2", "3" }));
+    assertArrayEquals(new Object[] { "x" }, QueryUtil.buildKeysetBindArgs(new String[] { "x" }));
+  }
+
+  @Test
+  public void testKeysetKeysAddRowId() {
+    SimpleQuery query = new SimpleQuery("t", new BindArgs(new Object[] { "v" }), "x = ?", null,
+        null, new String[] { "a" }, new String[] { "DESC" }, 3, 0);
+    assertNull(query.getKeysetElementKeys());
+    query.setKeysetPaging(true);
+    assertArrayEquals(new String[] { "a", "_id", "_savepoint_timestamp" },
+        query.getKeysetElementKeys());
+    // the first page is ordered by the keys and bounded as usual
+    assertEquals("SELECT * FROM \"t\"  WHERE x = ? ORDER BY a DESC, _id ASC,"
+        + " _savepoint_timestamp ASC", query.getSqlCommand());
+    assertArrayEquals(new Object[] { "v" }, query.getSqlBindArgs().bindArgs);
+
+    // a GROUP BY is always continued by offset
+    SimpleQuery grouped = new SimpleQuery("t", null, null, new String[] { "a" }, null,
+        new String[] { "a" }, null, 3, 0);
+    grouped.setKeysetPaging(true);
+    assertNull(grouped.getKeysetElementKeys());
+  }
+
+  @Test
+  public void testResumeByKeyset() {
+    SimpleQuery query = new SimpleQuery("t", new BindArgs(new Object[] { "v" }), "x = ?", null,
+        null, new String[] { "a" }, new String[] { "DESC" }, 3, 3);
+    query.setKeysetPaging(true);
+    BaseTable page = tablePage(query, 3, 3);
+
+    assertSame(query, page.resumeQueryForward(3));
+    assertEquals("SELECT * FROM \"t\" WHERE (x = ?) AND ((a < ?) OR (a = ? AND _id > ?)"
+        + " OR (a = ? AND _id = ? AND _savepoint_timestamp > ?))"
+        + " ORDER BY a DESC, _id ASC, _savepoint_timestamp ASC", query.getSqlCommand());
+    // continue after the last row of the page: a = 3, _id = r5, _savepoint_timestamp = t5
+    assertArrayEquals(new Object[] { "v", "3", "3", "r5", "3", "r5", "t5" },
+        query.getSqlBindArgs().bindArgs);
+    QueryBounds bounds = query.getSqlQueryBounds();
+    assertEquals(3, bounds.mLimit);
+    assertEquals(0, bounds.mOffset);
+  }
+
+  @Test
+  public void testResumeBackwardByKeyset() {
+    SimpleQuery query = new SimpleQuery("t", null, null, null, null, new String[] { "a" },
+        new String[] { "DESC" }, 3, 3);
+    query.setKeysetPaging(true);
+    BaseTable page = tablePage(query, 3, 3);
+
+    assertSame(query, page.resumeQueryBackward(2));
+    assertEquals("SELECT * FROM (SELECT * FROM \"t\" WHERE ((a > ?) OR (a = ? AND _id < ?)"
+        + " OR (a = ? AND _id = ? AND _savepoint_timestamp < ?))"
+        + " ORDER BY a ASC, _id DESC, _savepoint_timestamp DESC LIMIT 2)"
+        + " ORDER BY a DESC, _id ASC, _savepoint_timestamp ASC", query.getSqlCommand());
+    // continue before the first row of the page: a = 5, _id = r3, _savepoint_timestamp = t3
+    assertArrayEquals(new Object[] { "5", "5", "r3", "5", "r3", "t3" },
+        query.getSqlBindArgs().bindArgs);
+    // the limit is in the statement
+    assertNull(query.getSqlQueryBounds());
+
+    // going back by offset afterwards drops the keyset continuation
+    query.setSqlOffset(0);
+    assertEquals("SELECT * FROM \"t\"  ORDER BY a DESC, _id ASC, _savepoint_timestamp ASC",
+        query.getSqlCommand());
+  }
+
+  @Test
+  public void testResumeWithoutTimestampByOffset() {
+    SimpleQuery query = new SimpleQuery("t", null, null, null, null, new String[] { "a" },
+        new String[] { "DESC" }, 3, 3);
+    query.setKeysetPaging(true);
+    // a result without the tie breaker columns cannot be continued by keyset
+    BaseTable page = new BaseTable(query, new String[] { "_id", "a" }, null, null, 3);
+    for (int i = 3; i < 6; ++i) {
+      page.addRow(new Row(new String[] { "r" + i, Integer.toString(8 - i) }, page));
+    }
+
+    assertSame(query, page.resumeQueryForward(3));
+    assertEquals("SELECT * FROM \"t\"  ORDER BY a DESC, _id ASC, _savepoint_timestamp ASC",
+        query.getSqlCommand());
+    assertEquals(6, query.getSqlQueryBounds().mOffset);
+  }
+
+  /**
+   * @return the rows from start to start + count of a table whose rows i have _id "r" + i,
+   * _savepoint_timestamp "t" + i and a = 8 - i, as the given query would return them
+   */
+  private static BaseTable tablePage(SimpleQuery query, int start, int count) {
+    BaseTable table = new BaseTable(query, new String[] { "_id", "_savepoint_timestamp", "a" },
+        null, null, count);
+    for (int i = start; i < start + count; ++i) {
+      table.addRow(new Row(new String[] { "r" + i, "t" + i, Integer.toString(8 - i) }, table));
+    }
+    return table;
+  }
+}